@@ -0,0 +1,76 @@
+package benchmark;
+
+import analyser.Analyser;
+import analyser.FuncTable;
+import error.CompileError;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import tokenizer.StringIter;
+import tokenizer.TokenStream;
+import tokenizer.Tokenizer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分析 1k/10k/100k 个函数的合成程序
+ * analyse 只测语法分析和生成指令，token 在 setup 中切好；compile 从字符开始，包括词法分析
+ * 除了每秒的次数，还通过 AuxCounters 报告每秒处理的 token 数，换算成每个 token 的纳秒数
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class AnalyserBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int functions;
+
+    private StringIter source;
+    private TokenStream tokens;
+
+    /**
+     * 每次调用处理的 token 个数，JMH 把它也报告成每秒的速率
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Tokens {
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws CompileError {
+        source = new StringIter(Sources.program(functions));
+        source.readAll();
+        tokens = new Tokenizer(new StringIter(source, 0, source.length())).tokenizeAll();
+    }
+
+    @Benchmark
+    public FuncTable analyse(Tokens counter) throws CompileError {
+        counter.tokens += tokens.size();
+        return new Analyser(tokens).analyse();
+    }
+
+    @Benchmark
+    public FuncTable compile(Tokens counter) throws CompileError {
+        var stream = new Tokenizer(new StringIter(source, 0, source.length())).tokenizeAll();
+        counter.tokens += stream.size();
+        return new Analyser(stream).analyse();
+    }
+}
@@ -0,0 +1,97 @@
+package benchmark;
+
+import analyser.Program;
+import driver.Compiler;
+import emitter.O0Writer;
+import error.CompileError;
+import instruction.CodeBuffer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import tokenizer.StringIter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 输出 10k 个函数的程序，除了每秒的次数还报告每秒输出的指令条数
+ * format 只把指令变成文本，listing 是 Compiler 输出文本的完整路径，o0 是二进制格式；都写到丢弃输出的流里
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmitterBenchmark {
+    private static final int FUNCTIONS = 10_000;
+
+    private Program program;
+    private CodeBuffer[] bodies;
+    private int instructions;
+
+    @Setup
+    public void setup() throws CompileError {
+        program = new Compiler().analyse(new StringIter(Sources.program(FUNCTIONS)));
+        var functions = program.functions();
+        bodies = new CodeBuffer[functions.size()];
+        for (int i = 0; i < bodies.length; i++) {
+            bodies[i] = functions.get(i).getInstructions();
+            instructions += bodies[i].size();
+        }
+    }
+
+    /**
+     * 每次调用输出的指令条数，JMH 把它也报告成每秒的速率
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Instructions {
+        public long instructions;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            instructions = 0;
+        }
+    }
+
+    @Benchmark
+    public long format(Instructions counter) {
+        counter.instructions += instructions;
+        long length = 0;
+        for (var body : bodies) {
+            for (int i = 0; i < body.size(); i++) {
+                length += body.toString(i).length();
+            }
+        }
+        return length;
+    }
+
+    @Benchmark
+    public boolean listing(Instructions counter) {
+        counter.instructions += instructions;
+        var out = new PrintStream(OutputStream.nullOutputStream(), false);
+        Compiler.writeListing(program.getFuncTable(), out);
+        return out.checkError();
+    }
+
+    @Benchmark
+    public void o0(Instructions counter) throws IOException {
+        counter.instructions += instructions;
+        try (var writer = new O0Writer(Channels.newChannel(OutputStream.nullOutputStream()))) {
+            writer.writeProgram(program);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package benchmark;
+
+import workload.ProgramGenerator;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+
+/**
+ * 基准测试用的合成输入，内容只由参数决定，每次运行都完全相同
+ */
+final class Sources {
+    private Sources() {
+    }
+
+    /**
+     * 有 functions 个函数的合法 C0 程序，每个函数大约 900 个字符
+     * 字符串和注释由 TokenizerBenchmark 单独测，这里不生成
+     */
+    static String program(int functions) {
+        var generator = new ProgramGenerator();
+        generator.set("functions", functions);
+        generator.set("statements", 4);
+        generator.set("nesting", 2);
+        generator.set("strings", 0);
+        generator.set("comments", 0);
+        var out = new StringWriter();
+        try {
+            generator.generate(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * 恰好 chars 个字符的源码文本，以换行结尾
+     */
+    static String chars(int chars) {
+        var text = new StringBuilder(program(chars / 1000 + 1));
+        text.setLength(chars - 1);
+        return text.append('\n').toString();
+    }
+
+    /**
+     * 恰好 count 个同一类 token 的文本，不算最后的 EOF
+     * kind 是 ident、number、string 或 comment，string 和 comment 每个大约 120 个字符
+     */
+    static String tokens(String kind, int count) {
+        var sb = new StringBuilder(count * 16);
+        for (int i = 0; i < count; i++) {
+            switch (kind) {
+                case "ident":
+                    sb.append("name_").append(Integer.toString(i, 36)).append(' ');
+                    break;
+                case "number":
+                    if (i % 4 == 3) {
+                        sb.append(i).append(".25e3 ");
+                    } else {
+                        sb.append(i * 7919L).append(' ');
+                    }
+                    break;
+                case "string":
+                    sb.append('"');
+                    for (int j = 0; j < 12; j++) {
+                        sb.append("text\\t").append(j).append("abc");
+                    }
+                    sb.append("\" ");
+                    break;
+                case "comment":
+                    sb.append("//");
+                    for (int j = 0; j < 12; j++) {
+                        sb.append(" comment").append(j);
+                    }
+                    sb.append('\n');
+                    break;
+                default:
+                    throw new IllegalArgumentException(kind);
+            }
+        }
+        return sb.append('\n').toString();
+    }
+}
@@ -0,0 +1,63 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import tokenizer.StringIter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 逐个字符读 StringIter，结果是每个字符的纳秒数
+ * 每次调用从同一个缓冲区上新建一个视图，不复制字符，测到的只有 nextChar / peekChar / isEOF 本身
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringIterBenchmark {
+    private static final int CHARS = 1 << 20;
+
+    private StringIter source;
+
+    @Setup
+    public void setup() {
+        source = new StringIter(Sources.chars(CHARS));
+        source.readAll();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHARS)
+    public int nextChar() {
+        var it = new StringIter(source, 0, source.length());
+        int hash = 0;
+        while (!it.isEOF()) {
+            hash = hash * 31 + it.nextChar();
+        }
+        return hash;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHARS)
+    public int peekThenNext() {
+        var it = new StringIter(source, 0, source.length());
+        int lines = 0;
+        while (!it.isEOF()) {
+            if (it.peekChar() == '\n') {
+                lines++;
+            }
+            it.nextChar();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,74 @@
+package benchmark;
+
+import error.TokenizeError;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import tokenizer.StringIter;
+import tokenizer.TokenStream;
+import tokenizer.TokenType;
+import tokenizer.Tokenizer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 词法分析，每种输入恰好 TOKENS 个 token，结果是每个 token 的纳秒数
+ * tokenizeAll 是编译器实际走的路径，nextToken 每个 token 还要创建一个 Token 对象
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenizerBenchmark {
+    private static final int TOKENS = 100_000;
+
+    @Param({"ident", "number", "string", "comment"})
+    public String kind;
+
+    private StringIter source;
+
+    @Setup
+    public void setup() throws TokenizeError {
+        source = new StringIter(Sources.tokens(kind, TOKENS));
+        source.readAll();
+        int count = lex().size() - 1;
+        if (count != TOKENS) {
+            throw new IllegalStateException(kind + ": expected " + TOKENS + " tokens, got " + count);
+        }
+    }
+
+    private TokenStream lex() throws TokenizeError {
+        return new Tokenizer(new StringIter(source, 0, source.length())).tokenizeAll();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TOKENS)
+    public TokenStream tokenizeAll() throws TokenizeError {
+        return lex();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TOKENS)
+    public void nextToken(Blackhole bh) throws TokenizeError {
+        var tokenizer = new Tokenizer(new StringIter(source, 0, source.length()));
+        while (true) {
+            var token = tokenizer.nextToken();
+            if (token.getTokenType() == TokenType.EOF) {
+                break;
+            }
+            bh.consume(token);
+        }
+    }
+}
@@ -1,66 +1,159 @@
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
-import java.io.InputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Scanner;
 
-import analyser.Analyser;
-import analyser.FuncEntry;
+import analyser.Program;
+import driver.BatchCompiler;
+import driver.CompileServer;
+import driver.Compiler;
+import emitter.O0Writer;
 import error.CompileError;
-import instruction.Instruction;
+import error.VmError;
 import tokenizer.StringIter;
-import tokenizer.Token;
-import tokenizer.TokenType;
-import tokenizer.Tokenizer;
+import vm.Code;
+import vm.Engine;
+import vm.FusedInterpreter;
+import vm.Interpreter;
 
 public class App {
     public static void main(String[] args) throws CompileError {
         var inputFileName = "C:\\Users\\Arno_ZH\\Desktop\\workspace\\WordAnalyze\\input.txt";
         var outputFileName = "C:\\Users\\Arno_ZH\\Desktop\\workspace\\WordAnalyze\\output.txt";
-        InputStream input;
-        PrintStream output;
+        var compiler = new Compiler();
+        boolean server = false;
+        boolean batch = false;
+        boolean run = false;
+        boolean naive = false;
+        boolean jit = false;
+        boolean hash = false;
+        var files = new ArrayList<String>();
+        for (String arg : args) {
+            switch (arg) {
+                case "--server":
+                    // 常驻进程，从 stdin 读编译请求，见 CompileServer
+                    server = true;
+                    break;
+                case "--batch":
+                    // 其余参数是目录、@文件列表或源文件，见 BatchCompiler
+                    batch = true;
+                    break;
+                case "--run":
+                    // 编译后直接在内置的虚拟机上执行，不输出文件
+                    run = true;
+                    break;
+                case "--naive":
+                    // --run 时用逐条解释的 Interpreter，而不是融合指令的 FusedInterpreter
+                    naive = true;
+                    break;
+                case "--jit":
+                    // --run 时把热的函数编译成 JVM 字节码
+                    jit = true;
+                    break;
+                case "--o0":
+                    // 输出二进制的 o0 文件
+                    compiler.setBinary(true);
+                    break;
+                case "-O":
+                    // 窥孔优化
+                    compiler.setOptimize(true);
+                    break;
+                case "--opt-report":
+                    // 打印每个函数优化前后的指令条数
+                    compiler.setOptimize(true);
+                    compiler.setReportLog(System.err);
+                    break;
+                case "--parallel-lex":
+                    compiler.setParallelLex(true);
+                    break;
+                case "--hash":
+                    // 输出之后把 o0 内容的 SHA-256 打印到 stderr，可以作为缓存的键
+                    hash = true;
+                    break;
+                case "--incremental":
+                    // 在输出文件旁边保存函数体的缓存，再次编译时只分析改过的函数
+                    compiler.setIncremental(true);
+                    compiler.setReportLog(System.err);
+                    break;
+                case "--stream":
+                    // 每个函数体生成之后马上写出，大文件编译时不在内存中保留所有函数的指令
+                    compiler.setStreaming(true);
+                    break;
+                case "--parallel-analyse":
+                    // 第一遍收集签名之后并行分析各个函数体
+                    compiler.setParallelAnalyse(true);
+                    break;
+                default:
+                    files.add(arg);
+                    break;
+            }
+        }
+        if (server) {
+            new CompileServer(compiler, System.in, System.out).run();
+            return;
+        }
+        if (batch) {
+            List<Path> inputs;
+            try {
+                inputs = BatchCompiler.collectInputs(files);
+            } catch (IOException e) {
+                System.err.println("Cannot find input file.");
+                e.printStackTrace();
+                System.exit(-1);
+                return;
+            }
+            long start = System.nanoTime();
+            var results = new BatchCompiler(compiler).compileAll(inputs);
+            BatchCompiler.report(results, System.nanoTime() - start, System.err);
+            if (results.stream().anyMatch(r -> !r.isOk())) {
+                System.exit(-1);
+            }
+            return;
+        }
+        if (files.size() > 0) {
+            inputFileName = files.get(0);
+        }
+        if (files.size() > 1) {
+            outputFileName = files.get(1);
+        }
+
+        StringIter iter;
 
         try {
-            input = new FileInputStream(inputFileName);
-        } catch (FileNotFoundException e) {
+            iter = new StringIter(Paths.get(inputFileName));
+        } catch (IOException e) {
             System.err.println("Cannot find input file.");
             e.printStackTrace();
             System.exit(-1);
             return;
         }
-        try {
-            output = new PrintStream(new FileOutputStream(outputFileName));
-        } catch (FileNotFoundException e) {
-            System.err.println("Cannot open output file.");
-            e.printStackTrace();
-            System.exit(-1);
+
+        Path cacheFile = null;
+        if (compiler.isIncremental()) {
+            cacheFile = Compiler.cacheFileFor(Paths.get(run ? inputFileName : outputFileName));
+        }
+        if (compiler.isStreaming() && !run) {
+            if (hash) {
+                // 流式输出时整个程序不在内存中，算不出 hash
+                System.err.println("--hash is ignored with --stream");
+            }
+            try {
+                compiler.stream(iter, Paths.get(outputFileName), cacheFile);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.err.println(e);
+                System.exit(-1);
+            }
             return;
         }
-        Scanner scanner;
-        scanner = new Scanner(input);
-        var iter = new StringIter(scanner);
-
-        var tokenizer = tokenize(iter);
-        var analyzer = new Analyser(tokenizer);
-        List<Instruction> instructions;
-
-        HashMap<String, FuncEntry> funcTable= new HashMap<>();
-        var tokens = new ArrayList<Token>();
+        Program program;
         try {
-            funcTable = analyzer.analyse();
-            /*TODO:输出内容需要进行修改嗷*/
-            while (true) {
-                var token = tokenizer.nextToken();
-                if (token.getTokenType().equals(TokenType.EOF)) {
-                    break;
-                }
-                tokens.add(token);
-            }
+            program = compiler.analyse(iter, cacheFile);
         } catch (Exception e) {
             // 遇到错误不输出，直接退出
             e.printStackTrace();
@@ -68,17 +161,55 @@ public class App {
             System.exit(-1);
             return;
         }
-        for (FuncEntry funcEntry:funcTable.values()){
-            for (Instruction instruction : funcEntry.getInstructions()) {
-                /*TODO:输出内容需要进行修改嗷*/
-                output.println(instruction.toString());
-            }
+        if (run) {
+            runProgram(program, naive, jit);
+            return;
+        }
+        try {
+            compiler.write(program, Paths.get(outputFileName));
+        } catch (IOException e) {
+            System.err.println("Cannot open output file.");
+            e.printStackTrace();
+            System.exit(-1);
+            return;
+        }
+        if (hash) {
+            System.err.println("sha256 " + O0Writer.hash(program));
         }
 
 //        for (Token token : tokens) {
 //            output.println(token.toString());
 //        }
     }
+
+    private static void runProgram(Program program, boolean naive, boolean jit) {
+        var code = Code.load(program);
+        var out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)), false);
+        Engine engine;
+        if (naive) {
+            engine = new Interpreter(code, System.in, out);
+        } else {
+            var fused = new FusedInterpreter(code, System.in, out);
+            if (jit) {
+                fused.enableJit();
+            }
+            engine = fused;
+        }
+        long start = System.nanoTime();
+        try {
+            engine.run();
+        } catch (VmError e) {
+            System.err.println(e);
+            System.exit(-1);
+        }
+        long elapsed = System.nanoTime() - start;
+        // 开了 JIT 时只统计解释执行的指令
+        System.err.printf("executed %d instructions in %d ms (%.1f M/s)%n", engine.getSteps(),
+                elapsed / 1000000, engine.getSteps() * 1000.0 / Math.max(elapsed, 1));
+        if (jit && !naive) {
+            System.err.printf("jit compiled %d functions%n", ((FusedInterpreter) engine).getCompiledCount());
+        }
+    }
 //
 //if (result.getBoolean("tokenize")) {
 //        // tokenize
@@ -100,9 +231,4 @@ public class App {
 //        for (Token token : tokens) {
 //            output.println(token.toString());
 //        }
-
-    private static Tokenizer tokenize(StringIter iter) {
-        var tokenizer = new Tokenizer(iter);
-        return tokenizer;
-    }
 }
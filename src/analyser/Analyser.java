@@ -4,41 +4,68 @@ import error.AnalyzeError;
 import error.CompileError;
 import error.ErrorCode;
 import error.ExpectedTokenError;
-import error.TokenizeError;
-import instruction.Instruction;
-import instruction.Operation;
-import tokenizer.Token;
+import instruction.CodeBuffer;
+import ir.Ast;
+import ir.CodeGen;
+import tokenizer.TokenStream;
 import tokenizer.TokenType;
 import tokenizer.Tokenizer;
 import util.Pos;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * 语法分析和语义检查，分两遍进行
+ * 第一遍按顺序分析全局变量和所有函数的签名，函数体只是跳过，同时把其中的字符串常量和库函数名放进全局变量表；
+ * 第二遍分析各个函数体，这时共享的符号表都只读，每个函数体可以在线程池上独立分析
+ * 每个函数先建成一棵 Ast，整个函数分析完之后再交给 CodeGen 生成指令；全局变量的初始化语句最后生成 _start
+ */
 public final class Analyser {
 
     Tokenizer tokenizer;
-//    /** 指令集 */
-//    ArrayList<Instruction> instructions = new ArrayList<>();;
-    /** 当前偷看的 token */
-    Token peekedToken = null;
-    /** 供全局变量使用的指令集 */
-    ArrayList<Instruction> globalInstructions = new ArrayList<>();
-
-    /** 局部变量表 */
-    HashMap<String, SymbolEntry> localSymbolTable;
-    /** 参数表 */
+    /** 整个文件的 token 序列，按下标访问 */
+    TokenStream tokens;
+    /** 当前 token 在 tokens 中的下标 */
+    int cursor = 0;
+    /** 全局变量的初始化语句 */
+    Ast globalAst = new Ast();
+    /** 全局初始化语句链表的头和尾 */
+    int globalFirst = Ast.NONE;
+    int globalLast = Ast.NONE;
+    /** 正在分析的语法树，函数体内为这个函数自己的 Ast，否则为 globalAst */
+    Ast ast = globalAst;
+
+    /** 函数体中的参数和局部变量，参数在最外层，每个代码块一层 */
+    SymbolTable locals;
+    /** 参数表，第一遍分析签名时使用，之后随函数一起放进函数表 */
     HashMap<String,SymbolEntry> paramTable;
-    /** 全局变量表 */
+    /** 全局变量表，包括函数名和字符串 */
     HashMap<String, SymbolEntry> globalSymbolTable = new HashMap<>();
+    /** 全局的变量和常量，按名字编号查找 */
+    SymbolTable globalScope = new SymbolTable();
+    /** 按偏移顺序排列的全局变量，输出 o0 时使用 */
+    ArrayList<SymbolEntry> globals = new ArrayList<>();
+    /** 字符串常量和库函数名在全局变量表中的偏移，相同的内容只占一项 */
+    HashMap<String,Integer> stringOffsets = new HashMap<>();
     /** 函数表 */
-    HashMap<String,FuncEntry> funcTable;
-    /** 函数体内部使用指令集 */
-    ArrayList<Instruction> localInstructions;
+    FuncTable funcTable;
 
     /** 下一个变量的栈偏移 */
     int nextGlobalOffset = 0;
     /** 下一个局部变量的栈偏移 */
     int nextLocOff = 0;
+    /** 局部变量同时占用的最多 slot 数，即函数的帧大小；离开代码块时它的 slot 会还回去 */
+    int frameSize = 0;
+    /** 这以下的 slot 不再还回去：没有初值的变量读到的必须是帧清零后的值，不能让别的变量用过 */
+    int pinnedLocOff = 0;
+    /** 函数体中声明的局部变量个数 */
+    int declaredLocals = 0;
     /** 下一个函数的栈偏移 */
     int nextFuncOff = 0;
     /** 下一个参数变量的栈偏移 */
@@ -46,68 +73,199 @@ public final class Analyser {
 
     /** 判断当前状态实在函数体中还是函数体外 */
     boolean isInFunc = false;
+    /** 当前函数的返回类型 */
+    int curRetType = Ast.VOID;
+    /** 当前函数返回值占的 slot 数，参数的偏移要跳过它 */
+    int curRetSlots = 0;
+    /** 当前所在循环的层数，break 和 continue 只能出现在循环中 */
+    int loopDepth = 0;
+
+    /** 第一遍记下的函数体，按函数偏移排列 */
+    ArrayList<FunctionBody> bodies = new ArrayList<>();
+    /** 不为 null 时在这个线程池上并行分析函数体 */
+    ForkJoinPool pool;
+    /** 分析函数体的 Analyser 正在分析的函数体，它只读共享的符号表，不能再往全局变量表里加东西 */
+    FunctionBody body;
+    /** 不为 null 时做增量编译，键没有变的函数体直接用缓存里的指令 */
+    BodyCache cache;
+    /** 不为 null 时每个函数体一生成就交给它，然后释放 */
+    FunctionSink sink;
+    /** 增量编译时每个名字的编号 -> 名字和它在全局的含义，第二遍中只读 */
+    byte[][] nameKeys;
+    /** 增量编译时每个名字的编号 -> 同名全局变量在 globalScope 中的记录号，没有时是 NONE */
+    int[] globalRecords;
+    /** 增量编译时每个名字的编号 -> 同名函数的偏移，没有时是 -1 */
+    int[] functionOffsets;
+
+    /**
+     * 第一遍跳过的函数体
+     */
+    private static final class FunctionBody {
+        final FuncEntry function;
+        final int retType;
+        /** 函数体左大括号的下标 */
+        final int start;
+        /** 函数体右大括号的下标，跳过函数体之后才知道 */
+        int end;
+        /** 函数之前声明的全局变量个数，函数体只能用 globalScope 中记录号比它小的 */
+        final int visibleGlobals;
+
+        FunctionBody(FuncEntry function, int retType, int start, int visibleGlobals) {
+            this.function = function;
+            this.retType = retType;
+            this.start = start;
+            this.visibleGlobals = visibleGlobals;
+        }
+    }
 
     public Analyser(Tokenizer tokenizer) {
         this.tokenizer = tokenizer;
-        this.funcTable = new HashMap<>();
+        this.funcTable = new FuncTable();
         /*TODO:到底需要输出什么东西？应该是一个个的函数，初步感觉是输出函数表*/
     }
 
-    public HashMap<String, FuncEntry> analyse() throws CompileError {
+    public Analyser(TokenStream tokens) {
+        this.tokens = tokens;
+        this.funcTable = new FuncTable();
+    }
+
+    /**
+     * 分析 body 的 Analyser，和 parent 共享 token 序列和全局的符号表，其余状态都是自己的
+     */
+    private Analyser(Analyser parent, FunctionBody body) {
+        this.tokens = parent.tokens;
+        this.globalSymbolTable = parent.globalSymbolTable;
+        this.globalScope = parent.globalScope;
+        this.globals = parent.globals;
+        this.stringOffsets = parent.stringOffsets;
+        this.funcTable = parent.funcTable;
+        this.body = body;
+        this.cursor = body.start;
+        this.isInFunc = true;
+        this.ast = new Ast();
+        this.paramTable = body.function.getParamSymbolEntry();
+        this.curRetType = body.retType;
+        this.curRetSlots = body.function.getRet_num();
+        this.locals = new SymbolTable();
+        this.locals.push();
+        var names = tokens.getNameTable();
+        for (var param : paramTable.entrySet()){
+            var entry = param.getValue();
+            locals.declare(names.lookup(param.getKey()),SymbolTable.PARAM,entry.getStackOffset(),entry.getVariableType(),entry.isConstant(),true);
+        }
+    }
+
+    /**
+     * 设置分析函数体用的线程池，为 null 时按顺序分析
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * 设置接收函数体的 sink，为 null 时所有函数体都留在函数表里
+     */
+    public void setSink(FunctionSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * 设置增量编译用的缓存，为 null 时分析所有的函数体
+     */
+    public void setCache(BodyCache cache) {
+        this.cache = cache;
+    }
+
+    public FuncTable analyse() throws CompileError {
+        if (tokens == null) {
+            //一次性把整个文件切分成 token，之后按下标读取
+            tokens = tokenizer.tokenizeAll();
+        }
         analyseProgram();
         /*TODO:需要重构返回值*/
         return funcTable;
     }
 
-    private Token peek() throws TokenizeError {
-        if (peekedToken == null) {
-            peekedToken = tokenizer.nextToken();
+    public ArrayList<SymbolEntry> getGlobals() {
+        return globals;
+    }
+
+    /**
+     * 返回当前 token 的下标，注释会被直接跳过
+     */
+    private int peek() {
+        while (tokens.type(cursor) == TokenType.COMMENT) {
+            cursor++;
         }
-        return peekedToken;
+        return cursor;
     }
 
-    private Token next() throws TokenizeError {
-        if (peekedToken != null) {
-            var token = peekedToken;
-            peekedToken = null;
-            return token;
-        } else {
-            return tokenizer.nextToken();
+    private int next() {
+        int index = peek();
+        if (tokens.type(index) != TokenType.EOF) {
+            cursor++;
         }
+        return index;
     }
 
-    private boolean check(TokenType tt) throws TokenizeError {
-        var token = peek();
-        return token.getTokenType() == tt;
+    private boolean check(TokenType tt) {
+        return tokens.type(peek()) == tt;
     }
-    private Token nextIf(TokenType tt) throws TokenizeError {
-        var token = peek();
-        if (token.getTokenType() == tt) {
+    /**
+     * 如果下一个 token 的类型是 tt，则前进一个 token 并返回它的下标，否则返回 -1
+     */
+    private int nextIf(TokenType tt) {
+        if (check(tt)) {
             return next();
         } else {
-            return null;
+            return -1;
+        }
+    }
+
+    /**
+     * 当前 token 之后那个 token 的下标，用来区分赋值和其他表达式
+     */
+    private int peekSecond() {
+        int index = peek();
+        if (tokens.type(index) == TokenType.EOF) {
+            return index;
+        }
+        index++;
+        while (tokens.type(index) == TokenType.COMMENT) {
+            index++;
         }
+        return index;
     }
+
     /**
      * 如果下一个 token 的类型是 tt，则前进一个 token 并返回，否则抛出异常
      *
      * @param tt 类型
-     * @return 这个 token
+     * @return 这个 token 的下标
      * @throws CompileError 如果类型不匹配
      */
-    private Token expect(TokenType tt) throws CompileError {
-        var token = peek();
-        if (token.getTokenType() == tt) {
+    private int expect(TokenType tt) throws CompileError {
+        int index = peek();
+        if (tokens.type(index) == tt) {
             return next();
         } else {
-            throw new ExpectedTokenError(tt, token);
+            throw new ExpectedTokenError(tt, tokens.token(index));
         }
     }
 
+    /**
+     * 某个 token 的起始位置（报错用）
+     */
+    private Pos posOf(int index) {
+        return tokens.startPos(index);
+    }
+
     private int getNextGlobalOffset() {
         return this.nextGlobalOffset++;
     }
     private int getNextLocOff(){
+        declaredLocals++;
+        frameSize = Math.max(frameSize,nextLocOff+1);
         return this.nextLocOff++;
     }
     private int getNextFuncOff(){
@@ -126,14 +284,17 @@ public final class Analyser {
      * @param curPos        当前 token 的位置（报错用）
      * @throws AnalyzeError 如果重复定义了则抛异常
      */
-    private void addLocalSymbol(String name, boolean isInitialized, boolean isConstant, int variableType,Pos curPos) throws AnalyzeError {
-        if (this.localSymbolTable.get(name) != null) {
-            throw new AnalyzeError(ErrorCode.DuplicateDeclaration, curPos);
-        }else if (variableType == 0){
+    private int addLocalSymbol(int name, boolean isInitialized, boolean isConstant, int variableType,Pos curPos) throws AnalyzeError {
+        if (variableType == 0){
             throw new AnalyzeError(ErrorCode.InvalidInput,curPos);
-        }else {
-            this.localSymbolTable.put(name, new SymbolEntry(isConstant, isInitialized, getNextLocOff(),variableType));
         }
+        //同一个代码块里不能重名，内层的代码块可以遮住外层的名字
+        int symbol = this.locals.declare(name, SymbolTable.LOCAL, nextLocOff, variableType, isConstant, isInitialized);
+        if (symbol == SymbolTable.NONE) {
+            throw new AnalyzeError(ErrorCode.DuplicateDeclaration, curPos);
+        }
+        getNextLocOff();
+        return symbol;
     }
 
     private void addParamSymbol(String name,boolean isConstant, int variableType,Pos curPos) throws AnalyzeError {
@@ -154,103 +315,56 @@ public final class Analyser {
         }else if (type == 0&&!isStr&&!isFunc){
             throw new AnalyzeError(ErrorCode.EOF,curPos);
         }else {
+            SymbolEntry entry;
             if (isFunc) {
                 //对于函数或者String，value为其全拼
-                this.globalSymbolTable.put(name,new SymbolEntry(true,getNextGlobalOffset(),name.length(),name,type));
+                entry = new SymbolEntry(true,getNextGlobalOffset(),name.length(),name,type);
+                this.globalSymbolTable.put(name,entry);
             }else if(isStr){
                 //把String的key值设为空字符串，防止在检索funcName时造成干扰
-                this.globalSymbolTable.put("",new SymbolEntry(true,getNextGlobalOffset(),name.length(),name,0));
+                entry = new SymbolEntry(true,getNextGlobalOffset(),name.length(),name,0);
+                this.globalSymbolTable.put("",entry);
             }else {
                 //对于变量和常量，value为0，这里用空字符串表示
-                this.globalSymbolTable.put(name, new SymbolEntry(isConstant, getNextGlobalOffset(), 8, "",type));
+                entry = new SymbolEntry(isConstant, getNextGlobalOffset(), 8, "",type);
+                this.globalSymbolTable.put(name, entry);
             }
+            this.globals.add(entry);
         }
     }
 
-    private void addFuncSymbol(String name, int func_global_num,int ret_num,int param_num, int locVarNum, int bodyCnt, ArrayList<Instruction> instructions,HashMap<String,SymbolEntry> paramSymbolEntry,Pos curPos)throws AnalyzeError{
+    private void addFuncSymbol(String name, int func_global_num,int ret_num,int param_num, int locVarNum, int bodyCnt, CodeBuffer instructions,HashMap<String,SymbolEntry> paramSymbolEntry,Pos curPos)throws AnalyzeError{
         if (this.funcTable.get(name)!=null){
             throw new AnalyzeError(ErrorCode.DuplicateDeclaration,curPos);
         }else {
             //func_global_num为函数在全局变量表中的offset，也即为func_name，是要最终输出为一个slot的东西。一个slot为1字节，即8位2进制，2位16进制
-            this.funcTable.put(name,new FuncEntry(func_global_num,ret_num,param_num,locVarNum,bodyCnt,instructions,getNextFuncOff(),paramSymbolEntry));
-        }
-    }
-
-
-    /**
-     * 设置符号为已赋值
-     *
-     * @param name   符号名称
-     * @param curPos 当前位置（报错用）
-     * @throws AnalyzeError 如果未定义则抛异常
-     */
-    private void initializeLocalSymbol(String name, Pos curPos) throws AnalyzeError {
-        var entry = this.localSymbolTable.get(name);
-        if (entry == null) {
-            throw new AnalyzeError(ErrorCode.NotDeclared, curPos);
-        } else {
-            entry.setInitialized(true);
-        }
-    }
-
-    /**
-     * 获取变量在栈上的偏移
-     *
-     * @param name   符号名
-     * @param curPos 当前位置（报错用）
-     * @return 栈偏移
-     * @throws AnalyzeError
-     */
-    private int getOffset(String name, Pos curPos) throws AnalyzeError {
-        var entry = this.localSymbolTable.get(name);
-        if (entry == null) {
-            throw new AnalyzeError(ErrorCode.NotDeclared, curPos);
-        } else {
-            return entry.getStackOffset();
+            this.funcTable.add(name,new FuncEntry(func_global_num,ret_num,param_num,locVarNum,bodyCnt,instructions,getNextFuncOff(),paramSymbolEntry));
         }
     }
 
-    /**
-     * 获取变量是否是常量
-     *
-     * @param name   符号名
-     * @param curPos 当前位置（报错用）
-     * @return 是否为常量
-     * @throws AnalyzeError
-     */
-    private boolean isConstant(String name, Pos curPos) throws AnalyzeError {
-        var entry = this.localSymbolTable.get(name);
-        if (entry == null) {
-            throw new AnalyzeError(ErrorCode.NotDeclared, curPos);
-        } else {
-            return entry.isConstant();
-        }
-    }
 
     private void analyseProgram() throws CompileError {
         // 程序
         //program -> item*
         //      item -> function | decl_stmt
-        //TODO _start()
-
-
-
-
-        addFuncSymbol("_start",-1,0, 0,0,-1,null,null,peek().getStartPos());
+        addFuncSymbol("_start",-1,0, 0,0,-1,null,null,posOf(peek()));
         while(!check(TokenType.EOF)){
             analyseItem();
         }
-        if(funcTable.get("main")==null){
-            throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
+        analyseBodies();
+        var mainFunc = funcTable.get("main");
+        if(mainFunc==null){
+            throw new AnalyzeError(ErrorCode.InvalidInput,posOf(peek()));
         }
 
-        int mainOff = funcTable.get("main").funcOffset;
-        globalInstructions.add(new Instruction(Operation.stackalloc,1));
-        globalInstructions.add(new Instruction(Operation.call,mainOff));
-        globalInstructions.add(new Instruction(Operation.popn,1));
+        //_start 最后调用 main，有返回值的话丢掉
+        int mainType = globalSymbolTable.get("main").getVariableType();
+        int callMain = globalAst.add(Ast.CALL,mainType,mainFunc.getFuncOffset(),Ast.NONE,mainFunc.getRet_num());
+        appendGlobalStmt(globalAst.add(Ast.EXPR,Ast.VOID,callMain));
 
-        addGlobalSymbol("_start",true,false,true,0,peek().getStartPos());
-        int _startGlobalOff = globalSymbolTable.size()-1;
+        addGlobalSymbol("_start",true,false,true,0,posOf(peek()));
+        int _startGlobalOff = globals.size()-1;
+        var globalInstructions = CodeGen.start(globalAst,globalAst.add(Ast.BLOCK,Ast.VOID,globalFirst));
         funcTable.get("_start").setFunc_name(_startGlobalOff);
         funcTable.get("_start").setBodyCnt(globalInstructions.size());
         funcTable.get("_start").setInstructions(globalInstructions);
@@ -258,70 +372,301 @@ public final class Analyser {
         expect(TokenType.EOF);
     }
 
+    private void appendGlobalStmt(int stmt){
+        if (stmt == Ast.NONE){
+            return;
+        }
+        if (globalFirst == Ast.NONE){
+            globalFirst = stmt;
+        }else{
+            globalAst.setNext(globalLast,stmt);
+        }
+        globalLast = stmt;
+    }
+
     // 程序
     //item -> function | decl_stmt
     //program -> item*
-    String CurfuncName = "";
     private void analyseItem() throws CompileError {
-        if(nextIf(TokenType.FN_KW)!=null){
+        if(nextIf(TokenType.FN_KW)>=0){
             //标记现在处于在函数中的状态！
             isInFunc = true;
             //# 函数
             //function -> 'fn' IDENT '(' function_param_list? ')' '->' ty block_stmt
             //      function_param -> 'const'? IDENT ':' ty
             //      function_param_list -> function_param (',' function_param)*
-            Pos curPos = peek().getStartPos();
+            Pos curPos = posOf(peek());
             //首先是函数名
             var nameToken = expect(TokenType.IDENT);
-            String func_name = (String) nameToken.getValue();
-            CurfuncName = func_name;
+            String func_name = tokens.name(nameToken);
             expect(TokenType.L_PAREN);
-            //这里是定义一个参数表，局部变量表，以及函数内的指令集，参数表和局部变量表应该会在函数编译结束后释放，指令集则被保存至函数表中
-            localInstructions = new ArrayList<>();
-            localSymbolTable = new HashMap<>();
+            //参数表随函数一起放进函数表，第二遍分析函数体时使用
             paramTable = new HashMap<>();
-            //      function_param -> 'const'? IDENT ':' ty
-            //      function_param_list -> function_param (',' function_param)*
+            //参数的偏移在每个函数里都从 0 开始
+            nextParamOff = 0;
             if(check(TokenType.CONST_KW)||check(TokenType.IDENT)){
                 analyseFunctionParamList();
             }
             expect(TokenType.R_PAREN);
             expect(TokenType.ARROW);
-            int ret_num = analyseTy();
-            //要将函数加入到全局变量表里面嗷
-            addGlobalSymbol(func_name,true,false,true,ret_num,curPos);
-            if (ret_num==2){
-                //Todo:Double;
-                ret_num = 1;
-            }
-            //这里是进入到一个函数体里面 {body}
-            analyseBlockStmt();
-            //将函数加入到函数表里面嗷
-            //参数表的使命应该已经完成了，要加入到函数表里面
-            addFuncSymbol(func_name,globalSymbolTable.get(func_name).getStackOffset(),ret_num,paramTable.size(), localSymbolTable.size(), localInstructions.size(),localInstructions,paramTable,curPos);
-            //这里应该已经分析函数完函数了
+            int retType = analyseTy();
+            //要将函数加入到全局变量表里面
+            addGlobalSymbol(func_name,true,false,true,retType,curPos);
+            //函数体之前就加入函数表，函数体里可以调用自己和前面的函数，不能调用后面的；double 也只占一个 slot
+            addFuncSymbol(func_name,globalSymbolTable.get(func_name).getStackOffset(),retType == Ast.VOID ? 0 : 1,paramTable.size(),0,0,null,paramTable,curPos);
+            bodies.add(new FunctionBody(funcTable.get(func_name),retType,peek(),globalScope.size()));
+            skipFunctionBody();
             isInFunc = false;
-            CurfuncName = "";
         }else if(check(TokenType.LET_KW)||check(TokenType.CONST_KW)){
             //decl_stmt -> let_decl_stmt | const_decl_stmt
-            //  let_decl_stmt -> 'let' IDENT ':' ty ('=' expr)? ';'
-            //  const_decl_stmt -> 'const' IDENT ':' ty '=' expr ';'
-            if (check(TokenType.LET_KW)){
-                analyseLetDeclStmt();
-            }else if (check(TokenType.CONST_KW)){
-                analyseConstDeclStmt();
-            }
+            appendGlobalStmt(analyseDeclStmt());
         }else{
-            throw new AnalyzeError(ErrorCode.InvalidInput,next().getStartPos());
+            throw new AnalyzeError(ErrorCode.InvalidInput,posOf(next()));
         }
     }
 
+    /**
+     * 第一遍：用大括号配对跳过函数体，按出现的顺序把其中的字符串常量和库函数名放进全局变量表
+     * 括号不配对时直接分析这个函数体，报出具体的错误
+     */
+    private void skipFunctionBody() throws CompileError{
+        var pending = bodies.get(bodies.size()-1);
+        expect(TokenType.L_BRACE);
+        int depth = 1;
+        while (depth > 0){
+            var index = next();
+            switch (tokens.type(index)){
+                case L_BRACE:
+                    depth++;
+                    break;
+                case R_BRACE:
+                    depth--;
+                    pending.end = index;
+                    break;
+                case STRING_LITERAL:
+                    internString(tokens.string(index),posOf(index));
+                    break;
+                case IDENT:
+                    if (isStandardName(tokens.name(index))&&check(TokenType.L_PAREN)){
+                        internString(tokens.name(index),posOf(index));
+                    }
+                    break;
+                case EOF:
+                    new Analyser(this,pending).analyseFunctionBody();
+                    throw new ExpectedTokenError(TokenType.R_BRACE,tokens.token(index));
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 第二遍：分析所有函数体，可以并行时在线程池上进行
+     * 并行时按函数的顺序等待结果，报出的总是最靠前的函数中的错误
+     */
+    private void analyseBodies() throws CompileError{
+        if (cache != null){
+            buildNameKeys();
+        }
+        if (pool == null || bodies.size() < 2){
+            var key = new BodyCache.KeyBuilder();
+            for (var pending : bodies){
+                analyseBody(pending,key);
+                deliver(pending.function);
+            }
+            return;
+        }
+        //函数很多的时候按连续的区间分组，每组一个任务，组内按顺序分析
+        int count = Math.min(bodies.size(), pool.getParallelism() * 8);
+        List<Callable<Void>> tasks = new ArrayList<>(count);
+        List<List<FunctionBody>> groups = new ArrayList<>(count);
+        for (int i = 0; i < count; i++){
+            var group = bodies.subList(bodies.size() * i / count, bodies.size() * (i + 1) / count);
+            groups.add(group);
+            tasks.add(() -> {
+                var key = new BodyCache.KeyBuilder();
+                for (var pending : group){
+                    analyseBody(pending,key);
+                }
+                return null;
+            });
+        }
+        //逐个提交而不是 invokeAll，前面的组完成后就可以交给 sink，不必等所有组都完成
+        List<Future<Void>> results = new ArrayList<>(count);
+        for (var task : tasks){
+            results.add(pool.submit(task));
+        }
+        for (int i = 0; i < count; i++){
+            await(results.get(i));
+            for (var pending : groups.get(i)){
+                deliver(pending.function);
+            }
+        }
+    }
+
+    /**
+     * 把生成好的函数体按 funcOffset 的顺序交给 sink，之后就不再持有它的指令
+     */
+    private void deliver(FuncEntry function){
+        if (sink == null){
+            return;
+        }
+        try {
+            sink.accept(function);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        function.setInstructions(null);
+    }
+
+    private static void await(Future<Void> future) throws CompileError{
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Error("interrupted while analysing", e);
+        } catch (ExecutionException e) {
+            //ForkJoinPool 会把任务里抛出的受检异常包上几层 RuntimeException
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof CompileError) {
+                    throw (CompileError) cause;
+                }
+            }
+            throw new Error("analysis failed", e.getCause());
+        }
+    }
+
+    /**
+     * 有缓存时先按键查找，找到了就直接用缓存里的指令，否则分析之后放进缓存
+     */
+    private void analyseBody(FunctionBody pending, BodyCache.KeyBuilder keyBuilder) throws CompileError{
+        if (cache == null){
+            new Analyser(this,pending).analyseFunctionBody();
+            return;
+        }
+        var key = bodyKey(pending,keyBuilder);
+        var funcEntry = pending.function;
+        var cached = cache.lookup(key);
+        if (cached != null){
+            funcEntry.setLocVarNum(cached.locVarNum);
+            funcEntry.setDeclaredLocals(cached.declaredLocals);
+            funcEntry.setBodyCnt(cached.instructions.size());
+            funcEntry.setInstructions(cached.instructions.copy());
+            return;
+        }
+        new Analyser(this,pending).analyseFunctionBody();
+        cache.store(key,funcEntry.getLocVarNum(),funcEntry.getDeclaredLocals(),funcEntry.getInstructions());
+    }
+
+    /**
+     * 函数体的键：自己的签名、函数体的 token 序列，以及每个标识符在全局的含义
+     * 局部变量可能和全局的名字重名，这时多算进去一个依赖，只会让缓存保守一些
+     */
+    private byte[] bodyKey(FunctionBody pending, BodyCache.KeyBuilder key){
+        key.reset();
+        var function = pending.function;
+        key.putInt(pending.retType).putInt(function.getRet_num());
+        for (var param : function.getParamSymbolEntry().entrySet()){
+            var entry = param.getValue();
+            key.putString(param.getKey()).putInt(entry.getStackOffset()).putInt(entry.getVariableType()).putByte(entry.isConstant() ? 1 : 0);
+        }
+        for (int i = pending.start; i <= pending.end; i++){
+            var type = tokens.type(i);
+            if (type == TokenType.COMMENT){
+                continue;
+            }
+            key.putByte(type.ordinal());
+            switch (type){
+                case IDENT: {
+                    int id = tokens.nameId(i);
+                    key.put(nameKeys[id]);
+                    //全局变量在函数之前还是之后声明，决定了函数体里能不能用它
+                    int record = globalRecords[id];
+                    if (record != SymbolTable.NONE){
+                        key.putByte(record < pending.visibleGlobals ? 1 : 0);
+                    }
+                    //函数也一样，后面定义的函数不能调用
+                    if (functionOffsets[id] >= 0){
+                        key.putByte(functionOffsets[id] <= function.getFuncOffset() ? 1 : 0);
+                    }
+                    break;
+                }
+                case STRING_LITERAL:
+                    key.putString(tokens.string(i)).putInt(stringOffsets.get(tokens.string(i)));
+                    break;
+                case UINT_LITERAL:
+                case DOUBLE_LITERAL:
+                case CHAR_LITERAL:
+                    key.putLong(tokens.payload(i));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return key.digest();
+    }
+
+    /**
+     * 第二遍开始前把每个名字连同它在全局的含义编码好，计算每个函数体的键时直接拼接
+     */
+    private void buildNameKeys(){
+        var names = tokens.getNameTable();
+        nameKeys = new byte[names.size()][];
+        globalRecords = new int[names.size()];
+        functionOffsets = new int[names.size()];
+        var key = new BodyCache.KeyBuilder();
+        for (int id = 0; id < names.size(); id++){
+            globalRecords[id] = globalScope.find(id);
+            var function = funcTable.get(names.name(id));
+            functionOffsets[id] = function == null ? -1 : function.getFuncOffset();
+            key.reset();
+            key.putString(names.name(id));
+            putDependency(key,names.name(id));
+            nameKeys[id] = key.toByteArray();
+        }
+    }
+
+    /**
+     * 名字在全局的含义：函数的偏移和签名、全局变量的偏移、类型和常量值，或者库函数名的偏移
+     */
+    private void putDependency(BodyCache.KeyBuilder key, String name){
+        var function = funcTable.get(name);
+        if (function != null){
+            key.putByte('F').putInt(function.getFuncOffset()).putInt(globalSymbolTable.get(name).getVariableType()).putInt(function.getRet_num());
+            for (var param : function.getParamSymbolEntry().values()){
+                key.putInt(param.getStackOffset()).putInt(param.getVariableType());
+            }
+            return;
+        }
+        var global = globalSymbolTable.get(name);
+        if (global != null){
+            key.putByte('G').putInt(global.getStackOffset()).putInt(global.getVariableType()).putString(global.getGlobal_value())
+                    .putByte(global.isConstant() ? 1 : 0).putByte(global.hasConstantValue() ? 1 : 0).putLong(global.getConstantValue());
+            return;
+        }
+        var offset = stringOffsets.get(name);
+        key.putByte('S').putInt(offset == null ? -1 : offset);
+    }
+
+    /**
+     * 分析一个函数体：先建成 Ast，再生成指令
+     */
+    private void analyseFunctionBody() throws CompileError{
+        int block = analyseBlockStmt();
+        var instructions = CodeGen.function(ast,block);
+        var funcEntry = body.function;
+        funcEntry.setLocVarNum(frameSize);
+        funcEntry.setDeclaredLocals(declaredLocals);
+        funcEntry.setBodyCnt(instructions.size());
+        funcEntry.setInstructions(instructions);
+    }
+
     //# 函数
     //function_param -> 'const'? IDENT ':' ty
     //function_param_list -> function_param (',' function_param)*
     private void analyseFunctionParamList() throws CompileError{
         analyseFunctionParam();
-        while(nextIf(TokenType.COMMA)!=null){
+        while(nextIf(TokenType.COMMA)>=0){
             analyseFunctionParam();
         }
     }
@@ -333,8 +678,8 @@ public final class Analyser {
             isConst = true;
         }
         var paramToken = expect(TokenType.IDENT);
-        Pos curPos = paramToken.getStartPos();
-        String paramName = (String) paramToken.getValue();
+        Pos curPos = posOf(paramToken);
+        String paramName = tokens.name(paramToken);
         expect(TokenType.COLON);
         int variableType = analyseTy();
         //将函数参数加入到变量表中
@@ -352,18 +697,18 @@ public final class Analyser {
 
         if(check(TokenType.IDENT)){
             var nameToken = next();
-            String name =(String) nameToken.getValue();
+            String name =tokens.name(nameToken);
             if (name.equals("void")){
-                return 0;
+                return Ast.VOID;
             }else if(name.equals("int")){
-                return 1;
+                return Ast.INT;
             }else if (name.equals("double")){
-                return 2;
+                return Ast.DOUBLE;
             }else{
-                throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
+                throw new AnalyzeError(ErrorCode.InvalidInput,posOf(peek()));
             }
         }else{
-            throw new AnalyzeError(ErrorCode.InvalidInput,next().getStartPos());
+            throw new AnalyzeError(ErrorCode.InvalidInput,posOf(next()));
         }
     }
 
@@ -378,307 +723,243 @@ public final class Analyser {
 //    | return_stmt
 //    | block_stmt
 //    | empty_stmt
-    boolean isBreak = false, isContinue = false, isRet = false;
-    private void analyseBlockStmt() throws CompileError{
+    //以下语句函数都返回建好的语句节点，没有需要执行的内容时返回 Ast.NONE
+    private int analyseBlockStmt() throws CompileError{
         expect(TokenType.L_BRACE);
+        locals.push();
+        //作用域不相交的代码块共用同一段 slot
+        int blockLocOff = nextLocOff;
+        int first = Ast.NONE;
+        int last = Ast.NONE;
         while(checkNextIfStmt()){
-            analyseStmt();
+            int stmt = analyseStmt();
+            if (stmt == Ast.NONE){
+                continue;
+            }
+            if (first == Ast.NONE){
+                first = stmt;
+            }else{
+                ast.setNext(last,stmt);
+            }
+            last = stmt;
         }
         expect(TokenType.R_BRACE);
+        locals.pop();
+        nextLocOff = Math.max(blockLocOff,pinnedLocOff);
+        return ast.add(Ast.BLOCK,Ast.VOID,first);
     }
-    private void analyseStmt() throws CompileError{
+    private int analyseStmt() throws CompileError{
         if(checkNextIfExpr()){
             //    expr_stmt -> expr ';'
-            analyseExpr();
+            int expr = analyseExpr();
             expect(TokenType.SEMICOLON);
+            return ast.add(Ast.EXPR,Ast.VOID,expr);
         }else if (check(TokenType.LET_KW)||check(TokenType.CONST_KW)){
             //    decl_stmt -> let_decl_stmt | const_decl_stmt
-            //        let_decl_stmt -> 'let' IDENT ':' ty ('=' expr)? ';'
-            //        const_decl_stmt -> 'const' IDENT ':' ty '=' expr ';'
-            /* 下面这个是定义语句 */
-            analyseDeclStmt();
+            return analyseDeclStmt();
         }else if (check(TokenType.IF_KW)){
             //    if_stmt -> 'if' expr block_stmt ('else' 'if' expr block_stmt)* ('else' block_stmt)?
-            analyseIfStmt();
+            return analyseIfStmt();
         }else if(check(TokenType.WHILE_KW)){
             //    while_stmt -> 'while' expr block_stmt
-            analyseWhile();
+            return analyseWhile();
         }else if(check(TokenType.BREAK_KW)){
             //    break_stmt -> 'break' ';'
-            isBreak = true;
-            analyseBreakStmt();
-            if (isInFunc){
-                localInstructions.add(new Instruction(Operation.br,0));
-            }
+            return analyseBreakStmt();
         }else if(check(TokenType.CONTINUE_KW)){
             //    continue_stmt -> 'continue' ';'
-            isContinue = true;
-            analyseContinueStmt();
+            return analyseContinueStmt();
         }else if (check(TokenType.RETURN_KW)){
             //    return_stmt -> 'return' expr? ';'
-            isRet = true;
-            analyseReturnStmt();
+            return analyseReturnStmt();
         }else if (check(TokenType.L_BRACE)){
             //    block_stmt -> '{' stmt* '}'
-            analyseBlockStmt();
+            return analyseBlockStmt();
         }else if(check(TokenType.SEMICOLON)){
             //    empty_stmt -> ';'
             next();
+            return Ast.NONE;
         }else{
-            throw new AnalyzeError(ErrorCode.InvalidInput,next().getStartPos());
+            throw new AnalyzeError(ErrorCode.InvalidInput,posOf(next()));
         }
     }
 
     //    if_stmt -> 'if' expr block_stmt ('else' 'if' expr block_stmt)* ('else' block_stmt)?
-    boolean isInIf = false;
-    private void analyseIfStmt() throws CompileError{
+    private int analyseIfStmt() throws CompileError{
         expect(TokenType.IF_KW);
-        //这里只可能是比较语句
-        analyseCompareExpr(false);
-        isInIf = true;
-        int startIf = localInstructions.size();
-        //这里需要填入当判断为false时的跳转，需要跳转到结构体结尾的下一个操作符
-        localInstructions.add(new Instruction(Operation.br,0));
-        int index = startIf;
-        analyseBlockStmt();
-        int jump = localInstructions.size()-startIf;
-        localInstructions.get(index).setX(jump);
-        isInIf = false;
-        //这里需要设置结构体执行完后的跳转,finish跳转
-        localInstructions.add(new Instruction(Operation.br,0));
-
-        int tempIndex = localInstructions.size()-1;
-        Stack<Integer> Index = new Stack<>();
-        Index.push(tempIndex);
-        int tempStartOff = localInstructions.size();
-        Stack<Integer>Offset = new Stack<>();
-        Offset.push(tempStartOff);
-
-        while (check(TokenType.ELSE_KW)){
-            next();
+        int cond = analyseCondition();
+        int then = analyseBlockStmt();
+        int otherwise = Ast.NONE;
+        if (nextIf(TokenType.ELSE_KW)>=0){
             if (check(TokenType.IF_KW)){
-                next();
-                analyseCompareExpr(false);
-                //这里是为false时候的跳转
-                isInIf = true;
-                int newStartIf = localInstructions.size();
-                //这里需要填入当判断为false时的跳转，需要跳转到结构体结尾的下一个操作符
-                localInstructions.add(new Instruction(Operation.br,0));
-                int newIndex = newStartIf;
-
-                analyseBlockStmt();
-
-                int newJump = localInstructions.size()-newStartIf;
-                localInstructions.get(newIndex).setX(newJump);
-                isInIf = false;
-
-                //这里应该是执行结束后的跳转
-                localInstructions.add(new Instruction(Operation.br,0));
-                int NewIndex = localInstructions.size()-1;
-                Index.push(NewIndex);
-                int NewStartOff = localInstructions.size();
-                Offset.push(NewStartOff);
+                //else if 当作 else 里只有一条 if 语句
+                otherwise = analyseIfStmt();
             }else{
-                isInIf = true;
-                analyseBlockStmt();
-                isInIf = false;
-                break;
+                otherwise = analyseBlockStmt();
             }
-
-            int EndOffset = localInstructions.size();
-            while (!Offset.empty()&&!Index.empty()){
-                int OneOff =Offset.pop();
-                int OneIndex = Index.pop();
-                localInstructions.get(OneIndex).setX(EndOffset-OneOff);
-            }
-
-        }
-
-        if (check(TokenType.ELSE_KW)){
-            next();
-            analyseBlockStmt();
         }
+        return ast.add(Ast.IF,Ast.VOID,cond,then,otherwise);
     }
 
     //    while_stmt -> 'while' expr block_stmt
-    boolean isInWhile = false;
-    private void analyseWhile() throws CompileError{
-        isInWhile =true;
+    private int analyseWhile() throws CompileError{
         expect(TokenType.WHILE_KW);
-        int whileStartOff=localInstructions.size();
-        if (isInFunc){
-            localInstructions.add(new Instruction(Operation.br,0));
-        }else {
-            //while只能在函数中出现
-            throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
-        }
-        analyseCompareExpr(false);
-        //分析结构体
-        //TODO:break,continue,return
-        int judgeFalseOff = localInstructions.size();
-        localInstructions.add(new Instruction(Operation.br,0));
-        int judgeIndex = judgeFalseOff;
-        expect(TokenType.L_BRACE);
-        isBreak = false;
-        isContinue = false;
-        isRet = false;
-        while(checkNextIfStmt()){
-            analyseStmt();
-            if (isContinue||isRet||isBreak){
-                //不在If里面的情况
-                if (isContinue){
-                    if (isInIf) {
-                        int ContinueOff = localInstructions.size();
-                        localInstructions.add(new Instruction(Operation.br, whileStartOff - ContinueOff));
-                    }
-                } else if (isBreak) {
-                    localInstructions.add(new Instruction(Operation.br,0));
-                }
-                break;
-            }
+        int cond = analyseCondition();
+        loopDepth++;
+        int loopBody = analyseBlockStmt();
+        loopDepth--;
+        return ast.add(Ast.WHILE,Ast.VOID,cond,loopBody);
+    }
+
+    //if 和 while 的条件：比较的结果或者 int，非零即成立
+    private int analyseCondition() throws CompileError{
+        Pos curPos = posOf(peek());
+        int cond = analyseExpr();
+        if (ast.type(cond)!=Ast.BOOL&&ast.type(cond)!=Ast.INT){
+            throw new AnalyzeError(ErrorCode.InvalidInput,curPos);
         }
-        if (isContinue||isRet||isBreak){
-            var nextToken = next();
-            while (!nextToken.getTokenType().equals(TokenType.R_BRACE)){
-                nextToken = next();
-            }
-        }else{
-            expect(TokenType.R_BRACE);
-            int whileEndOff = localInstructions.size();
-            localInstructions.add(new Instruction(Operation.br,whileStartOff-whileEndOff));
-        }
-        int finishOff = localInstructions.size();
-        localInstructions.get(judgeIndex).setX(finishOff-judgeFalseOff-1);
-        //结构体分析结束！
-        isRet = false;
-        isContinue = false;
-        isBreak = false;
-        isInWhile = false;
+        return cond;
     }
+
     //    break_stmt -> 'break' ';'
-    private void analyseBreakStmt() throws CompileError{
-        expect(TokenType.BREAK_KW);
+    private int analyseBreakStmt() throws CompileError{
+        var breakToken = expect(TokenType.BREAK_KW);
+        if (loopDepth==0){
+            throw new AnalyzeError(ErrorCode.InvalidInput,posOf(breakToken));
+        }
         expect(TokenType.SEMICOLON);
+        return ast.add(Ast.BREAK,Ast.VOID,Ast.NONE);
     }
     //    continue_stmt -> 'continue' ';'
-    private void analyseContinueStmt() throws CompileError{
-        expect(TokenType.CONTINUE_KW);
+    private int analyseContinueStmt() throws CompileError{
+        var continueToken = expect(TokenType.CONTINUE_KW);
+        if (loopDepth==0){
+            throw new AnalyzeError(ErrorCode.InvalidInput,posOf(continueToken));
+        }
         expect(TokenType.SEMICOLON);
+        return ast.add(Ast.CONTINUE,Ast.VOID,Ast.NONE);
     }
     //    return_stmt -> 'return' expr? ';'
-    private void analyseReturnStmt() throws CompileError{
+    private int analyseReturnStmt() throws CompileError{
         expect(TokenType.RETURN_KW);
-
-        int ret_num = globalSymbolTable.get(CurfuncName).getVariableType();
-
+        int value = Ast.NONE;
         if (checkNextIfExpr()){
-            if (ret_num<=0){
-                throw new AnalyzeError(ErrorCode.NoEnd,peek().getStartPos());
+            if (curRetType==Ast.VOID){
+                throw new AnalyzeError(ErrorCode.NoEnd,posOf(peek()));
+            }
+            Pos curPos = posOf(peek());
+            value = analyseExpr();
+            if (ast.type(value)!=curRetType){
+                throw new AnalyzeError(ErrorCode.InvalidInput,curPos);
             }
-            //arga 0 默认为返回值的Offset;
-            localInstructions.add(new Instruction(Operation.arga,0));
-            analyseAddMinusExpr();
-            localInstructions.add(new Instruction(Operation.store_64));
-        }
-        if (isInFunc){
-            localInstructions.add(new Instruction(Operation.ret));
-        }else{
-            throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
         }
         expect(TokenType.SEMICOLON);
+        return ast.add(Ast.RETURN,Ast.VOID,value);
     }
 
     //    decl_stmt -> let_decl_stmt | const_decl_stmt
     //        let_decl_stmt -> 'let' IDENT ':' ty ('=' expr)? ';'
     //        const_decl_stmt -> 'const' IDENT ':' ty '=' expr ';'
-    private void analyseDeclStmt() throws CompileError{
+    private int analyseDeclStmt() throws CompileError{
         if (check(TokenType.LET_KW)){
-            analyseLetDeclStmt();
+            return analyseLetDeclStmt();
         }else if(check(TokenType.CONST_KW)) {
-            analyseConstDeclStmt();
+            return analyseConstDeclStmt();
         }else{
-            throw new AnalyzeError(ErrorCode.InvalidInput,next().getStartPos());
+            throw new AnalyzeError(ErrorCode.InvalidInput,posOf(next()));
         }
     }
 
     //        let_decl_stmt -> 'let' IDENT ':' ty ('=' expr)? ';'
-    private void analyseLetDeclStmt() throws CompileError{
+    private int analyseLetDeclStmt() throws CompileError{
         expect(TokenType.LET_KW);
-
-        boolean isInit = false;
-        Pos curPos = peek().getStartPos();
-
+        Pos curPos = posOf(peek());
         var nameToken = expect(TokenType.IDENT);
-
-        String name = (String) nameToken.getValue();
-
         expect(TokenType.COLON);
-
         int variableType = analyseTy();
 
-        if (nextIf(TokenType.ASSIGN)!=null){
-            isInit = true;
+        //初值中用到的同名变量是外面的那个，所以先分析初值再加入符号表
+        int value = Ast.NONE;
+        if (nextIf(TokenType.ASSIGN)>=0){
+            value = analyseInitializer(variableType);
         }
-
-        if (isInFunc){
-            //如果在函数体内则加入到函数体的局部变量表中，否则加入到全局变量
-            addLocalSymbol(name,isInit,false,variableType,curPos);
-        }else{
-            addGlobalSymbol(name,false,false,false,variableType,curPos);
+        expect(TokenType.SEMICOLON);
+        //是否已赋值不随控制流追踪，没有初值的变量用一个没人用过的 slot，并且以后不再分给别的变量，
+        //这样它读到的总是帧清零后的值或者上一轮循环里自己的值
+        if (value == Ast.NONE && isInFunc){
+            nextLocOff = frameSize;
         }
-
-        if (isInit){
-            if (isInFunc){
-                int localOff = localSymbolTable.get(name).getStackOffset();
-                localInstructions.add(new Instruction(Operation.loca,localOff));
-
-                analyseAddMinusExpr();
-
-                localInstructions.add(new Instruction(Operation.store_64));
-            }else{
-                int globalOff = globalSymbolTable.get(name).getStackOffset();
-
-                globalInstructions.add(new Instruction(Operation.globa,globalOff));
-                analyseAddMinusExpr();
-
-                globalInstructions.add(new Instruction(Operation.store_64));
-            }
+        int symbol = declare(nameToken,value!=Ast.NONE,false,variableType,curPos);
+        if (value == Ast.NONE && isInFunc){
+            pinnedLocOff = nextLocOff;
         }
-        expect(TokenType.SEMICOLON);
+        return value == Ast.NONE ? Ast.NONE : initialize(symbol,variableType,value);
     }
 
     //        const_decl_stmt -> 'const' IDENT ':' ty '=' expr ';'
-    private void analyseConstDeclStmt() throws CompileError{
+    private int analyseConstDeclStmt() throws CompileError{
         expect(TokenType.CONST_KW);
-        Pos curPos = peek().getStartPos();
+        Pos curPos = posOf(peek());
         var constNameToken = expect(TokenType.IDENT);
-        String constName = (String) constNameToken.getValue();
         expect(TokenType.COLON);
         int variableType = analyseTy();
         expect(TokenType.ASSIGN);
+        int value = analyseInitializer(variableType);
+        expect(TokenType.SEMICOLON);
+        int symbol = declare(constNameToken,true,true,variableType,curPos);
+        if (ast.isConstant(value)){
+            //初值是编译期常量：记到符号表里，使用处直接 push，不再生成赋值的语句
+            scope().setConstantValue(symbol,ast.value(value));
+            if (!isInFunc){
+                //全局常量在 o0 里也直接写出初值
+                globalSymbolTable.get(tokens.name(constNameToken)).setConstantValue(ast.value(value));
+            }
+            return Ast.NONE;
+        }
+        return initialize(symbol,variableType,value);
+    }
+
+    private int analyseInitializer(int variableType) throws CompileError{
+        Pos curPos = posOf(peek());
+        int value = analyseExpr();
+        if (ast.type(value)!=variableType){
+            throw new AnalyzeError(ErrorCode.InvalidAssignment,curPos);
+        }
+        return value;
+    }
+
+    /**
+     * 在函数体内加入当前代码块，否则加入全局变量表，返回在 scope() 中的记录号
+     */
+    private int declare(int nameToken, boolean isInit, boolean isConstant, int variableType, Pos curPos) throws AnalyzeError{
         if (isInFunc){
-            addLocalSymbol(constName,true,true,variableType,curPos);
-            //获取当前局部变量的地址；loca：加载off个slot处局部变量
-            int localOff = localSymbolTable.get(constName).getStackOffset();
-            localInstructions.add(new Instruction(Operation.loca,localOff));
-            analyseExpr();
-            localInstructions.add(new Instruction(Operation.store_64));
-        }else{
-            addGlobalSymbol(constName,false,false,true,variableType,curPos);
-            int globalOff = globalSymbolTable.get(constName).getStackOffset();
-            globalInstructions.add(new Instruction(Operation.globa,globalOff));
-            analyseExpr();
-            globalInstructions.add(new Instruction(Operation.store_64));
+            return addLocalSymbol(tokens.nameId(nameToken),isInit,isConstant,variableType,curPos);
         }
-        expect(TokenType.SEMICOLON);
+        String name = tokens.name(nameToken);
+        addGlobalSymbol(name,false,false,isConstant,variableType,curPos);
+        return globalScope.declare(tokens.nameId(nameToken),SymbolTable.GLOBAL,globalSymbolTable.get(name).getStackOffset(),variableType,isConstant,true);
+    }
+
+    /**
+     * 声明所在的符号表
+     */
+    private SymbolTable scope(){
+        return isInFunc ? locals : globalScope;
+    }
+
+    /**
+     * 声明时赋初值的语句
+     */
+    private int initialize(int symbol, int variableType, int value){
+        int target = ast.add(isInFunc ? Ast.LOCAL : Ast.GLOBAL,variableType,scope().slot(symbol));
+        return ast.add(Ast.EXPR,Ast.VOID,ast.add(Ast.ASSIGN,Ast.VOID,target,value));
     }
 
     private boolean checkNextIfStmt() throws CompileError{
         if(checkNextIfExpr()){
             return true;
         }
-        var nextToken = peek();
-        switch (nextToken.getTokenType()){
+        switch (tokens.type(peek())){
             case LET_KW:
             case L_BRACE:
             case CONST_KW:
@@ -694,467 +975,340 @@ public final class Analyser {
         }
     }
 
-    /** 表达式部分 */
-    private void analyseExpr() throws CompileError{
-         if (check(TokenType.IDENT)){
-             var nameToken = expect(TokenType.IDENT);
-             String name =(String) nameToken.getValue();
-             if (nextIf(TokenType.ASSIGN)!=null){
-                 //这里是赋值语句的左值！
-                 if (isInFunc){
-                     int localOff = localSymbolTable.get(name).getStackOffset();
-                     if (localSymbolTable.get(name)==null){
-                         throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
-                     }
-                     localInstructions.add(new Instruction(Operation.loca, localOff));
-                 }else {
-                     int globalOff;
-                     if (globalSymbolTable.get(name)==null){
-                         throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
-                     }
-                     globalOff = globalSymbolTable.get(name).getStackOffset();
-                     globalInstructions.add(new Instruction(Operation.globa,globalOff));
-                 }
-                 /*说明这里是一个赋值语句，下面是对右值的分析，右值不可能是比较式，所以至少从加减法开始*/
-//                 赋值表达式是由 左值表达式、等号 =、表达式 组成的表达式。赋值表达式的值类型永远是 void（即不能被使用）。
-//                 左值表达式是一个局部或全局的变量名。
-//                 赋值表达式的语义是将右侧表达式的计算结果赋给左侧表示的值。
-                 //这里是赋值语句的右值
-                 //赋值的右值还可能是函数，TODO:但是函数一定要有返回值！！！这里标准库函数没法验证
-                 if (check(TokenType.L_PAREN)){
-                     next();
-                     int funcOff;
-                     var funcSymbol = funcTable.get(name);
-                     if (funcSymbol == null){
-                         /* 在isStandardFunc函数里面能够处理标准库函数，已经POP了 */
-                         boolean isStd= isStandardFunc(name,false);
-                         if (!isStd){
-                             throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
-                         }
-                     }else {
-                         //不是标准库函数，进行栈处理
-                         if (isInFunc) {
-                             int ret_num = funcSymbol.getRet_num();
-                             localInstructions.add(new Instruction(Operation.stackalloc,ret_num));
-                         } else {
-                             throw new AnalyzeError(ErrorCode.InvalidInput, peek().getStartPos());
-                         }
-                     }
-                     //说明不是标准库函数
-                     if (funcSymbol!=null){
-                         //进行参数处理！
-                         //对表达式进行分析;对于函数参数的空式子不用popn
-                         int paramNum = funcSymbol.getParam_num();
-                         while (paramNum-->0) {
-                             analyseEmptyExpr();
-                         }
-                         funcOff = funcSymbol.getFuncOffset();
-                         localInstructions.add(new Instruction(Operation.call,funcOff));
-                         int ret_num = funcSymbol.getRet_num();
-                         if (ret_num>0) {
-                             localInstructions.add(new Instruction(Operation.store_64, ret_num));
-                         }else {
-                             throw new AnalyzeError(ErrorCode.NoEnd,peek().getStartPos());
-                         }
-                     }
-                     expect(TokenType.R_PAREN);
-                 }else {
-                     analyseAddMinusExpr();
-                     /* 对于赋值语句来说这里需要存值！ */
-                     if (isInFunc) {
-                         localInstructions.add(new Instruction(Operation.store_64));
-                     } else {
-                         globalInstructions.add(new Instruction(Operation.store_64));
-                     }
-                 }
-             }else if(nextIf(TokenType.L_PAREN)!=null){
-                 /*说明这是一个函数说明语句，对函数的一个调用，后面可能跟着运算符，所以要判断一下*/
-                 /*这里的EmptyExpr并不是空语句 */
-                 /*就单独一个函数式的情况*/
-                 int funcOff;
-                 var funcSymbol = funcTable.get(name);
-                 if (funcSymbol == null){
-                     /* 在isStandardFunc函数里面能够处理标准库函数，已经POP了 */
-                     boolean isStd= isStandardFunc(name,true);
-                     if (!isStd){
-                         throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
-                     }
-                 }else {
-                     //不是标准库函数，进行栈处理
-                     if (isInFunc) {
-                         int ret_num = funcSymbol.getRet_num();
-                         localInstructions.add(new Instruction(Operation.stackalloc,ret_num));
-                     } else {
-                         throw new AnalyzeError(ErrorCode.InvalidInput, peek().getStartPos());
-                     }
-                 }
-                 //说明不是标准库函数
-                 if (funcSymbol!=null){
-                     //进行参数处理！
-                     //对表达式进行分析;对于函数参数的空式子不用popn
-                     int paramNum = funcSymbol.getParam_num();
-                     while (paramNum-->0) {
-                         analyseEmptyExpr();
-                     }
-                     funcOff = funcSymbol.getFuncOffset();
-                     localInstructions.add(new Instruction(Operation.call,funcOff));
-                     int ret_num = funcSymbol.getRet_num();
-                     if (ret_num>0) {
-                         localInstructions.add(new Instruction(Operation.popn, ret_num));
-                     }
-                 }
-                 expect(TokenType.R_PAREN);
-             }else{
-                 //这里说明这个语句是一个空语句，并不是赋值语句或者其他；仅仅是一个空语句，类似 b+1;这种
-                 if (check(TokenType.NEQ)||check(TokenType.EQ)||check(TokenType.LT)||check(TokenType.GT)||check(TokenType.LE)||check(TokenType.GE)){
-                     //这里是一个判断语句；
-                     //实现一个判断的空语句
-                     var CompareSymbol =next();
-                     analyseAddMinusExpr();
-                     if (isInFunc){
-                         localInstructions.add(new Instruction(Operation.cmp_i));
-                     }else {
-                         throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
-                     }
-                     switch (CompareSymbol.getTokenType()){
-                         case EQ:
-                             //如果!=则没什么处理
-                             localInstructions.add(new Instruction(Operation.not));
-                             break;
-                         case LT:
-                             localInstructions.add(new Instruction(Operation.set_lt));
-                             break;
-                         case GT:
-                             localInstructions.add(new Instruction(Operation.set_gt));
-                             break;
-                         case LE:
-                             localInstructions.add(new Instruction(Operation.set_gt));
-                             localInstructions.add(new Instruction(Operation.not));
-                             break;
-                         case GE:
-                             localInstructions.add(new Instruction(Operation.set_lt));
-                             localInstructions.add(new Instruction(Operation.not));
-                             break;
-                         default:
-                             throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
-
-                     }
-                     localInstructions.add(new Instruction(Operation.popn,1));
-                 }else {
-                     //这里是一个空的运算式
-                     if (isInFunc){
-                         int localOff;
-                         if (localSymbolTable.get(name)==null){
-                             throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
-                         }
-                         localOff = localSymbolTable.get(name).getStackOffset();
-                         localInstructions.add(new Instruction(Operation.loca, localOff));
-                         localInstructions.add(new Instruction(Operation.load_64));
-                     }else {
-                         //全局没有空运算式;
-                         throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
-                     }
-                     analyseEmptyExpr();
-                     localInstructions.add(new Instruction(Operation.popn,1));
-                 }
-             }
-         }else{
-             //这里也是单独一个计算式，不过可能第一个不是变量，而是一个数字；
-             analyseCompareExpr(true);
-             if (isInFunc){
-                 localInstructions.add(new Instruction(Operation.popn,1));
-             }
-         }
-    }
-
-    //空式子和函数参数式子中的运算式
-    //用于引导空语句和函数参数式子中的运算式；
-    //TODO:只考虑了Int
-    private void analyseEmptyExpr() throws CompileError {
-        var OptToken = next();
-        switch (OptToken.getTokenType()){
-            case PLUS:
-                analyseAddMinusExpr();
-                localInstructions.add(new Instruction(Operation.add_i));
+    /** 表达式部分，以下函数都返回建好的表达式节点 */
+    //expr -> IDENT '=' expr | compare_expr
+    private int analyseExpr() throws CompileError{
+        if (check(TokenType.IDENT)&&tokens.type(peekSecond())==TokenType.ASSIGN){
+            //赋值表达式：左值是一个局部或全局的变量名，值的类型永远是 void
+            var nameToken = next();
+            next();
+            int target = analyseVariable(tokens.nameId(nameToken),posOf(nameToken),true);
+            Pos curPos = posOf(peek());
+            int value = analyseExpr();
+            if (ast.type(value)!=ast.type(target)){
+                throw new AnalyzeError(ErrorCode.InvalidAssignment,curPos);
+            }
+            return ast.add(Ast.ASSIGN,Ast.VOID,target,value);
+        }
+        return analyseCompareExpr();
+    }
+
+    //判断语句
+    private int analyseCompareExpr() throws CompileError{
+        int left = analyseAddMinusExpr();
+        int kind;
+        switch (tokens.type(peek())){
+            case EQ:
+                kind = Ast.EQ;
                 break;
-            case MINUS:
-                analyseAddMinusExpr();
-                localInstructions.add(new Instruction(Operation.sub_i));
+            case NEQ:
+                kind = Ast.NE;
                 break;
-            case MUL:
-                analyseMultiDivExpr();
-                localInstructions.add(new Instruction(Operation.mul_i));
+            case LT:
+                kind = Ast.LT;
                 break;
-            case DIV:
-                analyseMultiDivExpr();
-                localInstructions.add(new Instruction(Operation.div_i));
+            case GT:
+                kind = Ast.GT;
                 break;
-            case AS_KW:
-                //TODO:只考虑了合法的类型转换
-                int type = analyseTy();
-                if (type==1) {
-                    localInstructions.add(new Instruction(Operation.ftoi));
-                }else if (type == 2){
-                    localInstructions.add(new Instruction(Operation.itof));
-                }else{
-                    throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
-                }
+            case LE:
+                kind = Ast.LE;
+                break;
+            case GE:
+                kind = Ast.GE;
                 break;
             default:
-                throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
+                return left;
         }
+        Pos curPos = posOf(next());
+        int right = analyseAddMinusExpr();
+        checkOperands(left,right,curPos);
+        return ast.add(kind,Ast.BOOL,left,right);
     }
 
-        //判断语句
-    private void analyseCompareExpr(boolean isEmptyStat) throws CompileError{
-        analyseAddMinusExpr();
-        if (check(TokenType.NEQ)||check(TokenType.EQ)||check(TokenType.LT)||check(TokenType.GT)||check(TokenType.LE)||check(TokenType.GE)){
-            //TODO:这里只考虑了Int
-            var CompareSymbolToken =next();
-
-            analyseAddMinusExpr();
-            if (isInFunc){
-                localInstructions.add(new Instruction(Operation.cmp_i));
-            }else {
-                throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
-            }
+    private int analyseAddMinusExpr() throws CompileError{
+        int left = analyseMultiDivExpr();
+        while (check(TokenType.PLUS)||check(TokenType.MINUS)){
+            var opToken = next();
+            int kind = tokens.type(opToken)==TokenType.PLUS ? Ast.ADD : Ast.SUB;
+            int right = analyseMultiDivExpr();
+            left = binary(kind,left,right,posOf(opToken));
+        }
+        return left;
+    }
 
-            switch (CompareSymbolToken.getTokenType()){
-                case EQ:
-                    //如果!=则没什么处理
-                    localInstructions.add(new Instruction(Operation.not));
-                    break;
-                case LT:
-                    localInstructions.add(new Instruction(Operation.set_lt));
-                    break;
-                case GT:
-                    localInstructions.add(new Instruction(Operation.set_gt));
-                    break;
-                case LE:
-                    localInstructions.add(new Instruction(Operation.set_gt));
-                    localInstructions.add(new Instruction(Operation.not));
-                    break;
-                case GE:
-                    localInstructions.add(new Instruction(Operation.set_lt));
-                    localInstructions.add(new Instruction(Operation.not));
-                    break;
-                default:
-                    throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
+    private int analyseMultiDivExpr() throws  CompileError{
+        int left = analyseTypeChangeExpr();
+        while (check(TokenType.MUL)||check(TokenType.DIV)){
+            var opToken = next();
+            int kind = tokens.type(opToken)==TokenType.MUL ? Ast.MUL : Ast.DIV;
+            int right = analyseTypeChangeExpr();
+            left = binary(kind,left,right,posOf(opToken));
+        }
+        return left;
+    }
 
+    private int analyseTypeChangeExpr() throws CompileError{
+        int node = analyseFactor();
+        while (check(TokenType.AS_KW)){
+            Pos curPos = posOf(next());
+            int type = analyseTy();
+            int from = ast.type(node);
+            if ((type!=Ast.INT&&type!=Ast.DOUBLE)||(from!=Ast.INT&&from!=Ast.DOUBLE)){
+                throw new AnalyzeError(ErrorCode.InvalidInput,curPos);
             }
-            if (!isEmptyStat) {
-                localInstructions.add(new Instruction(Operation.br_true, 1));
+            //类型转换不折叠，同类型之间的转换什么也不做
+            if (type!=from){
+                node = ast.add(Ast.CAST,type,node);
             }
         }
+        return node;
     }
 
-    private void analyseAddMinusExpr() throws CompileError{
-        analyseMultiDivExpr();
-        boolean isAdd;
-        while (check(TokenType.PLUS)||check(TokenType.MINUS)){
-            if (nextIf(TokenType.PLUS)!=null){
-                isAdd = true;
-            }else if (nextIf(TokenType.MINUS)!=null){
-                isAdd = false;
-            }else{
-                throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
+    private int analyseFactor() throws CompileError{
+        if (check(TokenType.MINUS)){
+            //这里是一个取反表达式
+            Pos curPos = posOf(next());
+            int operand = analyseFactor();
+            int type = ast.type(operand);
+            if (type!=Ast.INT&&type!=Ast.DOUBLE){
+                throw new AnalyzeError(ErrorCode.InvalidInput,curPos);
             }
-            analyseMultiDivExpr();
-            if (isInFunc){
-                if (isAdd){
-                    localInstructions.add(new Instruction(Operation.add_i));
-                }else{
-                    localInstructions.add(new Instruction(Operation.sub_i));
-                }
-            }else{
-                if (isAdd){
-                    globalInstructions.add(new Instruction(Operation.add_i));
-                }else {
-                    globalInstructions.add(new Instruction(Operation.sub_i));
+            int folded = foldNegate(operand);
+            return folded != Ast.NONE ? folded : ast.add(Ast.NEG,type,operand);
+        }
+        switch (tokens.type(peek())){
+            case L_PAREN: {
+                next();
+                int expr = analyseCompareExpr();
+                expect(TokenType.R_PAREN);
+                return expr;
+            }
+            case UINT_LITERAL:
+                return ast.constant(Ast.INT,tokens.longValue(next()));
+            case CHAR_LITERAL:
+                //char 字面量的值就是它的编码
+                return ast.constant(Ast.INT,tokens.charValue(next()));
+            case STRING_LITERAL: {
+                //字符串放进全局变量表，值是它的偏移，只在 putstr 中使用
+                var strToken = next();
+                return ast.add(Ast.STRING,Ast.INT,internString(tokens.string(strToken),posOf(strToken)));
+            }
+            case DOUBLE_LITERAL:
+                //push 的操作数是 64 位的，double 直接存它的二进制表示
+                return ast.constant(Ast.DOUBLE,tokens.payload(next()));
+            case IDENT: {
+                var nameToken = next();
+                String name = tokens.name(nameToken);
+                if (check(TokenType.L_PAREN)){
+                    //有左括号，说明是函数调用
+                    return analyseCall(name,posOf(nameToken));
                 }
+                //下一个token不是左括号，说明不是函数，而是变量或者常量
+                return analyseVariable(tokens.nameId(nameToken),posOf(nameToken),false);
             }
+            default:
+                throw new AnalyzeError(ErrorCode.InvalidInput,posOf(peek()));
         }
     }
 
-    private void analyseMultiDivExpr() throws  CompileError{
-        analyseTypeChangeExpr();
-        boolean isMul = false;
-        while (check(TokenType.MUL)||check(TokenType.DIV)){
-            if (nextIf(TokenType.MUL)!=null){
-                isMul = true;
-            }else if (nextIf(TokenType.DIV)!=null){
-                isMul = false;
+    /**
+     * 先在函数体的各层作用域中查找名字，再查全局变量，每张表只查一次
+     * 读取值已知的常量时直接返回常量节点；作为赋值的左值时检查是否为常量，并把变量标记为已赋值
+     */
+    private int analyseVariable(int name, Pos curPos, boolean isAssign) throws AnalyzeError{
+        var table = globalScope;
+        int symbol = SymbolTable.NONE;
+        if (isInFunc){
+            table = locals;
+            symbol = locals.find(name);
+        }
+        if (symbol == SymbolTable.NONE){
+            //函数名和字符串不在 globalScope 里，不能当变量用
+            table = globalScope;
+            symbol = globalScope.find(name);
+            //第一遍已经收集了所有全局变量，函数体里只能用在函数之前声明的
+            if (symbol == SymbolTable.NONE || (isInFunc && symbol >= body.visibleGlobals)){
+                throw new AnalyzeError(ErrorCode.NotDeclared,curPos);
             }
-            analyseTypeChangeExpr();
-            if (isInFunc){
-                if (isMul){
-                    localInstructions.add(new Instruction(Operation.mul_i));
-                }else {
-                    localInstructions.add(new Instruction(Operation.div_i));
-                }
-            }else{
-                if (isMul){
-                    globalInstructions.add(new Instruction(Operation.mul_i));
-                }else {
-                    globalInstructions.add(new Instruction(Operation.div_i));
-                }
+        }
+        int type = table.type(symbol);
+        if (isAssign){
+            if (table.isConstant(symbol)){
+                throw new AnalyzeError(ErrorCode.AssignToConstant,curPos);
             }
+            //全局变量和参数总是已赋值的，不会去写共享的 globalScope
+            if (!table.isInitialized(symbol)){
+                table.setInitialized(symbol);
+            }
+        }else if (table.hasConstantValue(symbol)){
+            return ast.constant(type,table.constantValue(symbol));
+        }else if (!table.isInitialized(symbol)){
+            //标识符没初始化
+            throw new AnalyzeError(ErrorCode.NotInitialized,curPos);
+        }
+        switch (table.kind(symbol)){
+            case SymbolTable.LOCAL:
+                return ast.add(Ast.LOCAL,type,table.slot(symbol));
+            case SymbolTable.PARAM:
+                //arga 0 是返回值的位置，参数排在它后面
+                return ast.add(Ast.PARAM,type,table.slot(symbol)+curRetSlots);
+            default:
+                return ast.add(Ast.GLOBAL,type,table.slot(symbol));
         }
     }
 
-    private void analyseTypeChangeExpr() throws CompileError{
-        analyseFactor();
-        /*或许不能用while*/
-        while (check(TokenType.AS_KW)){
-            next();
-            int type = analyseTy();
-            if (type==1){
-                if (isInFunc){
-                    localInstructions.add(new Instruction(Operation.ftoi));
+    //call_expr -> IDENT '(' call_param_list? ')'
+    private int analyseCall(String name, Pos curPos) throws CompileError{
+        expect(TokenType.L_PAREN);
+        int first = Ast.NONE;
+        int last = Ast.NONE;
+        var argTypes = new ArrayList<Integer>();
+        var argPos = new ArrayList<Pos>();
+        if (!check(TokenType.R_PAREN)){
+            do {
+                argPos.add(posOf(peek()));
+                int arg = analyseExpr();
+                argTypes.add(ast.type(arg));
+                if (first == Ast.NONE){
+                    first = arg;
                 }else{
-                    globalInstructions.add(new Instruction(Operation.ftoi));
-                }
-            }else if (type==2){
-                if (isInFunc){
-                    localInstructions.add(new Instruction(Operation.itof));
-                }else {
-                    globalInstructions.add(new Instruction(Operation.itof));
+                    ast.setNext(last,arg);
                 }
+                last = arg;
+            } while (nextIf(TokenType.COMMA)>=0);
+        }
+        expect(TokenType.R_PAREN);
+
+        var funcSymbol = funcTable.get(name);
+        var funcGlobal = globalSymbolTable.get(name);
+        //函数体只能调用自己和在它之前定义的函数，函数的偏移就是定义的顺序
+        if (funcSymbol!=null&&isInFunc&&funcSymbol.getFuncOffset()>body.function.getFuncOffset()){
+            throw new AnalyzeError(ErrorCode.NotDeclared,curPos);
+        }
+        if (funcSymbol!=null&&funcGlobal!=null){
+            //自己定义的函数，参数的个数和类型都要匹配
+            int[] paramTypes = new int[funcSymbol.getParam_num()];
+            for (SymbolEntry param : funcSymbol.getParamSymbolEntry().values()){
+                paramTypes[param.getStackOffset()] = param.getVariableType();
             }
+            checkArguments(paramTypes,argTypes,argPos,curPos);
+            return ast.add(Ast.CALL,funcGlobal.getVariableType(),funcSymbol.getFuncOffset(),first,funcSymbol.getRet_num());
+        }
+        if (!isStandardName(name)){
+            throw new AnalyzeError(ErrorCode.NotDeclared,curPos);
         }
+        //标准库函数的名字作为字符串放进全局变量表，callname 的参数就是它的偏移
+        checkArguments(standardParamTypes(name),argTypes,argPos,curPos);
+        int retType = standardRetType(name);
+        return ast.add(Ast.CALLNAME,retType,internString(name,curPos),first,retType==Ast.VOID ? 0 : 1);
     }
 
-    private void analyseFactor() throws CompileError{
-        boolean negate = false;
-        //这里是一个取翻表达式；
-        if (check(TokenType.MINUS)){
-            next();
-            negate = true;
+    private static void checkArguments(int[] paramTypes, ArrayList<Integer> argTypes, ArrayList<Pos> argPos, Pos curPos) throws AnalyzeError{
+        if (paramTypes.length!=argTypes.size()){
+            throw new AnalyzeError(ErrorCode.InvalidInput,curPos);
         }
-        if (check(TokenType.L_PAREN)){
-            next();
-            analyseAddMinusExpr();
-            expect(TokenType.R_PAREN);
-        }else if (check(TokenType.UINT_LITERAL)||check(TokenType.DOUBLE_LITERAL)||check(TokenType.STRING_LITERAL)||check(TokenType.CHAR_LITERAL)){
-            if (check(TokenType.UINT_LITERAL)){
-                var intToken = expect(TokenType.UINT_LITERAL);
-                int intNum = (int) intToken.getValue();
-                if (isInFunc){
-                    localInstructions.add(new Instruction(Operation.push,intNum));
-                }else{
-                    globalInstructions.add(new Instruction(Operation.push,intNum));
-                }
-            }else if (check(TokenType.DOUBLE_LITERAL)){
-                //TODO:拓展部分，需要考虑double情况！
-                next();
-            }else if (check(TokenType.STRING_LITERAL)){
-                //对字符串String的处理
-                //对于String类型，只会出现在putStr中，而且String要加入到全局变量表当中;
-                var strToken = expect(TokenType.STRING_LITERAL);
-                String strName = (String) strToken.getValue();
-                addGlobalSymbol(strName,false,true,true,0,peek().getStartPos());
-                //获取当前全局变量表的偏移量;
-                int globalOff = globalSymbolTable.size()-1;
-                if (isInFunc){
-                    localInstructions.add(new Instruction(Operation.push,globalOff));
-                }else{
-                    //putstr函数一定在某一个函数当中出现，不可能作为全局变量出现，所以应该报错;
-                    throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
-                }
-            }else if (check(TokenType.CHAR_LITERAL)){
-                //TODO:拓展部分，需要考虑char情况！
-                next();
-            }else{
-                throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
-            }
-        }else if (check(TokenType.IDENT)){
-            var nameToken = expect(TokenType.IDENT);
-            String name = (String) nameToken.getValue();
-            if (nextIf(TokenType.L_PAREN)!=null){
-                //有左括号，说明是函数调用
-                var funcSymbol = funcTable.get(name);
-                if (funcSymbol==null){
-                    //这里要考虑库函数的情况
-                    boolean isStd = isStandardFunc(name,false);
-                    if (!isStd){
-                        throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
-                    }
-                }else{
-                    //这里就不是库函数了，而是自己定义的函数
-                    int ret_num = funcSymbol.getRet_num();
-                    if (isInFunc){
-                        localInstructions.add(new Instruction(Operation.stackalloc,ret_num));
-                    }else {
-                        globalInstructions.add(new Instruction(Operation.stackalloc,ret_num));
-                    }
-                    if (!check(TokenType.R_PAREN)){
-                        //如果左括号的下一个token不是右括号，则说明函数有参数，这后面就是函数的参数
-                        //TODO:进行语义分析，而且参数的类型应该匹配！但是这里只有Int，暂时不考虑
-                        int paramNumRight = funcSymbol.getParam_num();
-                        int tempParamNum = 0;
-                        analyseAddMinusExpr();
-                        tempParamNum++;
-                        while (nextIf(TokenType.COMMA)!=null){
-                            tempParamNum++;
-                            analyseAddMinusExpr();
-                        }
-                        //如果参数数量和传入的参数数量不匹配则会报错！
-                        if (paramNumRight!=tempParamNum){
-                            throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
-                        }
-                        expect(TokenType.R_PAREN);
-                    }else{
-                        next();
-                    }
-                    //这里还应该有call操作啊~
-                    int funcOff = funcSymbol.getFuncOffset();
-                    if (isInFunc){
-                        localInstructions.add(new Instruction(Operation.call,funcOff));
-                    }else {
-                        globalInstructions.add(new Instruction(Operation.call,funcOff));
-                    }
-                }
-            }else {
-                //下一个token不是左括号，说明不是函数，而是变量或者常量
-                if (isInFunc){
-                    var localSymbol = localSymbolTable.get(name);
-                    if (localSymbol==null){
-                        //没有这个符号
-                        throw new AnalyzeError(ErrorCode.NotDeclared,peek().getStartPos());
-                    }else if (!localSymbol.isInitialized){
-                        //标识符没初始化
-                        throw new AnalyzeError(ErrorCode.NotInitialized,peek().getStartPos());
-                    }
-                    var localOff = localSymbol.getStackOffset();
-                    localInstructions.add(new Instruction(Operation.loca,localOff));
-                    localInstructions.add(new Instruction(Operation.load_64));
-                }else{
-                    var globalSymbol = globalSymbolTable.get(name);
-                    if (globalSymbol == null){
-                        throw new AnalyzeError(ErrorCode.NotDeclared,peek().getStartPos());
-                    }else if (!globalSymbol.isInitialized){
-                        throw new AnalyzeError(ErrorCode.NotInitialized,peek().getStartPos());
-                    }
-                    var globalOff = globalSymbol.getStackOffset();
-                    globalInstructions.add(new Instruction(Operation.globa,globalOff));
-                    globalInstructions.add(new Instruction(Operation.load_64));
-                }
+        for (int i = 0; i < paramTypes.length; i++){
+            if (paramTypes[i]!=argTypes.get(i)){
+                throw new AnalyzeError(ErrorCode.InvalidInput,argPos.get(i));
             }
-        }else {
-            throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
         }
-        if (negate){
-            //TODO：这里只考虑了Int的情况
-            if (isInFunc){
-                localInstructions.add(new Instruction(Operation.neg_i));
-            }else {
-                globalInstructions.add(new Instruction(Operation.neg_i));
+    }
+
+    /**
+     * 四则运算的两个操作数必须都是 int 或者都是 double
+     */
+    private void checkOperands(int left, int right, Pos curPos) throws AnalyzeError{
+        int type = ast.type(left);
+        if ((type!=Ast.INT&&type!=Ast.DOUBLE)||ast.type(right)!=type){
+            throw new AnalyzeError(ErrorCode.InvalidInput,curPos);
+        }
+    }
+
+    private int binary(int kind, int left, int right, Pos curPos) throws AnalyzeError{
+        checkOperands(left,right,curPos);
+        int folded = foldBinary(kind,left,right);
+        return folded != Ast.NONE ? folded : ast.add(kind,ast.type(left),left,right);
+    }
+
+    /**
+     * 两个操作数都是常量时在编译期算出结果，int 和虚拟机一样按 64 位回绕，double 按 IEEE 754 计算
+     * int 除数为 0 时不折叠，返回 Ast.NONE，留到运行时报错
+     */
+    private int foldBinary(int kind, int left, int right){
+        if (!ast.isConstant(left)||!ast.isConstant(right)){
+            return Ast.NONE;
+        }
+        if (ast.type(left)==Ast.DOUBLE){
+            double a = Double.longBitsToDouble(ast.value(left));
+            double b = Double.longBitsToDouble(ast.value(right));
+            double result;
+            switch (kind){
+                case Ast.ADD:
+                    result = a + b;
+                    break;
+                case Ast.SUB:
+                    result = a - b;
+                    break;
+                case Ast.MUL:
+                    result = a * b;
+                    break;
+                default:
+                    result = a / b;
+                    break;
             }
+            return ast.constant(Ast.DOUBLE,Double.doubleToRawLongBits(result));
+        }
+        long a = ast.value(left);
+        long b = ast.value(right);
+        long result;
+        switch (kind){
+            case Ast.ADD:
+                result = a + b;
+                break;
+            case Ast.SUB:
+                result = a - b;
+                break;
+            case Ast.MUL:
+                result = a * b;
+                break;
+            default:
+                if (b == 0){
+                    return Ast.NONE;
+                }
+                result = a / b;
+                break;
+        }
+        return ast.constant(Ast.INT,result);
+    }
+
+    private int foldNegate(int operand){
+        if (!ast.isConstant(operand)){
+            return Ast.NONE;
+        }
+        if (ast.type(operand)==Ast.DOUBLE){
+            return ast.constant(Ast.DOUBLE,Double.doubleToRawLongBits(-Double.longBitsToDouble(ast.value(operand))));
+        }
+        return ast.constant(Ast.INT,-ast.value(operand));
+    }
+
+    /**
+     * 字符串常量在全局变量表中的偏移，第一次出现时加入
+     */
+    private int internString(String value, Pos curPos) throws AnalyzeError{
+        var offset = stringOffsets.get(value);
+        if (offset == null&&body != null){
+            throw new IllegalStateException("string not interned in the first pass: " + value);
+        }
+        if (offset == null){
+            addGlobalSymbol(value,false,true,true,0,curPos);
+            offset = globals.size()-1;
+            stringOffsets.put(value,offset);
         }
+        return offset;
     }
+
     private boolean checkNextIfExpr() throws CompileError{
-        var nextToken = peek();
-        switch (nextToken.getTokenType()){
+        switch (tokens.type(peek())){
             case MINUS:
             case IDENT:
             case UINT_LITERAL:
@@ -1167,58 +1321,46 @@ public final class Analyser {
                 return false;
         }
     }
-    //处理标准库函数
-    private boolean isStandardFunc(String name,boolean EmptyNoRet) throws CompileError{
-        addGlobalSymbol(name,false,true,true,0,peek().getStartPos());
-        int globalOff = 0;
+    private static boolean isStandardName(String name){
         switch (name){
             case "getint":
             case "getchar":
-                if (isInFunc){
-                    localInstructions.add(new Instruction(Operation.stackalloc,1));
-                    localInstructions.add(new Instruction(Operation.callname,globalOff));
-                    if (EmptyNoRet){
-                        localInstructions.add(new Instruction(Operation.popn,1));
-                    }
-//                    else{
-//                        localInstructions.add(new Instruction(Operation.store_64));
-//                    }
-                }else{
-                    globalInstructions.add(new Instruction(Operation.stackalloc,1));
-                    globalInstructions.add(new Instruction(Operation.callname,globalOff));
-                    if (EmptyNoRet){
-                        throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
-                    }
-//                    else{
-//                        globalInstructions.add(new Instruction(Operation.store_64));
-//                    }
-                }
-                return true;
             case "getdouble":
             case "putdouble":
-                //TODO:double实现
-                return true;
             case "putint":
             case "putchar":
             case "putstr":
-                if (isInFunc){
-                    localInstructions.add(new Instruction(Operation.stackalloc,0));
-                    analyseAddMinusExpr();
-                    localInstructions.add(new Instruction(Operation.callname,globalOff));
-                }else {
-                    throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
-                }
-                return  true;
             case "putln":
-                if (isInFunc){
-                    localInstructions.add(new Instruction(Operation.stackalloc,0));
-                    localInstructions.add(new Instruction(Operation.callname,globalOff));
-                }else {
-                    throw new AnalyzeError(ErrorCode.InvalidInput,peek().getStartPos());
-                }
                 return true;
             default:
                 return false;
         }
     }
+
+    //标准库函数的返回类型
+    private static int standardRetType(String name){
+        switch (name){
+            case "getint":
+            case "getchar":
+                return Ast.INT;
+            case "getdouble":
+                return Ast.DOUBLE;
+            default:
+                return Ast.VOID;
+        }
+    }
+
+    //标准库函数的参数类型，putstr 的参数是字符串在全局变量表中的偏移
+    private static int[] standardParamTypes(String name){
+        switch (name){
+            case "putint":
+            case "putchar":
+            case "putstr":
+                return new int[]{Ast.INT};
+            case "putdouble":
+                return new int[]{Ast.DOUBLE};
+            default:
+                return new int[0];
+        }
+    }
 }
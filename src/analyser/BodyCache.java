@@ -0,0 +1,234 @@
+package analyser;
+
+import instruction.CodeBuffer;
+import instruction.Operation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 增量编译用的函数体缓存，保存在磁盘上
+ * 键是函数体的 token 序列加上它用到的签名（自己的参数、引用到的函数、全局变量、字符串和库函数的偏移）的 SHA-256，
+ * 值是生成的指令、帧大小和声明的局部变量个数；键相同说明生成的代码一定相同，可以直接拿来用，不用再分析
+ * 保存时只写本次编译用到的项，删掉的函数不会一直留在缓存里
+ */
+public class BodyCache {
+    private static final int MAGIC = 0x63304243;
+    private static final int VERSION = 6;
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    /** 上次保存的内容，编译过程中只读 */
+    private final Map<ByteBuffer, Entry> loaded;
+    /** 本次编译用到的项，并行分析函数体时多个线程同时写 */
+    private final ConcurrentHashMap<ByteBuffer, Entry> used = new ConcurrentHashMap<>();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    static final class Entry {
+        final int locVarNum;
+        final int declaredLocals;
+        final CodeBuffer instructions;
+
+        Entry(int locVarNum, int declaredLocals, CodeBuffer instructions) {
+            this.locVarNum = locVarNum;
+            this.declaredLocals = declaredLocals;
+            this.instructions = instructions;
+        }
+    }
+
+    public BodyCache() {
+        this(new HashMap<>());
+    }
+
+    private BodyCache(Map<ByteBuffer, Entry> loaded) {
+        this.loaded = loaded;
+    }
+
+    /**
+     * 读入 path 处的缓存；文件不存在、版本不对或者已经损坏时返回空的缓存
+     */
+    public static BodyCache load(Path path) {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return new BodyCache();
+            }
+            int count = in.readInt();
+            var entries = new HashMap<ByteBuffer, Entry>(count * 2);
+            for (int i = 0; i < count; i++) {
+                var key = new byte[in.readUnsignedByte()];
+                in.readFully(key);
+                int locVarNum = in.readInt();
+                int declaredLocals = in.readInt();
+                int size = in.readInt();
+                var instructions = new CodeBuffer(size);
+                for (int j = 0; j < size; j++) {
+                    var opt = OPERATIONS[in.readUnsignedByte()];
+                    instructions.add(opt, in.readLong());
+                }
+                entries.put(ByteBuffer.wrap(key), new Entry(locVarNum, declaredLocals, instructions));
+            }
+            return new BodyCache(entries);
+        } catch (IOException | RuntimeException e) {
+            //没有缓存或者缓存坏了，全部重新分析
+            return new BodyCache();
+        }
+    }
+
+    /**
+     * 把本次编译用到的项写到 path，先写临时文件再改名，中途失败不会留下半个缓存
+     */
+    public void save(Path path) throws IOException {
+        var dir = path.toAbsolutePath().getParent();
+        var temp = Files.createTempFile(dir, path.getFileName().toString(), ".tmp");
+        try {
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(used.size());
+                for (var item : used.entrySet()) {
+                    var key = item.getKey().duplicate();
+                    out.writeByte(key.remaining());
+                    while (key.hasRemaining()) {
+                        out.writeByte(key.get());
+                    }
+                    var entry = item.getValue();
+                    out.writeInt(entry.locVarNum);
+                    out.writeInt(entry.declaredLocals);
+                    var instructions = entry.instructions;
+                    out.writeInt(instructions.size());
+                    for (int j = 0; j < instructions.size(); j++) {
+                        out.writeByte(instructions.op(j).ordinal());
+                        out.writeLong(instructions.arg(j));
+                    }
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * 查找 key 对应的函数体，找到时记为本次用到
+     */
+    Entry lookup(byte[] key) {
+        var wrapped = ByteBuffer.wrap(key);
+        var entry = loaded.get(wrapped);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        used.put(wrapped, entry);
+        return entry;
+    }
+
+    /**
+     * 记下重新分析得到的结果，复制一份，之后的优化不会影响缓存的内容
+     */
+    void store(byte[] key, int locVarNum, int declaredLocals, CodeBuffer instructions) {
+        used.put(ByteBuffer.wrap(key), new Entry(locVarNum, declaredLocals, instructions.copy()));
+    }
+
+    /**
+     * 直接用了缓存的函数个数
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * 需要重新分析的函数个数
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * 计算键用的缓冲，按大端序写入基本类型，最后一次性交给 MessageDigest
+     * 每个线程用一个，reset 之后计算下一个函数体的键
+     */
+    static final class KeyBuilder {
+        private byte[] buf = new byte[256];
+        private int size = 0;
+        private final MessageDigest digest;
+
+        KeyBuilder() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new Error("SHA-256 is not available", e);
+            }
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        private void ensure(int count) {
+            if (size + count > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + count));
+            }
+        }
+
+        KeyBuilder putByte(int value) {
+            ensure(1);
+            buf[size++] = (byte) value;
+            return this;
+        }
+
+        KeyBuilder putInt(int value) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buf[size++] = (byte) (value >>> shift);
+            }
+            return this;
+        }
+
+        KeyBuilder putLong(long value) {
+            putInt((int) (value >>> 32));
+            return putInt((int) value);
+        }
+
+        KeyBuilder putString(String value) {
+            putInt(value.length());
+            ensure(value.length() * 2);
+            for (int i = 0; i < value.length(); i++) {
+                char ch = value.charAt(i);
+                buf[size++] = (byte) (ch >>> 8);
+                buf[size++] = (byte) ch;
+            }
+            return this;
+        }
+
+        KeyBuilder put(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+
+        byte[] digest() {
+            digest.update(buf, 0, size);
+            return digest.digest();
+        }
+    }
+}
@@ -1,9 +1,8 @@
 package analyser;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 
-import instruction.Instruction;
+import instruction.CodeBuffer;
 
 public class FuncEntry {
     /** func_name即为函数在全局变量表中的偏移量 */
@@ -11,12 +10,14 @@ public class FuncEntry {
     int ret_num;
     int param_num;
     int locVarNum;
+    /** 不复用 slot 时需要的局部变量个数，即函数体中声明的个数 */
+    int declaredLocals;
     int bodyCnt;
     int funcOffset;
     HashMap<String,SymbolEntry> paramSymbolEntry;
-    ArrayList<Instruction> instructions;
+    CodeBuffer instructions;
 
-    public FuncEntry(int func_name, int ret_num, int param_num, int locVarNum, int bodyCnt, ArrayList<Instruction> instructions, int funcOffset, HashMap<String,SymbolEntry> paramSymbolEntry) {
+    public FuncEntry(int func_name, int ret_num, int param_num, int locVarNum, int bodyCnt, CodeBuffer instructions, int funcOffset, HashMap<String,SymbolEntry> paramSymbolEntry) {
         this.func_name = func_name;
         this.ret_num = ret_num;
         this.param_num = param_num;
@@ -74,6 +75,14 @@ public class FuncEntry {
         this.locVarNum = locVarNum;
     }
 
+    public int getDeclaredLocals() {
+        return declaredLocals;
+    }
+
+    public void setDeclaredLocals(int declaredLocals) {
+        this.declaredLocals = declaredLocals;
+    }
+
     public int getBodyCnt() {
         return bodyCnt;
     }
@@ -82,11 +91,11 @@ public class FuncEntry {
         this.bodyCnt = bodyCnt;
     }
 
-    public ArrayList<Instruction> getInstructions() {
+    public CodeBuffer getInstructions() {
         return instructions;
     }
 
-    public void setInstructions(ArrayList<Instruction> instructions) {
+    public void setInstructions(CodeBuffer instructions) {
         this.instructions = instructions;
     }
 }
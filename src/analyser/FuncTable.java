@@ -0,0 +1,80 @@
+package analyser;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 函数表：按 funcOffset 排列的稠密数组，另有 名字 -> funcOffset 的索引
+ * 遍历的顺序就是函数定义的顺序，和名字的哈希值无关，同样的源文件总是得到同样的输出
+ */
+public class FuncTable implements Iterable<FuncEntry> {
+    private FuncEntry[] entries = new FuncEntry[16];
+    private int size = 0;
+    private final HashMap<String, Integer> ids = new HashMap<>();
+
+    /**
+     * 加入一个函数，它的 funcOffset 必须是下一个编号
+     */
+    public void add(String name, FuncEntry entry) {
+        if (entry.getFuncOffset() != size) {
+            throw new IllegalArgumentException("function " + name + " has offset " + entry.getFuncOffset() + ", expected " + size);
+        }
+        if (size == entries.length) {
+            entries = Arrays.copyOf(entries, size * 2);
+        }
+        entries[size++] = entry;
+        ids.put(name, entry.getFuncOffset());
+    }
+
+    /**
+     * 按名字查找，不存在返回 null
+     */
+    public FuncEntry get(String name) {
+        Integer id = ids.get(name);
+        return id == null ? null : entries[id];
+    }
+
+    /**
+     * 名字对应的 funcOffset，不存在返回 -1
+     */
+    public int idOf(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    public FuncEntry get(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("function " + id + " out of " + size);
+        }
+        return entries[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 按 funcOffset 排列的只读视图，_start 排在最前面
+     */
+    public List<FuncEntry> entries() {
+        return new AbstractList<>() {
+            @Override
+            public FuncEntry get(int index) {
+                return FuncTable.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public Iterator<FuncEntry> iterator() {
+        return entries().iterator();
+    }
+}
@@ -0,0 +1,11 @@
+package analyser;
+
+import java.io.IOException;
+
+/**
+ * 接收刚生成好的函数体，不必等整个程序分析完
+ * 除 _start 之外的每个函数按 funcOffset 的顺序调用一次，返回之后 Analyser 就释放这个函数的指令
+ */
+public interface FunctionSink {
+    void accept(FuncEntry function) throws IOException;
+}
@@ -0,0 +1,31 @@
+package analyser;
+
+import java.util.List;
+
+/**
+ * 一个文件分析完的结果：按偏移排列的全局变量表和函数表
+ */
+public class Program {
+    private final List<SymbolEntry> globals;
+    private final FuncTable funcTable;
+
+    public Program(List<SymbolEntry> globals, FuncTable funcTable) {
+        this.globals = globals;
+        this.funcTable = funcTable;
+    }
+
+    public List<SymbolEntry> getGlobals() {
+        return globals;
+    }
+
+    public FuncTable getFuncTable() {
+        return funcTable;
+    }
+
+    /**
+     * 按 funcOffset 排列的函数，_start 排在最前面
+     */
+    public List<FuncEntry> functions() {
+        return funcTable.entries();
+    }
+}
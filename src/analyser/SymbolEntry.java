@@ -11,6 +11,9 @@ public class SymbolEntry {
     String global_value;
     //变量类型 0为void（变量应该不会有0，但是Func可能为0）,1为int,2为double
     int variableType;
+    //常量的初值能在编译期算出来时记在这里，使用处直接 push 这个值
+    boolean hasConstantValue;
+    long constantValue;
     /**
      * @param isConstant
      * @param isDeclared
@@ -52,6 +55,19 @@ public class SymbolEntry {
         this.global_count = global_count;
     }
 
+    public boolean hasConstantValue() {
+        return hasConstantValue;
+    }
+
+    public long getConstantValue() {
+        return constantValue;
+    }
+
+    public void setConstantValue(long constantValue) {
+        this.hasConstantValue = true;
+        this.constantValue = constantValue;
+    }
+
     public String getGlobal_value() {
         return global_value;
     }
@@ -0,0 +1,197 @@
+package analyser;
+
+import java.util.Arrays;
+
+/**
+ * 带作用域的符号表，键是 NameTable 中的编号
+ * 每个符号是一条记录，各个字段按列存放在基本类型数组里；查找一次得到记录号，再用它读出种类、slot、类型和标志
+ * 进入代码块时 push，离开时 pop 撤销这一层声明的符号，内层的符号遮住外层的同名符号
+ */
+public final class SymbolTable {
+    public static final int NONE = -1;
+
+    /** 符号的种类 */
+    public static final byte LOCAL = 0;
+    public static final byte PARAM = 1;
+    public static final byte GLOBAL = 2;
+
+    private static final byte CONSTANT = 1;
+    private static final byte INITIALIZED = 2;
+    private static final byte HAS_VALUE = 4;
+
+    /** 记录：名字编号、种类、slot、类型、标志、编译期已知的常量值，以及被它遮住的同名记录 */
+    private int[] names = new int[16];
+    private byte[] kinds = new byte[16];
+    private int[] slots = new int[16];
+    private byte[] types = new byte[16];
+    private byte[] flags = new byte[16];
+    private long[] values = new long[16];
+    private int[] shadowed = new int[16];
+    private int size = 0;
+
+    /** 开放寻址的哈希表：keys 存名字编号 + 1，0 表示空槽；heads 是这个名字当前可见的记录，NONE 表示都已经出了作用域 */
+    private int[] keys = new int[32];
+    private int[] heads = new int[32];
+    private int mask = 31;
+    private int used = 0;
+
+    /** 每一层作用域第一条记录的下标 */
+    private int[] scopes = new int[8];
+    private int depth = 0;
+
+    /**
+     * 进入一层新的作用域
+     */
+    public void push() {
+        if (depth == scopes.length) {
+            scopes = Arrays.copyOf(scopes, depth * 2);
+        }
+        scopes[depth++] = size;
+    }
+
+    /**
+     * 离开当前作用域，其中声明的符号都不再可见
+     */
+    public void pop() {
+        int start = scopes[--depth];
+        for (int symbol = size - 1; symbol >= start; symbol--) {
+            heads[slotOf(names[symbol])] = shadowed[symbol];
+        }
+        size = start;
+    }
+
+    /**
+     * 在当前作用域中声明一个符号，返回记录号；同一层已经有这个名字时返回 NONE
+     */
+    public int declare(int name, byte kind, int slot, int type, boolean isConstant, boolean isInitialized) {
+        int index = slotOf(name);
+        if (keys[index] == 0) {
+            keys[index] = name + 1;
+            heads[index] = NONE;
+            used++;
+        }
+        int previous = heads[index];
+        if (previous != NONE && previous >= (depth > 0 ? scopes[depth - 1] : 0)) {
+            return NONE;
+        }
+        if (size == names.length) {
+            grow();
+        }
+        int symbol = size++;
+        names[symbol] = name;
+        kinds[symbol] = kind;
+        slots[symbol] = slot;
+        types[symbol] = (byte) type;
+        flags[symbol] = (byte) ((isConstant ? CONSTANT : 0) | (isInitialized ? INITIALIZED : 0));
+        values[symbol] = 0;
+        shadowed[symbol] = previous;
+        heads[index] = symbol;
+        if (used * 2 > keys.length) {
+            rehash();
+        }
+        return symbol;
+    }
+
+    /**
+     * 查找名字当前可见的符号，不存在时返回 NONE
+     */
+    public int find(int name) {
+        int index = mix(name) & mask;
+        while (true) {
+            int key = keys[index];
+            if (key == 0) {
+                return NONE;
+            }
+            if (key == name + 1) {
+                return heads[index];
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * 当前的记录数；全局的表只声明不 pop，记录号就是声明的先后顺序
+     */
+    public int size() {
+        return size;
+    }
+
+    public byte kind(int symbol) {
+        return kinds[symbol];
+    }
+
+    public int slot(int symbol) {
+        return slots[symbol];
+    }
+
+    public int type(int symbol) {
+        return types[symbol];
+    }
+
+    public boolean isConstant(int symbol) {
+        return (flags[symbol] & CONSTANT) != 0;
+    }
+
+    public boolean isInitialized(int symbol) {
+        return (flags[symbol] & INITIALIZED) != 0;
+    }
+
+    public void setInitialized(int symbol) {
+        flags[symbol] |= INITIALIZED;
+    }
+
+    public boolean hasConstantValue(int symbol) {
+        return (flags[symbol] & HAS_VALUE) != 0;
+    }
+
+    public long constantValue(int symbol) {
+        return values[symbol];
+    }
+
+    public void setConstantValue(int symbol, long value) {
+        flags[symbol] |= HAS_VALUE;
+        values[symbol] = value;
+    }
+
+    /**
+     * 名字在哈希表中的槽，不存在时返回应该插入的空槽
+     */
+    private int slotOf(int name) {
+        int index = mix(name) & mask;
+        while (keys[index] != 0 && keys[index] != name + 1) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void grow() {
+        int capacity = names.length * 2;
+        names = Arrays.copyOf(names, capacity);
+        kinds = Arrays.copyOf(kinds, capacity);
+        slots = Arrays.copyOf(slots, capacity);
+        types = Arrays.copyOf(types, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        values = Arrays.copyOf(values, capacity);
+        shadowed = Arrays.copyOf(shadowed, capacity);
+    }
+
+    private void rehash() {
+        var oldKeys = keys;
+        var oldHeads = heads;
+        keys = new int[oldKeys.length * 2];
+        heads = new int[oldKeys.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int index = slotOf(oldKeys[i] - 1);
+                keys[index] = oldKeys[i];
+                heads[index] = oldHeads[i];
+            }
+        }
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
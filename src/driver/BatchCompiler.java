@@ -0,0 +1,213 @@
+package driver;
+
+import tokenizer.StringIter;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 批量编译：每个文件走一条独立的 StringIter -> Tokenizer -> Analyser 流水线
+ * 读写文件放在 I/O 线程上（有虚拟线程时用虚拟线程），分析放在按 CPU 核数划分的线程池上
+ * 输出文件写在输入文件旁边，扩展名换成 Compiler.outputSuffix()
+ */
+public class BatchCompiler {
+    public static final String SOURCE_SUFFIX = ".c0";
+
+    private final Compiler compiler;
+    private final int cpuThreads;
+
+    /** 每个文件的编译结果 */
+    public static class Result {
+        final Path input;
+        final Path output;
+        /** 失败时的错误，成功为 null */
+        final Throwable error;
+        /** 从开始读文件到写完输出的耗时，单位纳秒 */
+        final long nanos;
+
+        Result(Path input, Path output, Throwable error, long nanos) {
+            this.input = input;
+            this.output = output;
+            this.error = error;
+            this.nanos = nanos;
+        }
+
+        public boolean isOk() {
+            return error == null;
+        }
+    }
+
+    public BatchCompiler(Compiler compiler) {
+        this(compiler, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BatchCompiler(Compiler compiler, int cpuThreads) {
+        this.compiler = compiler;
+        this.cpuThreads = Math.max(1, cpuThreads);
+    }
+
+    /**
+     * 把命令行参数展开成输入文件列表：
+     * 目录递归查找其中的 .c0 文件，@file 表示每行一个路径的文件列表，其余参数直接当作输入文件
+     */
+    public static List<Path> collectInputs(List<String> args) throws IOException {
+        var inputs = new ArrayList<Path>();
+        for (String arg : args) {
+            if (arg.startsWith("@")) {
+                for (String line : Files.readAllLines(Paths.get(arg.substring(1)))) {
+                    line = line.trim();
+                    if (!line.isEmpty()) {
+                        inputs.add(Paths.get(line));
+                    }
+                }
+            } else if (Files.isDirectory(Paths.get(arg))) {
+                try (Stream<Path> walk = Files.walk(Paths.get(arg))) {
+                    inputs.addAll(walk.filter(p -> p.toString().endsWith(SOURCE_SUFFIX) && Files.isRegularFile(p))
+                            .sorted()
+                            .collect(Collectors.toList()));
+                }
+            } else {
+                inputs.add(Paths.get(arg));
+            }
+        }
+        return inputs;
+    }
+
+    public static Path outputOf(Path input, String suffix) {
+        String name = input.getFileName().toString();
+        if (name.endsWith(SOURCE_SUFFIX)) {
+            name = name.substring(0, name.length() - SOURCE_SUFFIX.length());
+        }
+        return input.resolveSibling(name + suffix);
+    }
+
+    /**
+     * 编译所有文件，返回的结果和 inputs 一一对应
+     * 同时在途的文件数不超过 CPU 线程数的 4 倍，避免一次把所有源文件都读进内存
+     */
+    public List<Result> compileAll(List<Path> inputs) {
+        ExecutorService io = newIoExecutor();
+        ExecutorService cpu = Executors.newFixedThreadPool(cpuThreads);
+        var inFlight = new Semaphore(cpuThreads * 4);
+        var futures = new ArrayList<CompletableFuture<Result>>(inputs.size());
+        try {
+            for (Path input : inputs) {
+                inFlight.acquireUninterruptibly();
+                futures.add(compileOne(input, io, cpu).whenComplete((r, e) -> inFlight.release()));
+            }
+            var results = new ArrayList<Result>(futures.size());
+            for (var future : futures) {
+                results.add(future.join());
+            }
+            return results;
+        } finally {
+            io.shutdown();
+            cpu.shutdown();
+        }
+    }
+
+    private CompletableFuture<Result> compileOne(Path input, ExecutorService io, ExecutorService cpu) {
+        long start = System.nanoTime();
+        Path output = outputOf(input, compiler.outputSuffix());
+        Path cacheFile = compiler.isIncremental() ? Compiler.cacheFileFor(output) : null;
+        var read = CompletableFuture
+                .supplyAsync(() -> {
+                    try {
+                        return new StringIter(input);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, io);
+        CompletableFuture<Result> done;
+        if (compiler.isStreaming()) {
+            //边分析边写，分析和输出都在 CPU 线程上
+            done = read.thenApplyAsync(source -> {
+                try {
+                    compiler.stream(source, output, cacheFile);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+                return new Result(input, output, null, System.nanoTime() - start);
+            }, cpu);
+        } else {
+            done = read
+                    .thenApplyAsync(source -> {
+                        try {
+                            return compiler.analyse(source, cacheFile);
+                        } catch (Exception e) {
+                            throw new CompletionException(e);
+                        }
+                    }, cpu)
+                    .thenApplyAsync(program -> {
+                        try {
+                            compiler.write(program, output);
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
+                        }
+                        return new Result(input, output, null, System.nanoTime() - start);
+                    }, io);
+        }
+        return done.exceptionally(e -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            return new Result(input, output, cause, System.nanoTime() - start);
+        });
+    }
+
+    /**
+     * 运行时支持虚拟线程（JDK 21+）时每个 I/O 任务一个虚拟线程，否则退回到缓存线程池
+     * 通过反射调用，这样在较老的 JDK 上也能编译
+     */
+    static ExecutorService newIoExecutor() {
+        try {
+            var factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                var thread = new Thread(r, "batch-io");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * 汇总报告：成功和失败的文件数、总耗时、吞吐量、单个文件耗时的分位数，以及每个失败文件的错误
+     */
+    public static void report(List<Result> results, long wallNanos, PrintStream out) {
+        int failed = 0;
+        long[] sorted = new long[results.size()];
+        for (int i = 0; i < results.size(); i++) {
+            var result = results.get(i);
+            sorted[i] = result.nanos;
+            if (!result.isOk()) {
+                failed++;
+                out.println("error\t" + result.input + "\t" + String.valueOf(result.error).replace('\n', ' '));
+            }
+        }
+        Arrays.sort(sorted);
+        double seconds = wallNanos / 1e9;
+        out.printf("files=%d ok=%d failed=%d wall=%dms throughput=%.1f files/s",
+                results.size(), results.size() - failed, failed, TimeUnit.NANOSECONDS.toMillis(wallNanos),
+                seconds > 0 ? results.size() / seconds : 0.0);
+        if (sorted.length > 0) {
+            out.printf(" p50=%dus p99=%dus max=%dus",
+                    CompileServer.percentile(sorted, 50) / 1000, CompileServer.percentile(sorted, 99) / 1000, sorted[sorted.length - 1] / 1000);
+        }
+        out.println();
+    }
+
+}
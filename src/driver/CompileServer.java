@@ -0,0 +1,172 @@
+package driver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * 常驻的编译服务，省掉每次编译时 JVM 启动和 JIT 预热的开销
+ * 协议是按行的文本，字段之间用 \t 分隔：
+ * 请求  compile\t输入文件\t输出文件 | stats | quit
+ * 响应  ok\t输入文件\t耗时(微秒) | error\t输入文件\t错误信息 | stats\t...
+ * 每个请求都单独处理，一个文件编译失败不会影响服务本身
+ */
+public class CompileServer {
+    /** 启动时用来预热的程序，覆盖词法分析和语法分析的主要路径 */
+    private static final String WARMUP_PROGRAM =
+            "fn main() -> int {\n" +
+            "    let i: int = 0;\n" +
+            "    let j: int = 10;\n" +
+            "    // 注释\n" +
+            "    while i < j {\n" +
+            "        if i == 5 {\n" +
+            "            putint(i * 2 - 1 / 1);\n" +
+            "        } else {\n" +
+            "            putchar('a');\n" +
+            "        }\n" +
+            "        putln();\n" +
+            "        i = i + 1;\n" +
+            "    }\n" +
+            "    return 0;\n" +
+            "}\n";
+    private static final int WARMUP_ROUNDS = 2000;
+
+    private final Compiler compiler;
+    private final BufferedReader input;
+    private final PrintStream output;
+
+    /** 每个请求的耗时，单位纳秒 */
+    private long[] latencies = new long[64];
+    private int count = 0;
+    private int failed = 0;
+
+    public CompileServer(Compiler compiler, InputStream input, OutputStream output) {
+        this.compiler = compiler;
+        this.input = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        this.output = new PrintStream(output, true, StandardCharsets.UTF_8);
+    }
+
+    public void run() {
+        warmUp();
+        output.println("ready");
+        try {
+            String line;
+            while ((line = input.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                switch (fields[0]) {
+                    case "compile":
+                        if (fields.length != 3) {
+                            output.println("error\t\tusage: compile\\t<input>\\t<output>");
+                        } else {
+                            handleCompile(fields[1], fields[2]);
+                        }
+                        break;
+                    case "stats":
+                        output.println("stats\t" + summary());
+                        break;
+                    case "quit":
+                        return;
+                    default:
+                        output.println("error\t\tunknown command: " + fields[0]);
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println(e);
+        } finally {
+            System.err.println(summary());
+        }
+    }
+
+    private void handleCompile(String inputFile, String outputFile) {
+        long start = System.nanoTime();
+        try {
+            compiler.compile(Paths.get(inputFile), Paths.get(outputFile));
+            long elapsed = System.nanoTime() - start;
+            record(elapsed);
+            output.println("ok\t" + inputFile + "\t" + elapsed / 1000);
+        } catch (Exception | StackOverflowError e) {
+            // 嵌套很深的输入会让递归下降的分析栈溢出，这只算这个文件编译失败
+            record(System.nanoTime() - start);
+            failed++;
+            output.println("error\t" + inputFile + "\t" + String.valueOf(e).replace('\n', ' '));
+        }
+    }
+
+    /**
+     * 反复编译内置的程序，让 Tokenizer、Analyser 以及优化和输出的热点方法在第一个请求之前就被 JIT 编译
+     * 和真正的请求一样走 compile，读写临时目录里的文件，用完删掉
+     */
+    private void warmUp() {
+        Path dir = null;
+        try {
+            dir = Files.createTempDirectory("c0-warmup");
+            Path source = dir.resolve("warmup.c0");
+            Path target = dir.resolve("warmup" + compiler.outputSuffix());
+            Files.writeString(source, WARMUP_PROGRAM);
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                compiler.compile(source, target);
+            }
+        } catch (Exception e) {
+            // 预热程序本身不应该出错，出错也不影响服务
+            System.err.println("warm-up failed: " + e);
+        } finally {
+            deleteAll(dir);
+        }
+    }
+
+    private static void deleteAll(Path dir) {
+        if (dir == null) {
+            return;
+        }
+        try (var files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            System.err.println("cannot remove " + dir + ": " + e);
+        }
+    }
+
+    private void record(long nanos) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = nanos;
+    }
+
+    /**
+     * 请求数、失败数以及耗时的平均值和分位数，单位微秒
+     */
+    public String summary() {
+        if (count == 0) {
+            return "requests=0";
+        }
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long nanos : sorted) {
+            total += nanos;
+        }
+        return String.format("requests=%d failed=%d mean=%dus p50=%dus p99=%dus max=%dus",
+                count, failed, total / count / 1000,
+                percentile(sorted, 50) / 1000, percentile(sorted, 99) / 1000, sorted[count - 1] / 1000);
+    }
+
+    static long percentile(long[] sorted, int p) {
+        int index = (int) Math.ceil(sorted.length * p / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
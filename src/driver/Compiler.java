@@ -0,0 +1,258 @@
+package driver;
+
+import analyser.Analyser;
+import analyser.BodyCache;
+import analyser.FuncEntry;
+import analyser.FuncTable;
+import analyser.Program;
+import emitter.O0Writer;
+import emitter.StreamingWriter;
+import error.CompileError;
+import optimizer.OptimizationReport;
+import optimizer.Peephole;
+import tokenizer.NameTable;
+import tokenizer.ParallelLexer;
+import tokenizer.StringIter;
+import tokenizer.TokenStream;
+import tokenizer.Tokenizer;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * 一次完整的编译：读入源文件、词法分析、语法分析、输出指令
+ * 本身不保存每次编译的状态，可以在同一个进程里反复调用
+ */
+public class Compiler {
+    /** 是否对大文件使用分块并行的词法分析 */
+    private boolean parallelLex = false;
+    /** 是否在多个线程上并行分析各个函数体 */
+    private boolean parallelAnalyse = false;
+    /** 输出二进制的 o0 文件，否则输出文本形式的指令列表 */
+    private boolean binary = false;
+    /** 分析完之后是否做窥孔优化 */
+    private boolean optimize = false;
+    /** 增量编译：输出文件旁边保存函数体的缓存，没有变的函数体不再分析 */
+    private boolean incremental = false;
+    /** 每个函数体生成之后马上写出并释放，不在内存中保留整个程序的指令 */
+    private boolean streaming = false;
+    /** 不为 null 时把每个函数优化前后的指令条数和增量编译的命中情况打印到这里 */
+    private PrintStream reportLog = null;
+
+    public boolean isParallelLex() {
+        return parallelLex;
+    }
+
+    public void setParallelLex(boolean parallelLex) {
+        this.parallelLex = parallelLex;
+    }
+
+    public boolean isParallelAnalyse() {
+        return parallelAnalyse;
+    }
+
+    public void setParallelAnalyse(boolean parallelAnalyse) {
+        this.parallelAnalyse = parallelAnalyse;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    public boolean isOptimize() {
+        return optimize;
+    }
+
+    public void setOptimize(boolean optimize) {
+        this.optimize = optimize;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public void setReportLog(PrintStream reportLog) {
+        this.reportLog = reportLog;
+    }
+
+    /**
+     * 输出文件对应的函数体缓存
+     */
+    public static Path cacheFileFor(Path output) {
+        return output.resolveSibling(output.getFileName() + ".cache");
+    }
+
+    public Program analyse(StringIter source) throws CompileError {
+        return analyse(source, null);
+    }
+
+    /**
+     * cacheFile 不为 null 时从这里读入函数体缓存，分析完再把本次用到的写回去
+     */
+    public Program analyse(StringIter source, Path cacheFile) throws CompileError {
+        var program = run(newAnalyser(source), cacheFile);
+        if (optimize) {
+            log(OptimizationReport.frames(program));
+            log(Peephole.optimize(program));
+        }
+        return program;
+    }
+
+    /**
+     * 边分析边把函数写到 output，分析完只剩下全局变量表和 _start 在内存中
+     * 优化也是逐个函数进行的，得到的文件和 write(analyse(source), output) 完全相同
+     */
+    public void stream(StringIter source, Path output, Path cacheFile) throws IOException, CompileError {
+        try (var writer = new StreamingWriter(output, binary)) {
+            var analyser = newAnalyser(source);
+            var frames = new OptimizationReport("frame");
+            var peephole = new OptimizationReport("peephole");
+            if (optimize) {
+                //sink 在调用 analyse 的线程上按顺序调用，这时函数名都已经在全局变量表里了
+                var globals = analyser.getGlobals();
+                analyser.setSink(function -> {
+                    frames.addFrame(function, globals);
+                    Peephole.optimize(function, globals, peephole);
+                    writer.accept(function);
+                });
+            } else {
+                analyser.setSink(writer);
+            }
+            Program program;
+            try {
+                program = run(analyser, cacheFile);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (optimize) {
+                var start = program.getFuncTable().get(0);
+                frames.addFrame(start, program.getGlobals());
+                Peephole.optimize(start, program.getGlobals(), peephole);
+                log(frames);
+                log(peephole);
+            }
+            writer.finish(program);
+        }
+    }
+
+    private Analyser newAnalyser(StringIter source) throws CompileError {
+        TokenStream tokens;
+        if (parallelLex) {
+            tokens = new ParallelLexer().tokenizeAll(source, new NameTable());
+        } else {
+            tokens = new Tokenizer(source).tokenizeAll();
+        }
+        var analyser = new Analyser(tokens);
+        if (parallelAnalyse) {
+            analyser.setPool(ForkJoinPool.commonPool());
+        }
+        return analyser;
+    }
+
+    private Program run(Analyser analyser, Path cacheFile) throws CompileError {
+        BodyCache cache = null;
+        if (cacheFile != null) {
+            cache = BodyCache.load(cacheFile);
+            analyser.setCache(cache);
+        }
+        var funcTable = analyser.analyse();
+        if (cache != null) {
+            saveCache(cache, cacheFile);
+        }
+        return new Program(analyser.getGlobals(), funcTable);
+    }
+
+    private void log(OptimizationReport report) {
+        var out = reportLog;
+        if (out != null) {
+            // 批量编译时多个线程共用一个输出
+            synchronized (out) {
+                report.print(out);
+            }
+        }
+    }
+
+    /**
+     * 缓存只是加速用的，写不进去不影响这次编译的结果
+     */
+    private void saveCache(BodyCache cache, Path cacheFile) {
+        String message;
+        try {
+            cache.save(cacheFile);
+            message = String.format("incremental %s: %d reused, %d analysed", cacheFile, cache.getHits(), cache.getMisses());
+        } catch (IOException e) {
+            message = "cannot write cache " + cacheFile + ": " + e;
+        }
+        var out = reportLog;
+        if (out != null) {
+            synchronized (out) {
+                out.println(message);
+            }
+        }
+    }
+
+    /**
+     * 编译 input，把指令写到 output
+     */
+    public void compile(Path input, Path output) throws IOException, CompileError {
+        var cacheFile = incremental ? cacheFileFor(output) : null;
+        if (streaming) {
+            stream(new StringIter(input), output, cacheFile);
+        } else {
+            write(analyse(new StringIter(input), cacheFile), output);
+        }
+    }
+
+    /**
+     * 按设置的格式把分析结果写到 output
+     */
+    public void write(Program program, Path output) throws IOException {
+        if (binary) {
+            O0Writer.write(program, output);
+        } else {
+            try (var out = new PrintStream(new BufferedOutputStream(Files.newOutputStream(output)))) {
+                writeListing(program.getFuncTable(), out);
+            }
+        }
+    }
+
+    /**
+     * 输出文件默认的扩展名
+     */
+    public String outputSuffix() {
+        return binary ? ".o0" : ".out";
+    }
+
+    /**
+     * 以文本形式按 funcOffset 的顺序输出每个函数的指令，每行一条
+     */
+    public static void writeListing(FuncTable funcTable, PrintStream output) {
+        for (FuncEntry funcEntry : funcTable) {
+            var body = funcEntry.getInstructions();
+            for (int i = 0; i < body.size(); i++) {
+                output.println(body.toString(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package emitter;
+
+import analyser.FuncEntry;
+import analyser.Program;
+import analyser.SymbolEntry;
+import instruction.CodeBuffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * 输出二进制的 o0 文件，所有整数都是大端序：
+ * magic u32, version u32,
+ * globals: count u32, (is_const u8, value_count u32, value u8[])*
+ * functions: count u32, (name u32, ret_slots u32, param_slots u32, loc_slots u32, body_count u32, instruction*)*
+ * instruction: opcode u8, 操作数 u32 或 u64（只有 push 是 u64），没有操作数的指令只有 opcode
+ * 所有内容先写进同一个 ByteBuffer，满了再写到 channel
+ * 函数按 funcOffset 的顺序输出，同样的源文件总是得到完全相同的字节，可以用 hash 的结果作为缓存的键
+ */
+public class O0Writer implements Closeable {
+    public static final int MAGIC = 0x72303b3e;
+    public static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final WritableByteChannel channel;
+    /** ByteBuffer 默认就是大端序 */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    public O0Writer(Path path) throws IOException {
+        this(FileChannel.open(path, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    public O0Writer(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public static void write(Program program, Path path) throws IOException {
+        try (var writer = new O0Writer(path)) {
+            writer.writeProgram(program);
+        }
+    }
+
+    /**
+     * o0 内容的 SHA-256，十六进制表示，不写文件
+     */
+    public static String hash(Program program) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error("SHA-256 not available", e);
+        }
+        var sink = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int bytes = src.remaining();
+                digest.update(src);
+                return bytes;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        try (var writer = new O0Writer(sink)) {
+            writer.writeProgram(program);
+        } catch (IOException e) {
+            throw new Error("hashing never does I/O", e);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    public void writeProgram(Program program) throws IOException {
+        List<FuncEntry> functions = program.functions();
+        writeHeader(program.getGlobals(), functions.size());
+        for (FuncEntry function : functions) {
+            writeFunction(function);
+        }
+    }
+
+    /**
+     * 写出函数之前的部分：magic、version、全局变量表和函数的个数
+     */
+    void writeHeader(List<SymbolEntry> globals, int functionCount) throws IOException {
+        putInt(MAGIC);
+        putInt(VERSION);
+        putInt(globals.size());
+        for (SymbolEntry global : globals) {
+            writeGlobal(global);
+        }
+        putInt(functionCount);
+    }
+
+    private void writeGlobal(SymbolEntry global) throws IOException {
+        ensure(1);
+        buffer.put((byte) (global.isConstant() ? 1 : 0));
+        String value = global.getGlobal_value();
+        if (global.hasConstantValue()) {
+            //编译期算出值的常量不在 _start 中赋值，直接写入初值
+            putInt(8);
+            ensure(8);
+            buffer.putLong(global.getConstantValue());
+        } else if (value == null || value.isEmpty()) {
+            //变量和常量的初值在 _start 中赋值，这里全部填 0
+            putInt(global.getGlobal_count());
+            for (int i = 0; i < global.getGlobal_count(); i++) {
+                ensure(1);
+                buffer.put((byte) 0);
+            }
+        } else {
+            //函数名和字符串存的是它的全拼
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            putBytes(bytes);
+        }
+    }
+
+    void writeFunction(FuncEntry function) throws IOException {
+        CodeBuffer body = function.getInstructions();
+        putInt(function.getFunc_name());
+        putInt(function.getRet_num());
+        putInt(function.getParam_num());
+        putInt(function.getLocVarNum());
+        putInt(body.size());
+        for (int i = 0; i < body.size(); i++) {
+            var opt = body.op(i);
+            int size = opt.operandSize();
+            ensure(1 + size);
+            buffer.put((byte) opt.getNum());
+            if (size == 8) {
+                buffer.putLong(body.arg(i));
+            } else if (size == 4) {
+                buffer.putInt((int) body.arg(i));
+            }
+        }
+    }
+
+    private void putInt(int value) throws IOException {
+        ensure(4);
+        buffer.putInt(value);
+    }
+
+    private void putBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            ensure(1);
+            int count = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, count);
+            offset += count;
+        }
+    }
+
+    /**
+     * 保证缓冲区至少还有 bytes 个字节的空间，不够就先写出
+     */
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
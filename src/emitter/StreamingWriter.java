@@ -0,0 +1,111 @@
+package emitter;
+
+import analyser.FuncEntry;
+import analyser.FunctionSink;
+import analyser.Program;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 边分析边输出：每个函数体生成之后马上写进输出文件旁边的临时文件，Analyser 随即释放它
+ * o0 和文本格式里 _start 都排在最前面，全局变量表也要等 _start 的名字加进去才完整，
+ * 所以 finish 时先写出全局变量表和 _start，再把临时文件整段拷到后面，得到的文件和一次性输出的完全相同
+ * 内存里只需要放正在分析的函数体
+ */
+public final class StreamingWriter implements FunctionSink, Closeable {
+    private final Path output;
+    private final boolean binary;
+    private final Path spill;
+    private final FileChannel spillChannel;
+    /** binary 时往临时文件里写 o0 格式的函数 */
+    private final O0Writer o0;
+    /** 否则写文本形式的指令 */
+    private final PrintStream listing;
+
+    public StreamingWriter(Path output, boolean binary) throws IOException {
+        this.output = output;
+        this.binary = binary;
+        this.spill = Files.createTempFile(output.toAbsolutePath().getParent(), output.getFileName().toString(), ".part");
+        this.spillChannel = FileChannel.open(spill, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        if (binary) {
+            this.o0 = new O0Writer(spillChannel);
+            this.listing = null;
+        } else {
+            this.o0 = null;
+            this.listing = listingStream(spillChannel);
+        }
+    }
+
+    @Override
+    public void accept(FuncEntry function) throws IOException {
+        if (binary) {
+            o0.writeFunction(function);
+        } else {
+            writeListing(function, listing);
+        }
+    }
+
+    /**
+     * 所有函数都交过来之后调用：写出文件头、全局变量表和 _start，然后接上临时文件中的函数
+     */
+    public void finish(Program program) throws IOException {
+        if (binary) {
+            o0.flush();
+        } else if (listing.checkError()) {
+            throw new IOException("cannot write " + spill);
+        }
+        var start = program.getFuncTable().get(0);
+        try (var out = FileChannel.open(output, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (binary) {
+                var head = new O0Writer(out);
+                head.writeHeader(program.getGlobals(), program.getFuncTable().size());
+                head.writeFunction(start);
+                head.flush();
+            } else {
+                var head = listingStream(out);
+                writeListing(start, head);
+                if (head.checkError()) {
+                    throw new IOException("cannot write " + output);
+                }
+            }
+            long size = spillChannel.size();
+            long position = 0;
+            while (position < size) {
+                position += spillChannel.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            spillChannel.close();
+        } finally {
+            Files.deleteIfExists(spill);
+        }
+    }
+
+    /**
+     * 写到 channel 上的 PrintStream，不关闭它，channel 由调用者关闭
+     */
+    private static PrintStream listingStream(FileChannel channel) {
+        return new PrintStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), false);
+    }
+
+    private static void writeListing(FuncEntry function, PrintStream out) {
+        var body = function.getInstructions();
+        for (int i = 0; i < body.size(); i++) {
+            out.println(body.toString(i));
+        }
+    }
+}
@@ -2,7 +2,7 @@ package error;
 
 public enum ErrorCode {
     NoError, // Should be only used internally.
-    StreamError, EOF, InvalidInput, InvalidIdentifier, IntegerOverflow, // int32_t overflow.
+    StreamError, EOF, InvalidInput, InvalidIdentifier, IntegerOverflow, // int64_t overflow.
     NoBegin, NoEnd, NeedIdentifier, ConstantNeedValue, NoSemicolon, InvalidVariableDeclaration, IncompleteExpression,
     NotDeclared, AssignToConstant, DuplicateDeclaration, NotInitialized, InvalidAssignment, InvalidPrint, ExpectedToken
 }
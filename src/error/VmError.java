@@ -0,0 +1,21 @@
+package error;
+
+/**
+ * 虚拟机运行时的错误，比如栈溢出、除以零、调用了不存在的标准库函数
+ */
+public class VmError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public VmError(String message) {
+        super(message);
+    }
+
+    public VmError(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    @Override
+    public String toString() {
+        return "VM Error: " + getMessage();
+    }
+}
@@ -0,0 +1,94 @@
+package instruction;
+
+import java.util.Arrays;
+
+/**
+ * 一个函数体的指令序列，opcode 和操作数分别存放在 byte[] 和 long[] 里，不为每条指令分配对象
+ * 通过下标访问：add 追加并返回下标，setArg 回填跳转的偏移，op / arg 读出某一条
+ */
+public final class CodeBuffer {
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    /** Operation 的 ordinal */
+    private byte[] ops;
+    private long[] args;
+    private int size = 0;
+
+    public CodeBuffer() {
+        this(16);
+    }
+
+    public CodeBuffer(int capacity) {
+        capacity = Math.max(capacity, 4);
+        this.ops = new byte[capacity];
+        this.args = new long[capacity];
+    }
+
+    /**
+     * 追加一条没有操作数的指令，返回它的下标
+     */
+    public int add(Operation op) {
+        return add(op, 0);
+    }
+
+    /**
+     * 追加一条指令，返回它的下标
+     */
+    public int add(Operation op, long arg) {
+        if (size == ops.length) {
+            ops = Arrays.copyOf(ops, size * 2);
+            args = Arrays.copyOf(args, size * 2);
+        }
+        ops[size] = (byte) op.ordinal();
+        args[size] = arg;
+        return size++;
+    }
+
+    /**
+     * 把 other 中的第 index 条追加到末尾
+     */
+    public int add(CodeBuffer other, int index) {
+        return add(other.op(index), other.arg(index));
+    }
+
+    /**
+     * 修改某一条的操作数，用于回填跳转
+     */
+    public void setArg(int index, long arg) {
+        args[index] = arg;
+    }
+
+    public Operation op(int index) {
+        return OPERATIONS[ops[index]];
+    }
+
+    public long arg(int index) {
+        return args[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 第 i 条和第 j 条的 opcode 和操作数都相同
+     */
+    public boolean same(int i, int j) {
+        return ops[i] == ops[j] && args[i] == args[j];
+    }
+
+    public CodeBuffer copy() {
+        var copy = new CodeBuffer(size);
+        System.arraycopy(ops, 0, copy.ops, 0, size);
+        System.arraycopy(args, 0, copy.args, 0, size);
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * 第 index 条的文本形式，和 Instruction.toString() 相同
+     */
+    public String toString(int index) {
+        return Instruction.format(op(index), args[index]);
+    }
+}
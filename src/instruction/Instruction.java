@@ -1,10 +1,10 @@
 package instruction;
-import java.util.Objects;
 
 public class Instruction {
     private Operation opt;
     private int OptNum;
-    Integer x;
+    /** 操作数，push 的 64 位值（double 为 Double.doubleToRawLongBits 后的值）也直接放在这里 */
+    long x;
 
     public Instruction(Operation opt) {
         this.opt = opt;
@@ -20,7 +20,7 @@ public class Instruction {
         OptNum = optNum;
     }
 
-    public Instruction(Operation opt, Integer x) {
+    public Instruction(Operation opt, long x) {
         this.opt = opt;
         this.OptNum = opt.getNum();
         this.x = x;
@@ -41,12 +41,12 @@ public class Instruction {
         if (o == null || getClass() != o.getClass())
             return false;
         Instruction that = (Instruction) o;
-        return opt == that.opt && Objects.equals(x, that.x);
+        return opt == that.opt && x == that.x;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(opt, x);
+        return 31 * opt.hashCode() + Long.hashCode(x);
     }
 
     public Operation getOpt() {
@@ -57,21 +57,28 @@ public class Instruction {
         this.opt = opt;
     }
 
-    public Integer getX() {
+    public long getX() {
         return x;
     }
 
-    public void setX(Integer x) {
+    public void setX(long x) {
         this.x = x;
     }
 
 
     public String toNum(){
-        return Integer.toString(this.opt.getNum())+Integer.toString(this.x);
+        return Integer.toString(this.opt.getNum())+Long.toString(this.x);
     }
     @Override
     public String toString() {
-        switch (this.opt) {
+        return format(this.opt, this.x);
+    }
+
+    /**
+     * 一条指令的文本形式，CodeBuffer 输出时也用它
+     */
+    public static String format(Operation opt, long x) {
+        switch (opt) {
             case nop:
             case pop:
             case dup:
@@ -120,7 +127,7 @@ public class Instruction {
             case print_s:
             case println:
             case panic:
-                return String.format("%s", this.opt.toString().toUpperCase());
+                return opt.toString().toUpperCase();
             case push:
             case popn:
             case loca:
@@ -132,7 +139,7 @@ public class Instruction {
             case br_true:
             case call:
             case callname:
-                return String.format("%s %s", this.opt.toString().toUpperCase(), this.x);
+                return opt.toString().toUpperCase() + " " + x;
             default:
                 return "panic";
         }
@@ -132,5 +132,27 @@ public enum Operation {
                 return 0xfe;
         }
     }
-}
 
+    /**
+     * 操作数在 o0 文件中占的字节数：push 为 64 位，其余带操作数的指令为 32 位，没有操作数为 0
+     */
+    public int operandSize() {
+        switch (this) {
+            case push:
+                return 8;
+            case popn:
+            case loca:
+            case arga:
+            case globa:
+            case stackalloc:
+            case br:
+            case br_false:
+            case br_true:
+            case call:
+            case callname:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package ir;
+
+import java.util.Arrays;
+
+/**
+ * 一个函数的语法树
+ * 所有节点放在几个平行的基本类型数组里，节点用下标表示，NONE 表示空，不为每个节点分配对象
+ * 同一层的语句、函数调用的参数用 next 串成链表
+ */
+public class Ast {
+    public static final int NONE = -1;
+
+    // 表达式
+    /** value：常量的值 */
+    public static final int CONST = 0;
+    /** a：字符串在全局变量表中的偏移 */
+    public static final int STRING = 1;
+    /** a：局部变量的偏移 */
+    public static final int LOCAL = 2;
+    /** a：参数的偏移，已经算上了返回值占的位置 */
+    public static final int PARAM = 3;
+    /** a：全局变量的偏移 */
+    public static final int GLOBAL = 4;
+    /** a：操作数 */
+    public static final int NEG = 5;
+    /** a：左操作数，b：右操作数，ADD 到 GE 都是这样 */
+    public static final int ADD = 6;
+    public static final int SUB = 7;
+    public static final int MUL = 8;
+    public static final int DIV = 9;
+    public static final int EQ = 10;
+    public static final int NE = 11;
+    public static final int LT = 12;
+    public static final int GT = 13;
+    public static final int LE = 14;
+    public static final int GE = 15;
+    /** a：操作数，类型就是目标类型 */
+    public static final int CAST = 16;
+    /** a：函数偏移，b：第一个参数，c：返回值的 slot 数 */
+    public static final int CALL = 17;
+    /** a：库函数名在全局变量表中的偏移，b：第一个参数，c：返回值的 slot 数 */
+    public static final int CALLNAME = 18;
+    /** a：左值（LOCAL/PARAM/GLOBAL），b：右值 */
+    public static final int ASSIGN = 19;
+
+    // 语句
+    /** a：表达式，有值的话丢掉 */
+    public static final int EXPR = 20;
+    /** a：第一条语句 */
+    public static final int BLOCK = 21;
+    /** a：条件，b：条件成立时的语句，c：else 的语句或 NONE */
+    public static final int IF = 22;
+    /** a：条件，b：循环体 */
+    public static final int WHILE = 23;
+    public static final int BREAK = 24;
+    public static final int CONTINUE = 25;
+    /** a：返回值或 NONE */
+    public static final int RETURN = 26;
+
+    // 类型，前三个和 Analyser.analyseTy 的返回值一致
+    public static final int VOID = 0;
+    public static final int INT = 1;
+    public static final int DOUBLE = 2;
+    /** 比较的结果，只能用在条件里 */
+    public static final int BOOL = 3;
+
+    private byte[] kinds;
+    private byte[] types;
+    private int[] as;
+    private int[] bs;
+    private int[] cs;
+    private int[] nexts;
+    private long[] values;
+    private int size = 0;
+
+    public Ast() {
+        this(64);
+    }
+
+    public Ast(int capacity) {
+        capacity = Math.max(capacity, 16);
+        kinds = new byte[capacity];
+        types = new byte[capacity];
+        as = new int[capacity];
+        bs = new int[capacity];
+        cs = new int[capacity];
+        nexts = new int[capacity];
+        values = new long[capacity];
+    }
+
+    public int add(int kind, int type, int a, int b, int c) {
+        if (size == kinds.length) {
+            grow();
+        }
+        int node = size++;
+        kinds[node] = (byte) kind;
+        types[node] = (byte) type;
+        as[node] = a;
+        bs[node] = b;
+        cs[node] = c;
+        nexts[node] = NONE;
+        values[node] = 0;
+        return node;
+    }
+
+    public int add(int kind, int type, int a, int b) {
+        return add(kind, type, a, b, NONE);
+    }
+
+    public int add(int kind, int type, int a) {
+        return add(kind, type, a, NONE, NONE);
+    }
+
+    public int constant(int type, long value) {
+        int node = add(CONST, type, NONE);
+        values[node] = value;
+        return node;
+    }
+
+    private void grow() {
+        int capacity = kinds.length * 2;
+        kinds = Arrays.copyOf(kinds, capacity);
+        types = Arrays.copyOf(types, capacity);
+        as = Arrays.copyOf(as, capacity);
+        bs = Arrays.copyOf(bs, capacity);
+        cs = Arrays.copyOf(cs, capacity);
+        nexts = Arrays.copyOf(nexts, capacity);
+        values = Arrays.copyOf(values, capacity);
+    }
+
+    /**
+     * 清空所有节点，数组留着给下一个函数用
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int kind(int node) {
+        return kinds[node];
+    }
+
+    public int type(int node) {
+        return types[node];
+    }
+
+    public int a(int node) {
+        return as[node];
+    }
+
+    public int b(int node) {
+        return bs[node];
+    }
+
+    public int c(int node) {
+        return cs[node];
+    }
+
+    public long value(int node) {
+        return values[node];
+    }
+
+    public int next(int node) {
+        return nexts[node];
+    }
+
+    public void setNext(int node, int next) {
+        nexts[node] = next;
+    }
+
+    public boolean isConstant(int node) {
+        return kinds[node] == CONST;
+    }
+
+    public static boolean isCompare(int kind) {
+        return kind >= EQ && kind <= GE;
+    }
+}
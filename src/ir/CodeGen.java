@@ -0,0 +1,290 @@
+package ir;
+
+import instruction.CodeBuffer;
+import instruction.Operation;
+
+import java.util.ArrayList;
+
+/**
+ * 把 Ast 翻译成指令
+ * 语句执行前后栈都是空的，条件直接翻译成比较加条件跳转，跳转的偏移在目标确定之后回填
+ */
+public class CodeGen {
+    private final Ast ast;
+    private final CodeBuffer code;
+    /** 当前循环的条件开始的位置，continue 跳到这里，不在循环中为 -1 */
+    private int loopStart = -1;
+    /** 当前循环中所有 break 的跳转指令，循环结束后回填 */
+    private ArrayList<Integer> breaks = null;
+
+    private CodeGen(Ast ast, CodeBuffer code) {
+        this.ast = ast;
+        this.code = code;
+    }
+
+    /**
+     * 翻译一个函数体，执行到末尾时补一条 ret
+     */
+    public static CodeBuffer function(Ast ast, int body) {
+        var gen = new CodeGen(ast, new CodeBuffer());
+        gen.statement(body);
+        if (gen.fallsThrough()) {
+            gen.emit(Operation.ret);
+        }
+        return gen.code;
+    }
+
+    /**
+     * 翻译 _start 的语句，不补 ret
+     */
+    public static CodeBuffer start(Ast ast, int body) {
+        var gen = new CodeGen(ast, new CodeBuffer());
+        gen.statement(body);
+        return gen.code;
+    }
+
+    /**
+     * 最后一条不是 ret，或者有跳转跳到末尾
+     */
+    private boolean fallsThrough() {
+        int size = code.size();
+        if (size == 0 || code.op(size - 1) != Operation.ret) {
+            return true;
+        }
+        for (int i = 0; i < size; i++) {
+            Operation op = code.op(i);
+            if ((op == Operation.br || op == Operation.br_true || op == Operation.br_false)
+                    && i + 1 + code.arg(i) == size) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void statement(int node) {
+        switch (ast.kind(node)) {
+            case Ast.BLOCK:
+                for (int stmt = ast.a(node); stmt != Ast.NONE; stmt = ast.next(stmt)) {
+                    statement(stmt);
+                }
+                break;
+            case Ast.EXPR:
+                expression(ast.a(node));
+                if (ast.type(ast.a(node)) != Ast.VOID) {
+                    emit(Operation.popn, 1);
+                }
+                break;
+            case Ast.IF: {
+                int toElse = branchIfFalse(ast.a(node));
+                statement(ast.b(node));
+                if (ast.c(node) == Ast.NONE) {
+                    patch(toElse);
+                } else {
+                    int toEnd = emit(Operation.br, 0);
+                    patch(toElse);
+                    // else if 就是 else 里嵌套的 IF
+                    statement(ast.c(node));
+                    patch(toEnd);
+                }
+                break;
+            }
+            case Ast.WHILE: {
+                int outerStart = loopStart;
+                var outerBreaks = breaks;
+                loopStart = code.size();
+                breaks = new ArrayList<>();
+                int toEnd = branchIfFalse(ast.a(node));
+                statement(ast.b(node));
+                jumpTo(loopStart);
+                patch(toEnd);
+                for (int index : breaks) {
+                    patch(index);
+                }
+                loopStart = outerStart;
+                breaks = outerBreaks;
+                break;
+            }
+            case Ast.BREAK:
+                breaks.add(emit(Operation.br, 0));
+                break;
+            case Ast.CONTINUE:
+                jumpTo(loopStart);
+                break;
+            case Ast.RETURN:
+                if (ast.a(node) != Ast.NONE) {
+                    //arga 0 是返回值的位置
+                    emit(Operation.arga, 0);
+                    expression(ast.a(node));
+                    emit(Operation.store_64);
+                }
+                emit(Operation.ret);
+                break;
+            default:
+                throw new IllegalStateException("not a statement: " + ast.kind(node));
+        }
+    }
+
+    /**
+     * 计算条件，条件不成立时跳转，返回这条跳转指令的下标，之后用 patch 回填
+     */
+    private int branchIfFalse(int cond) {
+        int kind = ast.kind(cond);
+        if (!Ast.isCompare(kind)) {
+            expression(cond);
+            return emit(Operation.br_false, 0);
+        }
+        compare(cond);
+        switch (kind) {
+            case Ast.EQ:
+                // cmp 的结果非零即不相等
+                return emit(Operation.br_true, 0);
+            case Ast.NE:
+                return emit(Operation.br_false, 0);
+            case Ast.LT:
+                emit(Operation.set_lt);
+                return emit(Operation.br_false, 0);
+            case Ast.GT:
+                emit(Operation.set_gt);
+                return emit(Operation.br_false, 0);
+            case Ast.LE:
+                emit(Operation.set_gt);
+                return emit(Operation.br_true, 0);
+            default:
+                emit(Operation.set_lt);
+                return emit(Operation.br_true, 0);
+        }
+    }
+
+    private void compare(int node) {
+        expression(ast.a(node));
+        expression(ast.b(node));
+        emit(ast.type(ast.a(node)) == Ast.DOUBLE ? Operation.cmp_f : Operation.cmp_i);
+    }
+
+    private void expression(int node) {
+        int kind = ast.kind(node);
+        boolean isDouble = ast.type(node) == Ast.DOUBLE;
+        switch (kind) {
+            case Ast.CONST:
+                emit(Operation.push, ast.value(node));
+                break;
+            case Ast.STRING:
+                emit(Operation.push, ast.a(node));
+                break;
+            case Ast.LOCAL:
+            case Ast.PARAM:
+            case Ast.GLOBAL:
+                address(node);
+                emit(Operation.load_64);
+                break;
+            case Ast.NEG:
+                expression(ast.a(node));
+                emit(isDouble ? Operation.neg_f : Operation.neg_i);
+                break;
+            case Ast.ADD:
+                binary(node, isDouble ? Operation.add_f : Operation.add_i);
+                break;
+            case Ast.SUB:
+                binary(node, isDouble ? Operation.sub_f : Operation.sub_i);
+                break;
+            case Ast.MUL:
+                binary(node, isDouble ? Operation.mul_f : Operation.mul_i);
+                break;
+            case Ast.DIV:
+                binary(node, isDouble ? Operation.div_f : Operation.div_i);
+                break;
+            case Ast.EQ:
+                compare(node);
+                emit(Operation.not);
+                break;
+            case Ast.NE:
+                compare(node);
+                break;
+            case Ast.LT:
+                compare(node);
+                emit(Operation.set_lt);
+                break;
+            case Ast.GT:
+                compare(node);
+                emit(Operation.set_gt);
+                break;
+            case Ast.LE:
+                compare(node);
+                emit(Operation.set_gt);
+                emit(Operation.not);
+                break;
+            case Ast.GE:
+                compare(node);
+                emit(Operation.set_lt);
+                emit(Operation.not);
+                break;
+            case Ast.CAST: {
+                int operand = ast.a(node);
+                expression(operand);
+                if (ast.type(operand) == Ast.INT && isDouble) {
+                    emit(Operation.itof);
+                } else if (ast.type(operand) == Ast.DOUBLE && ast.type(node) == Ast.INT) {
+                    emit(Operation.ftoi);
+                }
+                break;
+            }
+            case Ast.CALL:
+            case Ast.CALLNAME:
+                emit(Operation.stackalloc, ast.c(node));
+                for (int arg = ast.b(node); arg != Ast.NONE; arg = ast.next(arg)) {
+                    expression(arg);
+                }
+                emit(kind == Ast.CALL ? Operation.call : Operation.callname, ast.a(node));
+                break;
+            case Ast.ASSIGN:
+                address(ast.a(node));
+                expression(ast.b(node));
+                emit(Operation.store_64);
+                break;
+            default:
+                throw new IllegalStateException("not an expression: " + kind);
+        }
+    }
+
+    private void binary(int node, Operation op) {
+        expression(ast.a(node));
+        expression(ast.b(node));
+        emit(op);
+    }
+
+    private void address(int node) {
+        switch (ast.kind(node)) {
+            case Ast.LOCAL:
+                emit(Operation.loca, ast.a(node));
+                break;
+            case Ast.PARAM:
+                emit(Operation.arga, ast.a(node));
+                break;
+            default:
+                emit(Operation.globa, ast.a(node));
+                break;
+        }
+    }
+
+    private int emit(Operation op) {
+        return code.add(op);
+    }
+
+    private int emit(Operation op, long x) {
+        return code.add(op, x);
+    }
+
+    /**
+     * 回填跳转指令，让它跳到下一条要生成的指令
+     */
+    private void patch(int index) {
+        code.setArg(index, code.size() - index - 1);
+    }
+
+    /**
+     * 无条件跳回之前的某个位置
+     */
+    private void jumpTo(int target) {
+        emit(Operation.br, target - code.size() - 1);
+    }
+}
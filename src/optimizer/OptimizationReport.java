@@ -0,0 +1,63 @@
+package optimizer;
+
+import analyser.FuncEntry;
+import analyser.Program;
+import analyser.SymbolEntry;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 每个函数优化前后的指令条数，或者其他按函数统计的大小
+ */
+public class OptimizationReport {
+    private final String pass;
+    private final ArrayList<String> names = new ArrayList<>();
+    private final ArrayList<int[]> counts = new ArrayList<>();
+
+    public OptimizationReport(String pass) {
+        this.pass = pass;
+    }
+
+    /**
+     * 每个函数按声明个数分配局部变量和作用域不相交时复用 slot 的帧大小
+     */
+    public static OptimizationReport frames(Program program) {
+        var report = new OptimizationReport("frame");
+        for (FuncEntry function : program.functions()) {
+            report.addFrame(function, program.getGlobals());
+        }
+        return report;
+    }
+
+    public void addFrame(FuncEntry function, List<SymbolEntry> globals) {
+        add(Peephole.nameOf(function, globals), function.getDeclaredLocals(), function.getLocVarNum());
+    }
+
+    public void add(String function, int before, int after) {
+        names.add(function);
+        counts.add(new int[]{before, after});
+    }
+
+    public int totalBefore() {
+        return counts.stream().mapToInt(c -> c[0]).sum();
+    }
+
+    public int totalAfter() {
+        return counts.stream().mapToInt(c -> c[1]).sum();
+    }
+
+    public void print(PrintStream out) {
+        for (int i = 0; i < names.size(); i++) {
+            int[] c = counts.get(i);
+            out.println(line(names.get(i), c[0], c[1]));
+        }
+        out.println(line("total", totalBefore(), totalAfter()));
+    }
+
+    private String line(String name, int before, int after) {
+        double saved = before == 0 ? 0 : 100.0 * (before - after) / before;
+        return String.format("%s %s: %d -> %d (-%.1f%%)", pass, name, before, after, saved);
+    }
+}
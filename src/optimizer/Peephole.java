@@ -0,0 +1,266 @@
+package optimizer;
+
+import analyser.FuncEntry;
+import analyser.Program;
+import analyser.SymbolEntry;
+import instruction.CodeBuffer;
+import instruction.Operation;
+
+import java.util.List;
+
+/**
+ * 窥孔优化，在 Analyser 生成的每个函数的指令上反复匹配下面这些模式，直到没有变化：
+ * stackalloc 0、popn 0、br 0 删除；br_true 0 / br_false 0 换成 pop
+ * br_true 1; br k 换成 br_false k，br_false 1; br k 换成 br_true k
+ * not; br_true 换成 br_false，not; br_false 换成 br_true（比如 set_gt; not; br_true）
+ * push/loca/arga/globa 之后马上 pop 的、load_64 之后马上 pop 的整对删除，相邻的 pop/popn 合并
+ * 刚 load 过的变量再次 load 换成 dup，刚存入常量的变量再次 load 换成 push 这个常量
+ * 模式中间（除第一条以外）的指令如果是跳转目标就不匹配；删改之后重新计算所有跳转的相对偏移
+ */
+public class Peephole {
+    private Peephole() {
+    }
+
+    /**
+     * 优化程序中的每个函数，返回每个函数优化前后的指令条数
+     */
+    public static OptimizationReport optimize(Program program) {
+        var report = new OptimizationReport("peephole");
+        List<SymbolEntry> globals = program.getGlobals();
+        for (FuncEntry function : program.functions()) {
+            optimize(function, globals, report);
+        }
+        return report;
+    }
+
+    /**
+     * 优化一个函数，把优化前后的指令条数记到 report
+     */
+    public static void optimize(FuncEntry function, List<SymbolEntry> globals, OptimizationReport report) {
+        var before = function.getInstructions();
+        var after = optimize(before);
+        function.setInstructions(after);
+        function.setBodyCnt(after.size());
+        report.add(nameOf(function, globals), before.size(), after.size());
+    }
+
+    static String nameOf(FuncEntry function, List<SymbolEntry> globals) {
+        int index = function.getFunc_name();
+        if (index >= 0 && index < globals.size()) {
+            return globals.get(index).getGlobal_value();
+        }
+        return "#" + function.getFuncOffset();
+    }
+
+    /**
+     * 优化一个函数体，返回新的指令序列，原来的不变
+     */
+    public static CodeBuffer optimize(CodeBuffer code) {
+        var current = code;
+        while (true) {
+            var next = pass(current);
+            if (next == null) {
+                return current == code ? code.copy() : current;
+            }
+            current = next;
+        }
+    }
+
+    /**
+     * 扫描一遍，没有任何改动时返回 null
+     */
+    private static CodeBuffer pass(CodeBuffer code) {
+        int n = code.size();
+        // 每条跳转指令的绝对目标
+        int[] targets = new int[n];
+        boolean[] isTarget = new boolean[n + 1];
+        for (int i = 0; i < n; i++) {
+            if (isBranch(code.op(i))) {
+                long target = i + 1 + code.arg(i);
+                targets[i] = target < 0 || target > n ? -1 : (int) target;
+                if (targets[i] >= 0) {
+                    isTarget[targets[i]] = true;
+                }
+            }
+        }
+
+        var out = new Output(n);
+        int[] newIndex = new int[n + 1];
+        boolean changed = false;
+
+        int i = 0;
+        while (i < n) {
+            newIndex[i] = out.code.size();
+            int matched = match(code, i, targets, isTarget, out);
+            if (matched > 0) {
+                for (int k = i + 1; k < i + matched; k++) {
+                    newIndex[k] = newIndex[i];
+                }
+                i += matched;
+                changed = true;
+            } else {
+                out.add(code.op(i), code.arg(i), isBranch(code.op(i)) ? targets[i] : -1);
+                i++;
+            }
+        }
+        newIndex[n] = out.code.size();
+        if (!changed) {
+            return null;
+        }
+
+        for (int k = 0; k < out.code.size(); k++) {
+            int target = out.targets[k];
+            if (target < 0) {
+                // 不是跳转，或者跳出函数体的跳转保持原来的偏移
+                continue;
+            }
+            out.code.setArg(k, newIndex[target] - (k + 1));
+        }
+        return out.code;
+    }
+
+    /**
+     * 替换后的指令，以及其中跳转指令在旧序列中的目标，非跳转为 -1
+     * 模式替换后不会比原来长，所以 targets 按旧的条数分配就够了
+     */
+    private static final class Output {
+        final CodeBuffer code;
+        final int[] targets;
+
+        Output(int n) {
+            code = new CodeBuffer(n);
+            targets = new int[n];
+        }
+
+        void add(Operation op, long x, int target) {
+            targets[code.add(op, x)] = target;
+        }
+    }
+
+    /**
+     * 在 i 处尝试匹配一个模式，把替换后的指令加到 out，返回消耗的旧指令条数，不匹配返回 0
+     */
+    private static int match(CodeBuffer code, int i, int[] targets, boolean[] isTarget, Output out) {
+        int n = code.size();
+        Operation op = code.op(i);
+        long x = code.arg(i);
+
+        switch (op) {
+            case stackalloc:
+            case popn:
+                if (x == 0) {
+                    return 1;
+                }
+                break;
+            case br:
+                if (x == 0) {
+                    return 1;
+                }
+                break;
+            case br_true:
+            case br_false:
+                if (x == 0) {
+                    out.add(Operation.pop, 0, -1);
+                    return 1;
+                }
+                if (x == 1 && is(code, i + 1, Operation.br) && free(isTarget, i, 2)) {
+                    // 条件成立时跳过后面的 br，等价于条件不成立时跳到 br 的目标
+                    Operation inverted = op == Operation.br_true ? Operation.br_false : Operation.br_true;
+                    out.add(inverted, code.arg(i + 1), targets[i + 1]);
+                    return 2;
+                }
+                break;
+            case not:
+                if ((is(code, i + 1, Operation.br_true) || is(code, i + 1, Operation.br_false)) && free(isTarget, i, 2)) {
+                    Operation inverted = code.op(i + 1) == Operation.br_true ? Operation.br_false : Operation.br_true;
+                    out.add(inverted, code.arg(i + 1), targets[i + 1]);
+                    return 2;
+                }
+                break;
+            case pop:
+                if (isPop(code, i + 1) && free(isTarget, i, 2)) {
+                    out.add(Operation.popn, 1 + popCount(code, i + 1), -1);
+                    return 2;
+                }
+                break;
+            default:
+                break;
+        }
+
+        if (op == Operation.popn && isPop(code, i + 1) && free(isTarget, i, 2)) {
+            out.add(Operation.popn, x + popCount(code, i + 1), -1);
+            return 2;
+        }
+
+        // 压栈之后马上弹出
+        if ((op == Operation.push || isAddress(op)) && isPop(code, i + 1) && free(isTarget, i, 2)) {
+            long rest = popCount(code, i + 1) - 1;
+            if (rest > 0) {
+                out.add(Operation.popn, rest, -1);
+            }
+            return 2;
+        }
+
+        if (isAddress(op) && is(code, i + 1, Operation.load_64)) {
+            // 读出来马上弹出
+            if (isPop(code, i + 2) && free(isTarget, i, 3)) {
+                long rest = popCount(code, i + 2) - 1;
+                if (rest > 0) {
+                    out.add(Operation.popn, rest, -1);
+                }
+                return 3;
+            }
+            // 连续两次读同一个变量
+            if (i + 3 < n && code.same(i + 2, i) && is(code, i + 3, Operation.load_64) && free(isTarget, i, 4)) {
+                out.add(op, x, -1);
+                out.add(Operation.load_64, 0, -1);
+                out.add(Operation.dup, 0, -1);
+                return 4;
+            }
+        }
+
+        // 存入常量之后马上读回来
+        if (isAddress(op) && is(code, i + 1, Operation.push) && is(code, i + 2, Operation.store_64)
+                && i + 4 < n && code.same(i + 3, i) && is(code, i + 4, Operation.load_64) && free(isTarget, i, 5)) {
+            out.add(op, x, -1);
+            out.add(Operation.push, code.arg(i + 1), -1);
+            out.add(Operation.store_64, 0, -1);
+            out.add(Operation.push, code.arg(i + 1), -1);
+            return 5;
+        }
+        return 0;
+    }
+
+    /**
+     * [i + 1, i + count) 中没有跳转目标
+     */
+    private static boolean free(boolean[] isTarget, int i, int count) {
+        for (int k = i + 1; k < i + count; k++) {
+            if (isTarget[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean is(CodeBuffer code, int i, Operation op) {
+        return i < code.size() && code.op(i) == op;
+    }
+
+    private static boolean isPop(CodeBuffer code, int i) {
+        return i < code.size() && (code.op(i) == Operation.pop
+                || code.op(i) == Operation.popn && code.arg(i) > 0);
+    }
+
+    private static long popCount(CodeBuffer code, int i) {
+        return code.op(i) == Operation.pop ? 1 : code.arg(i);
+    }
+
+    private static boolean isAddress(Operation op) {
+        return op == Operation.loca || op == Operation.arga || op == Operation.globa;
+    }
+
+    static boolean isBranch(Operation op) {
+        return op == Operation.br || op == Operation.br_true || op == Operation.br_false;
+    }
+}
@@ -0,0 +1,116 @@
+package tokenizer;
+
+import java.util.Arrays;
+
+/**
+ * 标识符驻留表：每个不同的名字分配一个从 0 开始的稠密编号
+ * 直接在源缓冲区的切片上查找，已经出现过的名字不会再创建 String
+ */
+public class NameTable {
+    /** 编号 -> 名字 */
+    private String[] names = new String[64];
+    /** 编号 -> 名字的哈希值 */
+    private int[] hashes = new int[64];
+    private int size = 0;
+
+    /** 开放寻址的哈希表，存的是编号 + 1，0 表示空槽 */
+    private int[] slots = new int[128];
+    private int mask = 127;
+
+    /**
+     * 驻留 buf[start, end) 这个名字，返回它的编号
+     */
+    public int intern(char[] buf, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + buf[i];
+        }
+        int len = end - start;
+        int slot = mix(hash) & mask;
+        while (true) {
+            int id = slots[slot] - 1;
+            if (id < 0) {
+                return insert(slot, new String(buf, start, len), hash);
+            }
+            if (hashes[id] == hash && matches(names[id], buf, start, len)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public int intern(String name) {
+        return intern(name.toCharArray(), 0, name.length());
+    }
+
+    /**
+     * 查找名字的编号，不存在则返回 -1
+     */
+    public int lookup(String name) {
+        int hash = name.hashCode();
+        int slot = mix(hash) & mask;
+        while (true) {
+            int id = slots[slot] - 1;
+            if (id < 0) {
+                return -1;
+            }
+            if (hashes[id] == hash && names[id].equals(name)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int insert(int slot, String name, int hash) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        int id = size++;
+        names[id] = name;
+        hashes[id] = hash;
+        slots[slot] = id + 1;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = mix(hashes[id]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+    }
+
+    // 先乘再折叠：只做 hash ^ (hash >>> 16) 时 name_0、name_1 这类相近的名字会落在相邻的槽里，线性探测连成很长的一串
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(String name, char[] buf, int start, int len) {
+        if (name.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (name.charAt(i) != buf[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
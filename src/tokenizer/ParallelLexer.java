@@ -0,0 +1,163 @@
+package tokenizer;
+
+import error.TokenizeError;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * 分块并行的词法分析
+ * 先在安全的位置（不在字符串、字符字面量和注释中的换行之后）把源文件切成若干块，
+ * 每块用独立的 Tokenizer 在 ForkJoinPool 上分析，最后按顺序拼接，
+ * 得到的 token 序列和顺序调用 Tokenizer.nextToken() 完全一致
+ */
+public class ParallelLexer {
+    /** 每块至少这么多字符，源文件太小就直接顺序分析 */
+    private static final int MIN_CHUNK_SIZE = 1 << 20;
+
+    private static final int CODE = 0;
+    private static final int STRING = 1;
+    private static final int CHAR = 2;
+    private static final int COMMENT = 3;
+
+    private final ForkJoinPool pool;
+
+    public ParallelLexer() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public ParallelLexer(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public TokenStream tokenizeAll(StringIter source, NameTable names) throws TokenizeError {
+        source.readAll();
+        int length = source.length();
+        int chunks = Math.min(pool.getParallelism() * 4, length / MIN_CHUNK_SIZE);
+        if (chunks <= 1) {
+            return new Tokenizer(source, names).tokenizeAll();
+        }
+        int[] bounds = splitPoints(source.buffer, length, chunks);
+        int count = bounds.length - 1;
+
+        // 每块用自己的 NameTable，不需要同步
+        List<Callable<TokenStream>> lexTasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            var chunk = new StringIter(source, bounds[i], bounds[i + 1]);
+            lexTasks.add(() -> new Tokenizer(chunk, new NameTable()).tokenizeAll());
+        }
+        var results = new TokenStream[count];
+        var lexed = pool.invokeAll(lexTasks);
+        for (int i = 0; i < count; i++) {
+            // 按顺序取结果，这样报出的就是文件中第一个错误
+            results[i] = await(lexed.get(i));
+        }
+
+        // 按块的顺序把各块的名字驻留到全局的 NameTable，编号的分配顺序和顺序分析时相同
+        var stream = new TokenStream(source, names, 0);
+        var dests = new int[count];
+        var nameMaps = new int[count][];
+        var stringBases = new int[count];
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            var chunkNames = results[i].getNameTable();
+            nameMaps[i] = new int[chunkNames.size()];
+            for (int id = 0; id < chunkNames.size(); id++) {
+                nameMaps[i][id] = names.intern(chunkNames.name(id));
+            }
+            stringBases[i] = stream.getStrings().size();
+            stream.getStrings().addAll(results[i].getStrings());
+            dests[i] = total;
+            // 除了最后一块，其他块末尾的 EOF 都要去掉
+            total += i == count - 1 ? results[i].size() : results[i].size() - 1;
+        }
+        stream.reserve(total);
+
+        List<Callable<Void>> copyTasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            int copied = (i == count - 1 ? total : dests[i + 1]) - dests[i];
+            copyTasks.add(() -> {
+                stream.copyFrom(results[index], copied, dests[index], nameMaps[index], stringBases[index]);
+                return null;
+            });
+        }
+        for (var copied : pool.invokeAll(copyTasks)) {
+            await(copied);
+        }
+        return stream;
+    }
+
+    private static <T> T await(Future<T> future) throws TokenizeError {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Error("interrupted while lexing", e);
+        } catch (ExecutionException e) {
+            //ForkJoinPool 会把任务里抛出的受检异常包上几层 RuntimeException
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof TokenizeError) {
+                    throw (TokenizeError) cause;
+                }
+            }
+            throw new Error("lexing failed", e.getCause());
+        }
+    }
+
+    /**
+     * 顺序扫描一遍，只跟踪是否处于字符串、字符字面量或注释中，
+     * 在每个目标位置之后的第一个安全换行处切开，返回包含 0 和 length 的切分点
+     */
+    static int[] splitPoints(char[] buf, int length, int chunks) {
+        int[] points = new int[chunks + 1];
+        int count = 0;
+        points[count++] = 0;
+        long target = length / chunks;
+        int state = CODE;
+        for (int i = 0; i < length && count < chunks; i++) {
+            char ch = buf[i];
+            switch (state) {
+                case CODE:
+                    if (ch == '"') {
+                        state = STRING;
+                    } else if (ch == '\'') {
+                        state = CHAR;
+                    } else if (ch == '/' && i + 1 < length && buf[i + 1] == '/') {
+                        state = COMMENT;
+                        i++;
+                    } else if (ch == '\n' && i + 1 >= target) {
+                        points[count++] = i + 1;
+                        target = (long) length * count / chunks;
+                    }
+                    break;
+                case STRING:
+                case CHAR:
+                    if (ch == '\\') {
+                        i++;
+                    } else if (ch == (state == STRING ? '"' : '\'')) {
+                        state = CODE;
+                    }
+                    break;
+                default:
+                    if (ch == '\n') {
+                        state = CODE;
+                        if (i + 1 >= target) {
+                            points[count++] = i + 1;
+                            target = (long) length * count / chunks;
+                        }
+                    }
+                    break;
+            }
+        }
+        if (points[count - 1] != length) {
+            points[count++] = length;
+        }
+        return Arrays.copyOf(points, count);
+    }
+}
@@ -1,138 +1,275 @@
 package tokenizer;
 import  util.Pos;
 
-import java.util.ArrayList;
-import java.util.Optional;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Scanner;
 
 
 public class StringIter {
-    // 以行为基础的缓冲区
-    ArrayList<String> linesBuffer = new ArrayList<>();
+    // 整个源文件的字符缓冲区，换行统一为 \n，并且保证以 \n 结尾
+    char[] buffer = new char[0];
+    // 缓冲区中有效字符的个数
+    int length = 0;
+
+    // 每一行第一个字符在缓冲区中的偏移，用于把偏移换算成行列号
+    // 只有真正需要 Pos 的时候（一般是报错）才会建立
+    int[] lineStarts = new int[0];
+    // volatile：建好之后其他线程不加锁就能看到完整的 lineStarts
+    volatile int lineCount = 0;
 
     Scanner scanner;
     // 指向下一个要读取的字符
-    Pos ptrNext = new Pos(0, 0);
+    int ptr = 0;
 
-    Pos ptr = new Pos(0, 0);
+    // 如果是另一个 StringIter 的一段视图，行列号的换算交给它
+    StringIter parent;
 
     boolean initialized = false;
 
-    Optional<Character> peeked = Optional.empty();
-
     public StringIter(Scanner scanner) {
         this.scanner = scanner;
     }
 
-    // 从这里开始其实是一个基于行号的缓冲区的实现
-    // 为了简单起见，我们没有单独拿出一个类实现
+    /**
+     * 通过 FileChannel.map 把整个文件映射进来，一次性解码成字符数组
+     */
+    public StringIter(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            var decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            setBuffer(decoder.decode(mapped));
+        }
+    }
+
+    public StringIter(String source) {
+        setBuffer(CharBuffer.wrap(source));
+    }
+
+    /**
+     * parent 缓冲区中 [start, end) 这一段的视图，共享同一个字符数组，偏移仍然是整个文件中的偏移
+     */
+    public StringIter(StringIter parent, int start, int end) {
+        parent.readAll();
+        this.parent = parent.parent != null ? parent.parent : parent;
+        this.buffer = parent.buffer;
+        this.ptr = start;
+        this.length = end;
+        this.initialized = true;
+    }
+
+    /**
+     * 缓冲区中有效字符的个数，即源文件末尾的偏移
+     */
+    public int length() {
+        return length;
+    }
+
+    private void setBuffer(CharBuffer chars) {
+        int len = chars.remaining();
+        char[] buf;
+        if (chars.hasArray() && chars.arrayOffset() == 0 && chars.position() == 0 && !chars.isReadOnly()) {
+            buf = chars.array();
+        } else {
+            buf = new char[len];
+            chars.get(buf);
+        }
+        this.buffer = buf;
+        this.length = len;
+        normalizeLineBreaks();
+    }
+
+    // 把 \r\n 和单独的 \r 都换成 \n，末尾没有换行的话补一个
+    private void normalizeLineBreaks() {
+        int w = 0;
+        for (int r = 0; r < length; r++) {
+            char ch = buffer[r];
+            if (ch == '\r') {
+                if (r + 1 < length && buffer[r + 1] == '\n') {
+                    continue;
+                }
+                ch = '\n';
+            }
+            buffer[w++] = ch;
+        }
+        length = w;
+        if (length > 0 && buffer[length - 1] != '\n') {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, length + 1);
+            }
+            buffer[length++] = '\n';
+        }
+    }
+
+    // 从这里开始其实是一个基于偏移的缓冲区的实现
     // 核心思想和 C 的文件输入输出类似，就是一个 buffer 加一个指针，有三个细节
     // 1.缓冲区包括 \n
     // 2.指针始终指向下一个要读取的 char
-    // 3.行号和列号从 0 开始
+    // 3.位置统一用 int 偏移表示，行号和列号从 0 开始，只有在需要 Pos 的时候才通过行首偏移表换算
 
-    // 一次读入全部内容，并且替换所有换行为 \n
-    // 这样其实是不合理的，这里只是简单起见这么实现
+    // 一次读入全部内容
     public void readAll() {
         if (initialized) {
             return;
         }
-        while (scanner.hasNext()) {
-            linesBuffer.add(scanner.nextLine() + '\n');
+        if (scanner != null) {
+            var sb = new StringBuilder();
+            while (scanner.hasNext()) {
+                sb.append(scanner.nextLine()).append('\n');
+            }
+            setBuffer(CharBuffer.wrap(sb));
         }
-        // todo:check read \n?
         initialized = true;
     }
 
+    // 并行的词法分析和语法分析中多个线程可能同时需要行列号，所以建表需要同步
+    private synchronized void buildLineStarts() {
+        if (lineCount != 0) {
+            return;
+        }
+        int[] starts = new int[16];
+        int count = 0;
+        starts[count++] = 0;
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] == '\n') {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                starts[count++] = i + 1;
+            }
+        }
+        this.lineStarts = starts;
+        this.lineCount = count;
+    }
+
+    /**
+     * 把缓冲区偏移换算成行列号
+     */
+    public Pos posOf(int offset) {
+        if (parent != null) {
+            return parent.posOf(offset);
+        }
+        if (lineCount == 0) {
+            buildLineStarts();
+        }
+        int lo = 0, hi = lineCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (lineStarts[mid] <= offset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return new Pos(lo, offset - lineStarts[lo]);
+    }
+
     // 一个简单的总结
-    // | 0 | 1 | 2 | 3 | 4 | 5 | 6 | 7 | 8 | 9 | 偏移
-    // | = | = | = | = | = | = | = | = | = | = |
-    // | h | a | 1 | 9 | 2 | 6 | 0 | 8 | 1 | \n |（缓冲区第0行）
-    // | 7 | 1 | 1 | 4 | 5 | 1 | 4 | （缓冲区第1行）
-    // 这里假设指针指向第一行的 \n，那么有
+    // | 0 | 1 | 2 | 3 | 4 | 5 | 6 | 7 | 8 | 9 | 10| 11| 12| 13| 14| 15| 16| 17| 偏移
+    // | h | a | 1 | 9 | 2 | 6 | 0 | 8 | 1 | \n| 7 | 1 | 1 | 4 | 5 | 1 | 4 | \n|
+    // lineStarts = [0, 10, 18]
+    // 这里假设指针指向第一行的 \n（偏移 9），那么有
     // nextPos() = (1, 0)
     // currentPos() = (0, 9)
     // previousPos() = (0, 8)
-    // nextChar() = '\n' 并且指针移动到 (1, 0)
+    // nextChar() = '\n' 并且指针移动到偏移 10
     // peekChar() = '\n' 并且指针不移动
+    /**
+     * 获取当前字符的偏移，不分配对象
+     */
+    public int currentOffset() {
+        return ptr;
+    }
+
+    /**
+     * 获取上一个字符的偏移
+     */
+    public int previousOffset() {
+        if (ptr == 0) {
+            throw new Error("previous position from beginning");
+        }
+        return ptr - 1;
+    }
+
+    /**
+     * 直接读取缓冲区中某个偏移处的字符，不移动指针
+     */
+    public char charAt(int offset) {
+        return buffer[offset];
+    }
+
+    /**
+     * 取出 [start, end) 之间的源码，只有真正需要字符串的时候才调用
+     */
+    public String slice(int start, int end) {
+        return new String(buffer, start, end - start);
+    }
+
     /**
      * 获取下一个字符的位置
      */
     public Pos nextPos() {
-        if (ptr.row >= linesBuffer.size()) {
+        if (ptr >= length) {
             throw new Error("advance after EOF");
         }
-        if (ptr.col == linesBuffer.get(ptr.row).length() - 1) {
-            return new Pos(ptr.row + 1, 0);
-        }
-        return new Pos(ptr.row, ptr.col + 1);
+        return posOf(ptr + 1);
     }
 
     /**
      * 获取当前字符的位置
      */
     public Pos currentPos() {
-        return ptr;
+        return posOf(ptr);
     }
 
     /**
      * 获取上一个字符的位置
      */
     public Pos previousPos() {
-        if (ptr.row == 0 && ptr.col == 0) {
+        if (ptr == 0) {
             throw new Error("previous position from beginning");
         }
-        if (ptr.col == 0) {
-            return new Pos(ptr.row - 1, linesBuffer.get(ptr.row - 1).length() - 1);
-        }
-        return new Pos(ptr.row, ptr.col - 1);
+        return posOf(ptr - 1);
     }
 
     /**
      * 将指针指向下一个字符，并返回当前字符
      */
     public char nextChar() {
-        if (this.peeked.isPresent()) {
-            char ch = this.peeked.get();
-            this.peeked = Optional.empty();
-            this.ptr = ptrNext;
-            return ch;
-        } else {
-            char ch = this.getNextChar();
-            this.ptr = ptrNext;
-            return ch;
-        }
-    }
-
-    private char getNextChar() {
-        if (isEOF()) {
+        if (ptr >= length) {
             return 0;
         }
-        char result = linesBuffer.get(ptrNext.row).charAt(ptrNext.col);
-        ptrNext = nextPos();
-        return result;
+        return buffer[ptr++];
     }
 
     /**
      * 查看下一个字符，但不移动指针
      */
     public char peekChar() {
-        if (peeked.isPresent()) {
-            return peeked.get();
-        } else {
-            char ch = getNextChar();
-            this.peeked = Optional.of(ch);
-            return ch;
+        if (ptr >= length) {
+            return 0;
         }
+        return buffer[ptr];
     }
 
-    public Boolean isEOF() {
-        return ptr.row >= linesBuffer.size();
+    public boolean isEOF() {
+        return ptr >= length;
     }
 
     // Note: Is it evil to unread a buffer?
     public void unreadLast() {
-        ptr = previousPos();
+        if (ptr == 0) {
+            throw new Error("previous position from beginning");
+        }
+        ptr--;
     }
 
 }
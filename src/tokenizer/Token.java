@@ -5,22 +5,35 @@ import java.util.Objects;
 
 public class Token {
     private TokenType tokenType;
+    /** 为 null 时表示值就是这个 token 在源码中的原文，第一次 getValue() 时才切片 */
     private Object value;
-    private Pos startPos;
-    private Pos endPos;
-
-    public Token(TokenType tokenType, Object value, Pos startPos, Pos endPos) {
+    /** IDENT 在 NameTable 中的编号，其他 token 为 -1 */
+    private int nameId = -1;
+    /** 位置只记录在源缓冲区中的偏移，需要 Pos 时再通过 source 换算 */
+    private StringIter source;
+    private int startOffset;
+    private int endOffset;
+
+    public Token(TokenType tokenType, Object value, StringIter source, int startOffset, int endOffset) {
         this.tokenType = tokenType;
         this.value = value;
-        this.startPos = startPos;
-        this.endPos = endPos;
+        this.source = source;
+        this.startOffset = startOffset;
+        this.endOffset = endOffset;
+    }
+
+    public Token(TokenType tokenType, Object value, int nameId, StringIter source, int startOffset, int endOffset) {
+        this(tokenType, value, source, startOffset, endOffset);
+        this.nameId = nameId;
     }
 
     public Token(Token token) {
         this.tokenType = token.tokenType;
         this.value = token.value;
-        this.startPos = token.startPos;
-        this.endPos = token.endPos;
+        this.nameId = token.nameId;
+        this.source = token.source;
+        this.startOffset = token.startOffset;
+        this.endOffset = token.endOffset;
     }
 
     @Override
@@ -30,17 +43,18 @@ public class Token {
         if (o == null || getClass() != o.getClass())
             return false;
         Token token = (Token) o;
-        return tokenType == token.tokenType && Objects.equals(value, token.value)
-                && Objects.equals(startPos, token.startPos) && Objects.equals(endPos, token.endPos);
+        return tokenType == token.tokenType && Objects.equals(getValue(), token.getValue())
+                && startOffset == token.startOffset && endOffset == token.endOffset;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(tokenType, value, startPos, endPos);
+        return Objects.hash(tokenType, getValue(), startOffset, endOffset);
     }
 
     public String getValueString() {
-        if (value instanceof Integer || value instanceof String || value instanceof Character) {
+        Object value = getValue();
+        if (value instanceof Long || value instanceof Double || value instanceof String || value instanceof Character) {
             return value.toString();
         }
         throw new Error("No suitable cast for token value.");
@@ -55,6 +69,9 @@ public class Token {
     }
 
     public Object getValue() {
+        if (value == null) {
+            value = source.slice(startOffset, endOffset);
+        }
         return value;
     }
 
@@ -62,34 +79,51 @@ public class Token {
         this.value = value;
     }
 
-    public Pos getStartPos() {
-        return startPos;
+    public int getNameId() {
+        return nameId;
     }
 
-    public void setStartPos(Pos startPos) {
-        this.startPos = startPos;
+    public void setNameId(int nameId) {
+        this.nameId = nameId;
     }
 
-    public Pos getEndPos() {
-        return endPos;
+    public int getStartOffset() {
+        return startOffset;
+    }
+
+    public void setStartOffset(int startOffset) {
+        this.startOffset = startOffset;
     }
 
-    public void setEndPos(Pos endPos) {
-        this.endPos = endPos;
+    public int getEndOffset() {
+        return endOffset;
+    }
+
+    public void setEndOffset(int endOffset) {
+        this.endOffset = endOffset;
+    }
+
+    public Pos getStartPos() {
+        return source.posOf(startOffset);
+    }
+
+    public Pos getEndPos() {
+        return source.posOf(endOffset);
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append("Line: ").append(this.startPos.row).append(' ');
-        sb.append("Column: ").append(this.startPos.col).append(' ');
+        Pos startPos = getStartPos();
+        sb.append("Line: ").append(startPos.row).append(' ');
+        sb.append("Column: ").append(startPos.col).append(' ');
         sb.append("Type: ").append(this.tokenType).append(' ');
-        sb.append("Value: ").append(this.value);
+        sb.append("Value: ").append(getValue());
         return sb.toString();
     }
 
     public String toStringAlt() {
-        return new StringBuilder().append("Token(").append(this.tokenType).append(", value: ").append(value)
-                .append("at: ").append(this.startPos).toString();
+        return new StringBuilder().append("Token(").append(this.tokenType).append(", value: ").append(getValue())
+                .append("at: ").append(getStartPos()).toString();
     }
 }
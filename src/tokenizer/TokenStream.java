@@ -0,0 +1,181 @@
+package tokenizer;
+
+import util.Pos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * 整个文件的 token 序列，按列存放在几个基本类型数组里，不为每个 token 分配对象
+ * 通过下标访问，可以任意向前看
+ */
+public class TokenStream {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final StringIter source;
+    private final NameTable names;
+
+    private byte[] types;
+    private int[] starts;
+    private int[] ends;
+    /**
+     * 每个 token 的附加值：
+     * UINT_LITERAL 为数值，DOUBLE_LITERAL 为 Double.doubleToRawLongBits 后的值，
+     * CHAR_LITERAL 为字符，IDENT 为 NameTable 中的编号，STRING_LITERAL 为 strings 中的下标
+     */
+    private long[] payloads;
+    /** 字符串字面量的值 */
+    private final ArrayList<String> strings = new ArrayList<>();
+    private int size = 0;
+
+    public TokenStream(StringIter source, NameTable names, int capacity) {
+        this.source = source;
+        this.names = names;
+        capacity = Math.max(capacity, 16);
+        this.types = new byte[capacity];
+        this.starts = new int[capacity];
+        this.ends = new int[capacity];
+        this.payloads = new long[capacity];
+    }
+
+    public void add(TokenType type, int start, int end, long payload, String text) {
+        if (size == types.length) {
+            grow();
+        }
+        if (type == TokenType.STRING_LITERAL) {
+            payload = strings.size();
+            strings.add(text);
+        }
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        ends[size] = end;
+        payloads[size] = payload;
+        size++;
+    }
+
+    /**
+     * 把 chunk 的前 count 个 token 复制到本流的 [dest, dest + count) 中
+     * 标识符编号按 nameMap 换算到本流的 NameTable，字符串下标加上 stringBase
+     * 不同的 chunk 写互不重叠的区间，因此可以并行调用
+     */
+    void copyFrom(TokenStream chunk, int count, int dest, int[] nameMap, int stringBase) {
+        System.arraycopy(chunk.types, 0, types, dest, count);
+        System.arraycopy(chunk.starts, 0, starts, dest, count);
+        System.arraycopy(chunk.ends, 0, ends, dest, count);
+        for (int i = 0; i < count; i++) {
+            long payload = chunk.payloads[i];
+            switch (TYPES[chunk.types[i]]) {
+                case IDENT:
+                    payload = nameMap[(int) payload];
+                    break;
+                case STRING_LITERAL:
+                    payload += stringBase;
+                    break;
+                default:
+                    break;
+            }
+            payloads[dest + i] = payload;
+        }
+    }
+
+    /**
+     * 预先占好 count 个位置，之后由 copyFrom 填充
+     */
+    void reserve(int count) {
+        while (types.length < size + count) {
+            grow();
+        }
+        size += count;
+    }
+
+    ArrayList<String> getStrings() {
+        return strings;
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+        payloads = Arrays.copyOf(payloads, capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public StringIter getSource() {
+        return source;
+    }
+
+    public NameTable getNameTable() {
+        return names;
+    }
+
+    public TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    public int start(int index) {
+        return starts[index];
+    }
+
+    public int end(int index) {
+        return ends[index];
+    }
+
+    public long payload(int index) {
+        return payloads[index];
+    }
+
+    public long longValue(int index) {
+        return payloads[index];
+    }
+
+    public double doubleValue(int index) {
+        return Double.longBitsToDouble(payloads[index]);
+    }
+
+    public char charValue(int index) {
+        return (char) payloads[index];
+    }
+
+    public int nameId(int index) {
+        return (int) payloads[index];
+    }
+
+    public String name(int index) {
+        return names.name((int) payloads[index]);
+    }
+
+    public String string(int index) {
+        return strings.get((int) payloads[index]);
+    }
+
+    public Pos startPos(int index) {
+        return source.posOf(starts[index]);
+    }
+
+    /**
+     * 把某个 token 还原成 Token 对象，只在报错等需要对象的地方使用
+     */
+    public Token token(int index) {
+        TokenType type = type(index);
+        switch (type) {
+            case UINT_LITERAL:
+                return new Token(type, longValue(index), source, starts[index], ends[index]);
+            case DOUBLE_LITERAL:
+                return new Token(type, doubleValue(index), source, starts[index], ends[index]);
+            case CHAR_LITERAL:
+                return new Token(type, charValue(index), source, starts[index], ends[index]);
+            case STRING_LITERAL:
+                return new Token(type, string(index), source, starts[index], ends[index]);
+            case IDENT:
+                return new Token(type, name(index), nameId(index), source, starts[index], ends[index]);
+            case EOF:
+                return new Token(type, "", source, starts[index], ends[index]);
+            default:
+                return new Token(type, null, source, starts[index], ends[index]);
+        }
+    }
+}
@@ -1,11 +1,33 @@
 package tokenizer;
 import error.*;
-import  util.Pos;
 import java.util.regex.*;
 
 public class Tokenizer {
     private StringIter it;
-    public Tokenizer(StringIter it){ this.it = it;}
+    /** 标识符驻留表，同一个名字在整个编译过程中只有一个编号 */
+    private NameTable names;
+    public Tokenizer(StringIter it){ this(it, new NameTable());}
+    public Tokenizer(StringIter it, NameTable names){
+        this.it = it;
+        this.names = names;
+    }
+
+    public NameTable getNameTable() {
+        return names;
+    }
+
+    public StringIter getStringIter() {
+        return it;
+    }
+
+    // 刚刚识别出来的 token，lex() 只写这几个字段，不创建任何对象
+    // curBits：UINT 的值 / DOUBLE 的 raw bits / CHAR 的字符 / IDENT 的编号
+    private TokenType curType;
+    private int curStart;
+    private int curEnd;
+    private long curBits;
+    /** STRING_LITERAL 的值 */
+    private String curText;
 
     /**
      * 获取下一个 Token
@@ -14,228 +36,312 @@ public class Tokenizer {
      * //@throws TokenizeError 如果解析有异常则抛出
      */
     public Token nextToken() throws TokenizeError {
+        lex();
+        switch (curType){
+            case UINT_LITERAL:
+                return new Token(curType, curBits, it, curStart, curEnd);
+            case DOUBLE_LITERAL:
+                return new Token(curType, Double.longBitsToDouble(curBits), it, curStart, curEnd);
+            case CHAR_LITERAL:
+                return new Token(curType, (char) curBits, it, curStart, curEnd);
+            case STRING_LITERAL:
+                return new Token(curType, curText, it, curStart, curEnd);
+            case IDENT:
+                return new Token(curType, names.name((int) curBits), (int) curBits, it, curStart, curEnd);
+            case EOF:
+                return new Token(curType, "", it, curStart, curEnd);
+            default:
+                //关键字、运算符和注释的值就是源码原文，用到时再切片
+                return new Token(curType, null, it, curStart, curEnd);
+        }
+    }
+
+    /**
+     * 一次把整个文件切分成 token，结果以数组的形式保存在 TokenStream 中，最后一个是 EOF
+     *
+     * @throws TokenizeError 如果解析有异常则抛出
+     */
+    public TokenStream tokenizeAll() throws TokenizeError {
+        it.readAll();
+        var stream = new TokenStream(it, names, (it.length - it.ptr) / 4 + 16);
+        do {
+            lex();
+            stream.add(curType, curStart, curEnd, curBits, curText);
+        } while (curType != TokenType.EOF);
+        return stream;
+    }
+
+    private void lex() throws TokenizeError {
         it.readAll();
 
         // 跳过之前的所有空白字符
         skipSpaceCharacters();
 
+        curText = null;
+        curBits = 0;
+        curStart = it.currentOffset();
         if(it.isEOF()){
-            return new Token(TokenType.EOF,"",it.currentPos(),it.currentPos());
-        }
-
-        char peek = it.peekChar();
-        if(Character.isDigit(peek)){
-            return UIntOrDouble();
-        }else if(Character.isAlphabetic(peek)||peek=='_'){
-            return IdentOrKeyword();
-        }else if(peek=='"'||peek=='\''){
-            return StringOrChar();
-        }else if(peek=='/'){
-            return lexComent();
-        }else{
-            return OperatorOrUnknow();
+            curType = TokenType.EOF;
+        }else {
+            char peek = it.peekChar();
+            if(Character.isDigit(peek)){
+                curType = UIntOrDouble();
+            }else if(Character.isAlphabetic(peek)||peek=='_'){
+                curType = IdentOrKeyword();
+            }else if(peek=='"'||peek=='\''){
+                curType = StringOrChar();
+            }else if(peek=='/'){
+                curType = lexComent();
+            }else{
+                curType = OperatorOrUnknow();
+            }
         }
+        curEnd = it.currentOffset();
     }
+
     //无符号整数或浮点数
-    private Token UIntOrDouble() throws TokenizeError{
-        String token = "";
-        Pos startpos1 = it.currentPos();
+    //词素不再逐字符拼接，而是记下在缓冲区中的起止偏移，需要时再切片
+    private TokenType UIntOrDouble() throws TokenizeError{
+        int startpos1 = it.currentOffset();
         while (Character.isDigit(it.peekChar())) {
-            token += it.nextChar();
+            it.nextChar();
         }
         boolean flag = false;
         if(it.peekChar()=='.'){
             flag =true;
-            token += it.nextChar();
+            it.nextChar();
             while (Character.isDigit(it.peekChar())) {
-                token += it.nextChar();
+                it.nextChar();
             }
             if(it.peekChar()=='e'||it.peekChar()=='E'){
-                token+=it.nextChar();
+                it.nextChar();
                 if(it.peekChar()=='+'||it.peekChar()=='-'){
-                    token+=it.nextChar();
+                    it.nextChar();
                 }
                 while (Character.isDigit(it.peekChar())) {
-                    token += it.nextChar();
+                    it.nextChar();
                 }
             }
         }
 
-        Pos endpos1 = it.currentPos();
-        token = removeZero(token);
-        if (token.equals("")) {
-            token = "0";
-        }
-
+        int endpos1 = it.currentOffset();
         if(flag){
-            double num = Double.parseDouble(token);
-            return new Token(TokenType.DOUBLE_LITERAL,num,startpos1,endpos1);
+            double num = Double.parseDouble(it.slice(startpos1, endpos1));
+            curBits = Double.doubleToRawLongBits(num);
+            return TokenType.DOUBLE_LITERAL;
         }else {
-            int num = Integer.parseInt(token);
-            return new Token(TokenType.UINT_LITERAL,num, startpos1, endpos1);
+            //直接在缓冲区上累加，前导零自然被忽略；C0 的 int 是 64 位的
+            long num = 0;
+            for (int i = startpos1; i < endpos1; i++) {
+                int digit = Character.digit(it.charAt(i), 10);
+                if (num > (Long.MAX_VALUE - digit) / 10) {
+                    throw new TokenizeError(ErrorCode.IntegerOverflow, it.posOf(startpos1));
+                }
+                num = num * 10 + digit;
+            }
+            curBits = num;
+            return TokenType.UINT_LITERAL;
         }
     }
 
     //识别关键字和标识符
-    private Token IdentOrKeyword() throws TokenizeError{
-        String token = "";
-        Pos startpos = it.currentPos();
+    //关键字直接在缓冲区切片上按 长度 + 首字母 判断，标识符驻留到 names 中并带上编号
+    private TokenType IdentOrKeyword() throws TokenizeError{
+        int startpos = it.currentOffset();
         while(Character.isAlphabetic(it.peekChar())||Character.isDigit(it.peekChar())||it.peekChar()=='_'){
-            token += it.nextChar();
+            it.nextChar();
         }
-        Pos endpos = it.currentPos();
-        switch (token){
-            case "fn":
-                return new Token(TokenType.FN_KW, token, startpos, endpos);
-            case "let":
-                return new Token(TokenType.LET_KW, token, startpos, endpos);
-            case "const":
-                return new Token(TokenType.CONST_KW, token, startpos, endpos);
-            case "as":
-                return new Token(TokenType.AS_KW, token, startpos, endpos);
-            case "while":
-                return new Token(TokenType.WHILE_KW, token, startpos, endpos);
-            case "if":
-                return new Token(TokenType.IF_KW, token, startpos, endpos);
-            case "else":
-                return new Token(TokenType.ELSE_KW, token, startpos, endpos);
-            case "return":
-                return new Token(TokenType.RETURN_KW, token, startpos, endpos);
-            case "break":
-                return new Token(TokenType.BREAK_KW, token, startpos, endpos);
-            case "continue":
-                return new Token(TokenType.CONTINUE_KW, token, startpos, endpos);
+        int endpos = it.currentOffset();
+        TokenType keyword = keywordOf(it.buffer, startpos, endpos - startpos);
+        if (keyword != null){
+            return keyword;
+        }
+        curBits = names.intern(it.buffer, startpos, endpos);
+        return TokenType.IDENT;
+    }
+
+    private static TokenType keywordOf(char[] buf, int start, int len){
+        switch (len){
+            case 2:
+                switch (buf[start]){
+                    case 'f':
+                        return buf[start + 1] == 'n' ? TokenType.FN_KW : null;
+                    case 'a':
+                        return buf[start + 1] == 's' ? TokenType.AS_KW : null;
+                    case 'i':
+                        return buf[start + 1] == 'f' ? TokenType.IF_KW : null;
+                    default:
+                        return null;
+                }
+            case 3:
+                return matches(buf, start, "let") ? TokenType.LET_KW : null;
+            case 4:
+                return matches(buf, start, "else") ? TokenType.ELSE_KW : null;
+            case 5:
+                switch (buf[start]){
+                    case 'c':
+                        return matches(buf, start, "const") ? TokenType.CONST_KW : null;
+                    case 'w':
+                        return matches(buf, start, "while") ? TokenType.WHILE_KW : null;
+                    case 'b':
+                        return matches(buf, start, "break") ? TokenType.BREAK_KW : null;
+                    default:
+                        return null;
+                }
+            case 6:
+                return matches(buf, start, "return") ? TokenType.RETURN_KW : null;
+            case 8:
+                return matches(buf, start, "continue") ? TokenType.CONTINUE_KW : null;
             default:
-                return new Token(TokenType.IDENT,token,startpos,endpos);
+                return null;
         }
     }
 
-    private Token StringOrChar() throws TokenizeError{
-        String token = "";
-        Pos startpos1 =it.currentPos();
-        //字符串String
-        if (it.peekChar() == '\"'){
-            it.nextChar();
-            while(it.peekChar()!='\"'){
-                token = getEscapeSequence(token);
+    private static boolean matches(char[] buf, int start, String keyword){
+        for (int i = 0; i < keyword.length(); i++){
+            if (buf[start + i] != keyword.charAt(i)){
+                return false;
             }
-            if (it.peekChar()=='\"'){
-                it.nextChar();
-                Pos endpos1 = it.currentPos();
-                return new Token(TokenType.STRING_LITERAL,token,startpos1,endpos1);
-            }else{
-                throw new TokenizeError(ErrorCode.InvalidInput,it.previousPos());
-            }
-        }else if(it.peekChar() == '\''){
-            //char字符串
-            it.nextChar();
-            while(it.peekChar()!='\''){
-                token = getEscapeSequence(token);
+        }
+        return true;
+    }
+
+    /** 反转义用的缓冲，每个字面量复用同一个 */
+    private final StringBuilder unescaped = new StringBuilder();
+
+    private TokenType StringOrChar() throws TokenizeError{
+        int startpos1 = it.currentOffset();
+        char quote = it.nextChar();
+        unescaped.setLength(0);
+        //没有转义字符的时候直接在缓冲区上切片，不需要经过 unescaped
+        boolean hasEscape = false;
+        while(it.peekChar()!=quote){
+            if (it.isEOF()){
+                throw new TokenizeError(ErrorCode.EOF,it.posOf(startpos1));
             }
-            if (it.peekChar()=='\''){
-                it.nextChar();
-                Pos endpos1 = it.currentPos();
-                return new Token(TokenType.CHAR_LITERAL,token,startpos1,endpos1);
+            if (it.peekChar()=='\\'){
+                if (!hasEscape){
+                    unescaped.append(it.buffer, startpos1 + 1, it.currentOffset() - startpos1 - 1);
+                    hasEscape = true;
+                }
+                unescaped.append(getEscapeSequence());
+            }else if (hasEscape){
+                unescaped.append(it.nextChar());
             }else{
-                throw new TokenizeError(ErrorCode.InvalidInput,it.previousPos());
+                it.nextChar();
             }
+        }
+        int valueEnd = it.currentOffset();
+        it.nextChar();
+        if (quote == '\"'){
+            //字符串String
+            curText = hasEscape ? unescaped.toString() : it.slice(startpos1 + 1, valueEnd);
+            return TokenType.STRING_LITERAL;
         }else{
-            throw new TokenizeError(ErrorCode.InvalidInput,it.previousPos());
+            //char字符，只能恰好包含一个字符或一个转义字符
+            int count = hasEscape ? unescaped.length() : valueEnd - startpos1 - 1;
+            if (count != 1){
+                throw new TokenizeError(ErrorCode.InvalidInput,it.posOf(startpos1));
+            }
+            curBits = hasEscape ? unescaped.charAt(0) : it.charAt(startpos1 + 1);
+            return TokenType.CHAR_LITERAL;
         }
     }
-    //识别转义字符
-    private String getEscapeSequence(String token) throws TokenizeError {
-        if(it.peekChar()=='\\'){
-            token+=it.nextChar();
-            if(it.peekChar()=='\\'||it.peekChar()=='\"'||it.peekChar()=='\''||it.peekChar()=='n'||it.peekChar()=='r'||it.peekChar()=='t'){
-                token+=it.nextChar();
-                return token;
-            }else{
+    //识别转义字符，返回转义后的字符
+    private char getEscapeSequence() throws TokenizeError {
+        it.nextChar();
+        switch (it.nextChar()){
+            case '\\':
+                return '\\';
+            case '\"':
+                return '\"';
+            case '\'':
+                return '\'';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            default:
                 throw new TokenizeError(ErrorCode.InvalidInput,it.previousPos());
-            }
         }
-        token += it.nextChar();
-        return token;
     }
 
-    //识别注释
-    private Token lexComent() throws TokenizeError{
-        String token = "";
-        Pos startpos1 = it.currentPos();
-        token+=it.nextChar();
-        if(it.peekChar()=='/'){
-            token+=it.nextChar();
-        }else{
-            throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
+    //识别注释；单独的 '/' 是除号
+    //注释的内容不在这里生成，由 Token.getValue() 在需要时再从缓冲区切片
+    private TokenType lexComent() throws TokenizeError{
+        it.nextChar();
+        if(it.peekChar()!='/'){
+            return TokenType.DIV;
         }
-        while(it.peekChar()!='\n'){
-            token+=it.nextChar();
+        while(!it.isEOF()&&it.peekChar()!='\n'){
+            it.nextChar();
         }
         if(it.peekChar()=='\n'){
-            token+=it.nextChar();
+            it.nextChar();
         }
-        Pos endpos1 = it.currentPos();
-        return new Token(TokenType.COMMENT,token,startpos1,endpos1);
+        return TokenType.COMMENT;
     }
 
     //识别常量
-    private Token OperatorOrUnknow() throws TokenizeError{
+    private TokenType OperatorOrUnknow() throws TokenizeError{
         switch (it.nextChar()){
             case '+':
-                return new Token(TokenType.PLUS, '+', it.previousPos(), it.currentPos());
+                return TokenType.PLUS;
             case '-':
                 if(it.peekChar()=='>'){
                     it.nextChar();
-                    return new Token(TokenType.ARROW, "->", it.previousPos(), it.currentPos());
+                    return TokenType.ARROW;
                 }else{
-                    return new Token(TokenType.MINUS, '-', it.previousPos(), it.currentPos());
+                    return TokenType.MINUS;
                 }
             case '*':
-                return new Token(TokenType.MUL, '*', it.previousPos(), it.currentPos());
+                return TokenType.MUL;
             case '/':
-                return new Token(TokenType.DIV, '/', it.previousPos(), it.currentPos());
+                return TokenType.DIV;
             case '=':
                 if (it.peekChar()=='='){
                     it.nextChar();
-                    return new Token(TokenType.EQ,"==",it.previousPos(),it.currentPos());
+                    return TokenType.EQ;
                 }else{
-                    return new Token(TokenType.ASSIGN, '=', it.previousPos(), it.currentPos());
+                    return TokenType.ASSIGN;
                 }
             case '!':
                 if (it.peekChar()=='='){
                     it.nextChar();
-                    return new Token(TokenType.NEQ,"!=",it.previousPos(),it.currentPos());
+                    return TokenType.NEQ;
                 }else{
                     throw new TokenizeError(ErrorCode.InvalidInput,it.previousPos());
                 }
             case '<':
                 if (it.peekChar()=='='){
                     it.nextChar();
-                    return new Token(TokenType.LE, "<=", it.previousPos(), it.currentPos());
+                    return TokenType.LE;
                 }else{
-                    return new Token(TokenType.LT, '<', it.previousPos(), it.currentPos());
+                    return TokenType.LT;
                 }
             case '>':
                 if (it.peekChar()=='='){
                     it.nextChar();
-                    return new Token(TokenType.GE,">=",it.previousPos(),it.currentPos());
+                    return TokenType.GE;
                 }else{
-                    return new Token(TokenType.GT, '>', it.previousPos(), it.currentPos());
+                    return TokenType.GT;
                 }
             case '(':
-                return new Token(TokenType.L_PAREN, '(', it.previousPos(), it.currentPos());
+                return TokenType.L_PAREN;
             case ')':
-                return new Token(TokenType.R_PAREN, ')', it.previousPos(), it.currentPos());
+                return TokenType.R_PAREN;
             case '{':
-                return new Token(TokenType.L_BRACE, '{', it.previousPos(), it.currentPos());
+                return TokenType.L_BRACE;
             case '}':
-                return new Token(TokenType.R_BRACE, '}', it.previousPos(), it.currentPos());
+                return TokenType.R_BRACE;
             case ',':
-                return new Token(TokenType.COMMA, ',', it.previousPos(), it.currentPos());
+                return TokenType.COMMA;
             case ':':
-                return new Token(TokenType.COLON, ':', it.previousPos(), it.currentPos());
+                return TokenType.COLON;
             case ';':
-                return new Token(TokenType.SEMICOLON, ';', it.previousPos(), it.currentPos());
+                return TokenType.SEMICOLON;
             default:
                 throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
         }
@@ -246,12 +352,4 @@ public class Tokenizer {
             it.nextChar();
         }
     }
-    private String removeZero(String str) {
-        int len = str.length();
-        int i = 0;
-        while (i < len && str.charAt(i) == '0') {
-            i++;
-        }
-        return str.substring(i);
-    }
 }
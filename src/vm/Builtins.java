@@ -0,0 +1,124 @@
+package vm;
+
+import error.VmError;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+/**
+ * 标准库函数和输入输出，各个执行引擎共用
+ */
+final class Builtins {
+    private final Code code;
+    private final InputStream in;
+    final PrintStream out;
+
+    Builtins(Code code, InputStream in, PrintStream out) {
+        this.code = code;
+        this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in);
+        this.out = out;
+    }
+
+    /**
+     * 执行标准库函数，和普通函数一样：返回值的位置已经由 stackalloc 分配好，参数在栈顶，返回新的栈顶
+     */
+    int call(int builtin, long[] s, int sp) {
+        switch (builtin) {
+            case Opcodes.GETINT:
+                s[sp - 1] = readInt();
+                return sp;
+            case Opcodes.GETCHAR:
+                s[sp - 1] = readChar();
+                return sp;
+            case Opcodes.GETDOUBLE:
+                s[sp - 1] = f(readDouble());
+                return sp;
+            case Opcodes.PUTINT:
+                out.print(s[sp - 1]);
+                return sp - 1;
+            case Opcodes.PUTCHAR:
+                out.print((char) s[sp - 1]);
+                return sp - 1;
+            case Opcodes.PUTDOUBLE:
+                out.print(d(s[sp - 1]));
+                return sp - 1;
+            case Opcodes.PUTSTR:
+                out.print(stringAt(s[sp - 1]));
+                return sp - 1;
+            case Opcodes.PUTLN:
+                out.print('\n');
+                return sp;
+            default:
+                throw new VmError("unknown library function");
+        }
+    }
+
+    String stringAt(long global) {
+        if (global < 0 || global >= code.globalCount || code.globalStrings[(int) global] == null) {
+            throw new VmError("not a string: global " + global);
+        }
+        return code.globalStrings[(int) global];
+    }
+
+    static double d(long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    static long f(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+
+    // 读入部分，getint 和 getdouble 跳过前导空白后读一个词
+
+    private int read() {
+        try {
+            return in.read();
+        } catch (IOException e) {
+            throw new VmError("cannot read input", e);
+        }
+    }
+
+    long readChar() {
+        int ch = read();
+        if (ch < 0) {
+            throw new VmError("unexpected end of input");
+        }
+        return ch;
+    }
+
+    private String readWord() {
+        int ch = read();
+        while (ch >= 0 && Character.isWhitespace(ch)) {
+            ch = read();
+        }
+        if (ch < 0) {
+            throw new VmError("unexpected end of input");
+        }
+        var sb = new StringBuilder();
+        while (ch >= 0 && !Character.isWhitespace(ch)) {
+            sb.append((char) ch);
+            ch = read();
+        }
+        return sb.toString();
+    }
+
+    long readInt() {
+        String word = readWord();
+        try {
+            return Long.parseLong(word);
+        } catch (NumberFormatException e) {
+            throw new VmError("invalid integer input: " + word);
+        }
+    }
+
+    double readDouble() {
+        String word = readWord();
+        try {
+            return Double.parseDouble(word);
+        } catch (NumberFormatException e) {
+            throw new VmError("invalid double input: " + word);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 最小的 class 文件生成器，只支持 JIT 用到的常量和方法
+ * 版本号取 49（Java 5），这样不需要 StackMapTable，由 JVM 用类型推导的方式校验
+ */
+final class ClassWriter {
+    static final int VERSION = 49;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final HashMap<String, Integer> constants = new HashMap<>();
+    /** 下一个常量的编号，long 占两个编号 */
+    private int poolCount = 1;
+
+    private final List<byte[]> methods = new ArrayList<>();
+
+    int utf8(String value) {
+        return constant("U" + value, CONSTANT_UTF8, out -> out.writeUTF(value), 1);
+    }
+
+    int classRef(String internalName) {
+        int name = utf8(internalName);
+        return constant("C" + internalName, CONSTANT_CLASS, out -> out.writeShort(name), 1);
+    }
+
+    int intConst(int value) {
+        return constant("I" + value, CONSTANT_INTEGER, out -> out.writeInt(value), 1);
+    }
+
+    int longConst(long value) {
+        return constant("J" + value, CONSTANT_LONG, out -> out.writeLong(value), 2);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_INTERFACE_METHODREF, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int typeIndex = utf8(descriptor);
+        int nameAndType = constant("N" + name + ":" + descriptor, CONSTANT_NAME_AND_TYPE, out -> {
+            out.writeShort(nameIndex);
+            out.writeShort(typeIndex);
+        }, 1);
+        return constant(tag + owner + "." + name + ":" + descriptor, tag, out -> {
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+        }, 1);
+    }
+
+    private interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int constant(String key, int tag, Body body, int slots) {
+        Integer index = constants.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(tag);
+            body.write(pool);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        int result = poolCount;
+        poolCount += slots;
+        constants.put(key, result);
+        return result;
+    }
+
+    /**
+     * 添加一个带 Code 属性的方法，不包含异常表和其他属性
+     */
+    void method(int access, String name, String descriptor, int maxStack, int maxLocals, byte[] code) {
+        method(access, name, descriptor, maxStack, maxLocals, code, null, 0);
+    }
+
+    /**
+     * 添加一个带 Code 属性的方法，lines 不为 null 时附带 LineNumberTable，
+     * lines 里前 lineCount 对依次是字节码偏移和行号
+     */
+    void method(int access, String name, String descriptor, int maxStack, int maxLocals, byte[] code,
+                int[] lines, int lineCount) {
+        int nameIndex = utf8(name);
+        int descIndex = utf8(descriptor);
+        int codeIndex = utf8("Code");
+        int lineIndex = lines != null ? utf8("LineNumberTable") : 0;
+        int lineBytes = lines != null ? 8 + 4 * lineCount : 0;
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(nameIndex);
+            out.writeShort(descIndex);
+            out.writeShort(1);
+            out.writeShort(codeIndex);
+            out.writeInt(12 + code.length + lineBytes);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0);
+            if (lines == null) {
+                out.writeShort(0);
+            } else {
+                out.writeShort(1);
+                out.writeShort(lineIndex);
+                out.writeInt(2 + 4 * lineCount);
+                out.writeShort(lineCount);
+                for (int i = 0; i < 2 * lineCount; i++) {
+                    out.writeShort(lines[i]);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    byte[] toByteArray(int access, String name, String superName, String... interfaces) {
+        int thisIndex = classRef(name);
+        int superIndex = classRef(superName);
+        int[] interfaceIndexes = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceIndexes[i] = classRef(interfaces[i]);
+        }
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+            out.writeShort(access);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(interfaceIndexes.length);
+            for (int index : interfaceIndexes) {
+                out.writeShort(index);
+            }
+            out.writeShort(0);
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
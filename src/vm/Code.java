@@ -0,0 +1,103 @@
+package vm;
+
+import analyser.FuncEntry;
+import analyser.Program;
+import analyser.SymbolEntry;
+
+import java.util.List;
+
+/**
+ * 装载好的程序：所有函数的指令首尾相接放在两个平坦的数组里
+ * ops[pc] 是 opcode，args[pc] 是操作数，执行时不需要访问 CodeBuffer，也没有装箱
+ * 每个函数体后面补一条 RET，函数执行到末尾时等同于返回
+ */
+public final class Code {
+    final int[] ops;
+    final long[] args;
+
+    /** 按函数编号（即 funcOffset）排列的入口和各种 slot 数 */
+    final int[] funcStart;
+    final int[] retSlots;
+    final int[] paramSlots;
+    final int[] locSlots;
+
+    /** 全局变量个数，每个全局变量占一个 slot */
+    final int globalCount;
+    /** 函数名和字符串常量的值，其他全局变量为 null */
+    final String[] globalStrings;
+
+    private Code(int size, int funcCount, int globalCount) {
+        this.ops = new int[size];
+        this.args = new long[size];
+        this.funcStart = new int[funcCount];
+        this.retSlots = new int[funcCount];
+        this.paramSlots = new int[funcCount];
+        this.locSlots = new int[funcCount];
+        this.globalCount = globalCount;
+        this.globalStrings = new String[globalCount];
+    }
+
+    public static Code load(Program program) {
+        List<FuncEntry> functions = program.functions();
+        List<SymbolEntry> globals = program.getGlobals();
+        int size = 0;
+        for (FuncEntry function : functions) {
+            size += function.getInstructions().size() + 1;
+        }
+        var code = new Code(size, functions.size(), globals.size());
+        for (int i = 0; i < globals.size(); i++) {
+            String value = globals.get(i).getGlobal_value();
+            code.globalStrings[i] = value == null || value.isEmpty() ? null : value;
+        }
+
+        int pc = 0;
+        for (int id = 0; id < functions.size(); id++) {
+            FuncEntry function = functions.get(id);
+            code.funcStart[id] = pc;
+            code.retSlots[id] = function.getRet_num();
+            code.paramSlots[id] = function.getParam_num();
+            code.locSlots[id] = function.getLocVarNum();
+            var body = function.getInstructions();
+            for (int i = 0; i < body.size(); i++) {
+                int op = body.op(i).getNum();
+                long x = body.arg(i);
+                if (op == Opcodes.CALLNAME) {
+                    //callname 的操作数是保存函数名的全局变量，装载时就换算成标准库函数的编号
+                    int global = (int) x;
+                    String name = global < code.globalStrings.length ? code.globalStrings[global] : null;
+                    x = name == null ? -1 : Opcodes.builtinOf(name);
+                }
+                code.ops[pc] = op;
+                code.args[pc] = x;
+                pc++;
+            }
+            code.ops[pc] = Opcodes.RET;
+            pc++;
+        }
+        return code;
+    }
+
+    public int size() {
+        return ops.length;
+    }
+
+    public int functionCount() {
+        return funcStart.length;
+    }
+
+    /**
+     * pc 所在的函数编号
+     */
+    int functionAt(int pc) {
+        int lo = 0, hi = funcStart.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (funcStart[mid] <= pc) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,16 @@
+package vm;
+
+/**
+ * 执行 Code 的方式，目前有逐条解释的 Interpreter 和融合指令的 FusedInterpreter
+ */
+public interface Engine {
+    /**
+     * 从 0 号函数（_start）开始执行，直到它返回
+     */
+    void run();
+
+    /**
+     * 执行过的指令条数，融合后的一条指令只计一次
+     */
+    long getSteps();
+}
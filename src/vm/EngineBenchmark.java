@@ -0,0 +1,102 @@
+package vm;
+
+import driver.Compiler;
+import tokenizer.StringIter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * 比较逐条解释的 Interpreter、融合指令的 FusedInterpreter 以及打开 JIT 的 FusedInterpreter
+ * 用法：EngineBenchmark [源文件] [轮数]，不给源文件时使用内置的循环程序
+ * 每个引擎先预热，再交替执行若干轮，输出每轮耗时的中位数，并检查两者的输出是否一致
+ */
+public class EngineBenchmark {
+    private static final String LOOP_PROGRAM =
+            "fn main() -> int {\n" +
+            "    let i: int = 0;\n" +
+            "    let s: int = 0;\n" +
+            "    while i < 5000000 {\n" +
+            "        if i > 100 {\n" +
+            "            s = s + i * 3;\n" +
+            "        } else {\n" +
+            "            s = s - 1;\n" +
+            "        }\n" +
+            "        i = i + 1;\n" +
+            "    }\n" +
+            "    putint(s);\n" +
+            "    putln();\n" +
+            "    return 0;\n" +
+            "}\n";
+
+    public static void main(String[] args) throws Exception {
+        StringIter source = args.length > 0 ? new StringIter(Paths.get(args[0])) : new StringIter(LOOP_PROGRAM);
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        var code = Code.load(new Compiler().analyse(source));
+
+        String[] names = {"naive", "fused", "jit"};
+        String expected = runOnce(code, 0, null);
+        for (int kind = 1; kind < names.length; kind++) {
+            String output = runOnce(code, kind, null);
+            if (!expected.equals(output)) {
+                System.err.println("outputs differ:\nnaive: " + expected + "\n" + names[kind] + ": " + output);
+                System.exit(-1);
+            }
+        }
+
+        long[][] times = new long[names.length][rounds];
+        long[] steps = new long[names.length];
+        // 预热
+        for (int i = 0; i < 3; i++) {
+            for (int kind = 0; kind < names.length; kind++) {
+                runOnce(code, kind, null);
+            }
+        }
+        for (int i = 0; i < rounds; i++) {
+            for (int kind = 0; kind < names.length; kind++) {
+                long start = System.nanoTime();
+                runOnce(code, kind, steps);
+                times[kind][i] = System.nanoTime() - start;
+            }
+        }
+        long naiveMedian = median(times[0]);
+        for (int kind = 0; kind < names.length; kind++) {
+            long median = median(times[kind]);
+            System.out.printf("%s: %d ms, %d interpreted instructions, %.2fx%n", names[kind], median / 1000000,
+                    steps[kind], (double) naiveMedian / Math.max(median, 1));
+        }
+    }
+
+    /**
+     * kind：0 为 Interpreter，1 为 FusedInterpreter，2 为打开 JIT 的 FusedInterpreter
+     */
+    private static String runOnce(Code code, int kind, long[] steps) {
+        var bytes = new ByteArrayOutputStream();
+        var out = new PrintStream(bytes);
+        var in = new ByteArrayInputStream(new byte[0]);
+        Engine engine;
+        if (kind == 0) {
+            engine = new Interpreter(code, in, out);
+        } else {
+            var fused = new FusedInterpreter(code, in, out);
+            if (kind == 2) {
+                fused.enableJit();
+            }
+            engine = fused;
+        }
+        engine.run();
+        if (steps != null) {
+            steps[kind] = engine.getSteps();
+        }
+        return bytes.toString();
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,409 @@
+package vm;
+
+import java.util.Arrays;
+
+/**
+ * 把 Code 预先解码成紧凑的 int 数组，并把 Analyser 常生成的指令序列融合成一条超级指令
+ * 每条指令固定占两个 int：code[pc] 是操作码，code[pc + 1] 是操作数
+ * 跳转的操作数换算成新数组中的绝对位置，call 的操作数仍然是函数编号
+ * 融合的序列中间如果有跳转目标就不融合，这样融合前后每个跳转目标的状态完全一样
+ */
+final class FusedCode {
+    // 融合后的超级指令，其余指令沿用 Opcodes 中的编号
+    /** loca n; load_64 */
+    static final int LOAD_LOCAL = 0x60;
+    /** arga n; load_64 */
+    static final int LOAD_ARG = 0x61;
+    /** globa n; load_64 */
+    static final int LOAD_GLOBAL = 0x62;
+    /** loca n; <expr>; store_64 中的 store_64，loca 被去掉 */
+    static final int STORE_LOCAL = 0x63;
+    static final int STORE_ARG = 0x64;
+    static final int STORE_GLOBAL = 0x65;
+    /** push k; add_i 以及 push k; sub_i（k 取反） */
+    static final int ADD_CONST = 0x66;
+    /** push k; mul_i */
+    static final int MUL_CONST = 0x67;
+    /** 操作数放不进 int 的 push，操作数是 consts 的下标 */
+    static final int PUSH_LONG = 0x68;
+    /** cmp_i; <set_lt/set_gt/not...>; br_true/br_false，弹出两个值比较后跳转 */
+    static final int JLT = 0x70;
+    static final int JGE = 0x71;
+    static final int JGT = 0x72;
+    static final int JLE = 0x73;
+    static final int JEQ = 0x74;
+    static final int JNE = 0x75;
+
+    /** 模拟栈深度时遇到不能确定栈变化的指令 */
+    private static final int UNKNOWN = Integer.MIN_VALUE;
+
+    final int[] code;
+    final long[] consts;
+    final int[] funcStart;
+    /** 新位置 -> Code 中的位置，报错用 */
+    final int[] origin;
+
+    private final Code source;
+    private int[] out;
+    private int size = 0;
+    private long[] constPool = new long[8];
+    private int constCount = 0;
+    private int[] originOut;
+
+    private FusedCode(Code source) {
+        this.source = source;
+        this.out = new int[source.size() * 2];
+        this.originOut = new int[source.size()];
+        this.funcStart = new int[source.functionCount()];
+        for (int id = 0; id < funcStart.length; id++) {
+            int start = source.funcStart[id];
+            int end = id + 1 < funcStart.length ? source.funcStart[id + 1] : source.size();
+            funcStart[id] = size;
+            fuseFunction(start, end);
+        }
+        this.code = Arrays.copyOf(out, size);
+        this.consts = Arrays.copyOf(constPool, constCount);
+        this.origin = Arrays.copyOf(originOut, size / 2);
+    }
+
+    static FusedCode fuse(Code source) {
+        return new FusedCode(source);
+    }
+
+    /**
+     * 融合 [start, end) 这一个函数，跳转只会落在函数内部
+     */
+    private void fuseFunction(int start, int end) {
+        final int[] ops = source.ops;
+        final long[] args = source.args;
+        int length = end - start;
+
+        // 哪些位置是跳转目标，目标可能是函数末尾补上的 RET
+        boolean[] isTarget = new boolean[length + 1];
+        for (int i = start; i < end; i++) {
+            if (isBranch(ops[i])) {
+                int target = i + 1 + (int) args[i] - start;
+                if (target >= 0 && target <= length) {
+                    isTarget[target] = true;
+                }
+            }
+        }
+
+        // 旧位置 -> 新位置，被去掉的指令映射到它后面第一条输出的指令
+        int[] newPc = new int[length + 1];
+        // 待回填的跳转：新数组中操作数的位置，以及它在旧代码中的目标
+        int[] fixAt = new int[length];
+        int[] fixTarget = new int[length];
+        int fixCount = 0;
+        // 某个 store_64 被融合成 STORE_xxx 时的操作码和操作数
+        int[] storeOp = new int[length];
+        int[] storeArg = new int[length];
+
+        int i = start;
+        while (i < end) {
+            newPc[i - start] = size;
+            int op = ops[i];
+            long x = args[i];
+            int rel = i - start;
+
+            if (storeOp[rel] != 0) {
+                emit(storeOp[rel], storeArg[rel], i);
+                i++;
+                continue;
+            }
+
+            switch (op) {
+                case Opcodes.LOCA:
+                case Opcodes.ARGA:
+                case Opcodes.GLOBA: {
+                    int load = op == Opcodes.LOCA ? LOAD_LOCAL : op == Opcodes.ARGA ? LOAD_ARG : LOAD_GLOBAL;
+                    int store = op == Opcodes.LOCA ? STORE_LOCAL : op == Opcodes.ARGA ? STORE_ARG : STORE_GLOBAL;
+                    if (i + 1 < end && ops[i + 1] == Opcodes.LOAD_64 && !isTarget[rel + 1]) {
+                        emit(load, (int) x, i);
+                        newPc[rel + 1] = newPc[rel];
+                        i += 2;
+                        continue;
+                    }
+                    int j = matchingStore(i, end, isTarget, start);
+                    if (j >= 0) {
+                        //地址不再入栈，由对应的 store_64 直接写入
+                        storeOp[j - start] = store;
+                        storeArg[j - start] = (int) x;
+                        i++;
+                        continue;
+                    }
+                    break;
+                }
+                case Opcodes.PUSH:
+                    if (i + 1 < end && !isTarget[rel + 1]) {
+                        int next = ops[i + 1];
+                        if (next == Opcodes.ADD_I && fitsInt(x)) {
+                            emit(ADD_CONST, (int) x, i);
+                        } else if (next == Opcodes.SUB_I && fitsInt(-x)) {
+                            emit(ADD_CONST, (int) -x, i);
+                        } else if (next == Opcodes.MUL_I && fitsInt(x)) {
+                            emit(MUL_CONST, (int) x, i);
+                        } else {
+                            break;
+                        }
+                        newPc[rel + 1] = newPc[rel];
+                        i += 2;
+                        continue;
+                    }
+                    break;
+                case Opcodes.CMP_I: {
+                    int fused = fuseCompare(i, end, isTarget, start);
+                    if (fused > 0) {
+                        // fuseCompare 已经输出了条件跳转，记下回填信息
+                        int last = i + fused - 1;
+                        for (int k = i + 1; k <= last; k++) {
+                            newPc[k - start] = newPc[rel];
+                        }
+                        fixAt[fixCount] = size - 1;
+                        fixTarget[fixCount] = pendingTarget - start;
+                        fixCount++;
+                        i += fused;
+                        continue;
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+
+            if (op == Opcodes.PUSH && !fitsInt(x)) {
+                emit(PUSH_LONG, constant(x), i);
+            } else if (isBranch(op)) {
+                emit(op, 0, i);
+                fixAt[fixCount] = size - 1;
+                fixTarget[fixCount] = i + 1 + (int) x - start;
+                fixCount++;
+            } else {
+                emit(op, (int) x, i);
+            }
+            i++;
+        }
+        newPc[length] = size;
+
+        for (int k = 0; k < fixCount; k++) {
+            int target = fixTarget[k];
+            if (target < 0 || target > length) {
+                //跳出函数的跳转原样保留成一个不可能到达的位置，执行时会越界报错
+                out[fixAt[k]] = -1;
+            } else {
+                out[fixAt[k]] = newPc[target];
+            }
+        }
+    }
+
+    /** fuseCompare 找到的跳转目标，旧代码中的绝对位置 */
+    private int pendingTarget;
+
+    /**
+     * 识别 cmp_i 开头的比较加跳转，输出一条条件跳转，返回消耗的指令条数，不能融合返回 0
+     */
+    private int fuseCompare(int i, int end, boolean[] isTarget, int start) {
+        final int[] ops = source.ops;
+        final long[] args = source.args;
+        // 比较部分：cmp_i 后面跟着的 set_lt/set_gt/not 决定条件
+        int cond;
+        int n;
+        if (at(ops, i + 1, end) == Opcodes.SET_LT && at(ops, i + 2, end) == Opcodes.NOT) {
+            cond = JGE;
+            n = 3;
+        } else if (at(ops, i + 1, end) == Opcodes.SET_GT && at(ops, i + 2, end) == Opcodes.NOT) {
+            cond = JLE;
+            n = 3;
+        } else if (at(ops, i + 1, end) == Opcodes.SET_LT) {
+            cond = JLT;
+            n = 2;
+        } else if (at(ops, i + 1, end) == Opcodes.SET_GT) {
+            cond = JGT;
+            n = 2;
+        } else if (at(ops, i + 1, end) == Opcodes.NOT) {
+            cond = JEQ;
+            n = 2;
+        } else {
+            // 单独的 cmp_i，非零即不相等
+            cond = JNE;
+            n = 1;
+        }
+        int b = i + n;
+        int branch = at(ops, b, end);
+        int consumed;
+        int target;
+        if (branch == Opcodes.BR_TRUE && args[b] == 1 && at(ops, b + 1, end) == Opcodes.BR) {
+            // 条件成立时跳过后面的 br，也就是条件不成立时跳到 br 的目标
+            cond = negate(cond);
+            consumed = n + 2;
+            target = b + 2 + (int) args[b + 1];
+        } else if (branch == Opcodes.BR_TRUE) {
+            consumed = n + 1;
+            target = b + 1 + (int) args[b];
+        } else if (branch == Opcodes.BR_FALSE) {
+            cond = negate(cond);
+            consumed = n + 1;
+            target = b + 1 + (int) args[b];
+        } else {
+            return 0;
+        }
+        for (int k = i + 1; k < i + consumed; k++) {
+            if (isTarget[k - start]) {
+                return 0;
+            }
+        }
+        emit(cond, 0, i);
+        pendingTarget = target;
+        return consumed;
+    }
+
+    /**
+     * 从 loca/arga/globa 开始模拟栈深度，找到恰好消耗这个地址的 store_64
+     * 中间有跳转、调用或者跳转目标时放弃，返回 -1
+     */
+    private int matchingStore(int i, int end, boolean[] isTarget, int start) {
+        final int[] ops = source.ops;
+        final long[] args = source.args;
+        int depth = 0;
+        for (int j = i + 1; j < end; j++) {
+            if (isTarget[j - start]) {
+                return -1;
+            }
+            int op = ops[j];
+            if (op == Opcodes.STORE_64 && depth == 1) {
+                return j;
+            }
+            int delta = stackEffect(op, args[j]);
+            if (delta == UNKNOWN) {
+                return -1;
+            }
+            depth += delta;
+            if (depth < 0) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static int stackEffect(int op, long x) {
+        switch (op) {
+            case Opcodes.NOP:
+            case Opcodes.LOAD_64:
+            case Opcodes.NOT:
+            case Opcodes.NEG_I:
+            case Opcodes.NEG_F:
+            case Opcodes.ITOF:
+            case Opcodes.FTOI:
+            case Opcodes.SET_LT:
+            case Opcodes.SET_GT:
+            case Opcodes.PRINTLN:
+                return 0;
+            case Opcodes.PUSH:
+            case Opcodes.LOCA:
+            case Opcodes.ARGA:
+            case Opcodes.GLOBA:
+            case Opcodes.DUP:
+            case Opcodes.SCAN_I:
+            case Opcodes.SCAN_C:
+            case Opcodes.SCAN_F:
+                return 1;
+            case Opcodes.POP:
+            case Opcodes.ADD_I:
+            case Opcodes.SUB_I:
+            case Opcodes.MUL_I:
+            case Opcodes.DIV_I:
+            case Opcodes.DIV_U:
+            case Opcodes.ADD_F:
+            case Opcodes.SUB_F:
+            case Opcodes.MUL_F:
+            case Opcodes.DIV_F:
+            case Opcodes.SHL:
+            case Opcodes.SHR:
+            case Opcodes.SHRL:
+            case Opcodes.AND:
+            case Opcodes.OR:
+            case Opcodes.XOR:
+            case Opcodes.CMP_I:
+            case Opcodes.CMP_U:
+            case Opcodes.CMP_F:
+            case Opcodes.PRINT_I:
+            case Opcodes.PRINT_C:
+            case Opcodes.PRINT_F:
+            case Opcodes.PRINT_S:
+                return -1;
+            case Opcodes.POPN:
+                return (int) -x;
+            case Opcodes.STORE_64:
+                return -2;
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    private static boolean isBranch(int op) {
+        return op == Opcodes.BR || op == Opcodes.BR_TRUE || op == Opcodes.BR_FALSE;
+    }
+
+    private static int negate(int cond) {
+        switch (cond) {
+            case JLT:
+                return JGE;
+            case JGE:
+                return JLT;
+            case JGT:
+                return JLE;
+            case JLE:
+                return JGT;
+            case JEQ:
+                return JNE;
+            default:
+                return JEQ;
+        }
+    }
+
+    private static int at(int[] ops, int i, int end) {
+        return i < end ? ops[i] : -1;
+    }
+
+    private static boolean fitsInt(long x) {
+        return x == (int) x;
+    }
+
+    private int constant(long x) {
+        if (constCount == constPool.length) {
+            constPool = Arrays.copyOf(constPool, constCount * 2);
+        }
+        constPool[constCount] = x;
+        return constCount++;
+    }
+
+    private void emit(int op, int operand, int originPc) {
+        originOut[size / 2] = originPc;
+        out[size++] = op;
+        out[size++] = operand;
+    }
+
+    /**
+     * 函数 fn 末尾补上的那条 RET 的位置
+     */
+    int retPc(int fn) {
+        int end = fn + 1 < funcStart.length ? funcStart[fn + 1] : code.length;
+        return end - 2;
+    }
+
+    /**
+     * pc 所在的函数编号
+     */
+    int functionAt(int pc) {
+        int lo = 0, hi = funcStart.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (funcStart[mid] <= pc) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,477 @@
+package vm;
+
+import error.VmError;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import static vm.Builtins.d;
+import static vm.Builtins.f;
+
+/**
+ * 执行 FusedCode 的解释器，内存布局和栈帧和 Interpreter 完全一样
+ * 常见的指令序列已经融合成一条超级指令，分派次数和栈操作都更少
+ * 打开 JIT 之后，热的函数会被编译成 JVM 字节码：调用时直接执行编译后的代码，
+ * 正在解释执行的循环在跳回循环头时通过 OSR 转入编译后的代码
+ */
+public class FusedInterpreter implements Engine {
+    private final Code code;
+    private final FusedCode fused;
+    private final Builtins builtins;
+    private final PrintStream out;
+
+    private final long[] stack;
+
+    // 调用栈：调用者的 pc、bp、lp 和函数编号
+    private final int[] savedPc;
+    private final int[] savedBp;
+    private final int[] savedLp;
+    private final int[] savedFn;
+
+    /** 编译后的代码在 JVM 栈上最多嵌套的层数 */
+    static final int MAX_NESTING = 256;
+
+    /** 执行过的指令条数 */
+    private long steps = 0;
+
+    private Jit jit;
+    private JitRuntime runtime;
+    /** 进入编译后的代码时的栈顶，编译后的代码再调用解释执行的函数时从这里往上使用 */
+    private int top;
+    /** 正在执行的编译后的函数所在的调用栈深度，和解释执行的帧一起按 maxDepth 计算 */
+    private int callDepth;
+    /** JVM 栈上嵌套着的编译后的函数个数，超过 MAX_NESTING 的调用改回解释执行，不再占用 JVM 的栈 */
+    private int nesting;
+
+    public FusedInterpreter(Code code, InputStream in, PrintStream out) {
+        this(code, in, out, Interpreter.DEFAULT_STACK_SLOTS, Interpreter.DEFAULT_MAX_DEPTH);
+    }
+
+    public FusedInterpreter(Code code, InputStream in, PrintStream out, int stackSlots, int maxDepth) {
+        this.code = code;
+        this.fused = FusedCode.fuse(code);
+        this.builtins = new Builtins(code, in, out);
+        this.out = out;
+        this.stack = new long[code.globalCount + stackSlots];
+        this.savedPc = new int[maxDepth];
+        this.savedBp = new int[maxDepth];
+        this.savedLp = new int[maxDepth];
+        this.savedFn = new int[maxDepth];
+    }
+
+    @Override
+    public long getSteps() {
+        return steps;
+    }
+
+    /**
+     * 打开 JIT，需要在 run() 之前调用
+     */
+    public void enableJit() {
+        this.jit = new Jit(code);
+        this.runtime = new JitRuntime(this, builtins);
+    }
+
+    /**
+     * 已经编译成 JVM 字节码的函数个数
+     */
+    public int getCompiledCount() {
+        return jit == null ? 0 : jit.getCompiledCount();
+    }
+
+    @Override
+    public void run() {
+        int sp = code.globalCount;
+        execute(0, sp, sp, 0);
+    }
+
+    /**
+     * 从头解释执行函数 fn，bp 处已经放好了返回值和参数，sp 是参数之后的栈顶
+     * 调用栈从 baseDepth 开始使用，这个函数返回时结束，返回它的返回值，没有返回值时为 0
+     */
+    private long execute(int fn, int bp, int sp, int baseDepth) {
+        final int[] c = fused.code;
+        final long[] consts = fused.consts;
+        final long[] s = stack;
+
+        int pc = fused.funcStart[fn];
+        int lp = sp;
+        Arrays.fill(s, sp, sp + code.locSlots[fn], 0L);
+        sp += code.locSlots[fn];
+        int depth = baseDepth;
+        long steps = 0;
+        try {
+            while (true) {
+                int op = c[pc];
+                int x = c[pc + 1];
+                pc += 2;
+                steps++;
+                switch (op) {
+                    case Opcodes.NOP:
+                        break;
+                    case Opcodes.PUSH:
+                        s[sp++] = x;
+                        break;
+                    case FusedCode.PUSH_LONG:
+                        s[sp++] = consts[x];
+                        break;
+                    case FusedCode.LOAD_LOCAL:
+                        s[sp++] = s[lp + x];
+                        break;
+                    case FusedCode.LOAD_ARG:
+                        s[sp++] = s[bp + x];
+                        break;
+                    case FusedCode.LOAD_GLOBAL:
+                        s[sp++] = s[x];
+                        break;
+                    case FusedCode.STORE_LOCAL:
+                        s[lp + x] = s[--sp];
+                        break;
+                    case FusedCode.STORE_ARG:
+                        s[bp + x] = s[--sp];
+                        break;
+                    case FusedCode.STORE_GLOBAL:
+                        s[x] = s[--sp];
+                        break;
+                    case FusedCode.ADD_CONST:
+                        s[sp - 1] += x;
+                        break;
+                    case FusedCode.MUL_CONST:
+                        s[sp - 1] *= x;
+                        break;
+                    case FusedCode.JLT:
+                        sp -= 2;
+                        if (s[sp] < s[sp + 1]) {
+                            pc = x < pc && jit != null ? backEdge(fn, x, bp, lp, sp, depth) : x;
+                        }
+                        break;
+                    case FusedCode.JGE:
+                        sp -= 2;
+                        if (s[sp] >= s[sp + 1]) {
+                            pc = x < pc && jit != null ? backEdge(fn, x, bp, lp, sp, depth) : x;
+                        }
+                        break;
+                    case FusedCode.JGT:
+                        sp -= 2;
+                        if (s[sp] > s[sp + 1]) {
+                            pc = x < pc && jit != null ? backEdge(fn, x, bp, lp, sp, depth) : x;
+                        }
+                        break;
+                    case FusedCode.JLE:
+                        sp -= 2;
+                        if (s[sp] <= s[sp + 1]) {
+                            pc = x < pc && jit != null ? backEdge(fn, x, bp, lp, sp, depth) : x;
+                        }
+                        break;
+                    case FusedCode.JEQ:
+                        sp -= 2;
+                        if (s[sp] == s[sp + 1]) {
+                            pc = x < pc && jit != null ? backEdge(fn, x, bp, lp, sp, depth) : x;
+                        }
+                        break;
+                    case FusedCode.JNE:
+                        sp -= 2;
+                        if (s[sp] != s[sp + 1]) {
+                            pc = x < pc && jit != null ? backEdge(fn, x, bp, lp, sp, depth) : x;
+                        }
+                        break;
+                    case Opcodes.POP:
+                        sp--;
+                        break;
+                    case Opcodes.POPN:
+                        sp -= x;
+                        break;
+                    case Opcodes.DUP:
+                        s[sp] = s[sp - 1];
+                        sp++;
+                        break;
+                    case Opcodes.LOCA:
+                        s[sp++] = lp + x;
+                        break;
+                    case Opcodes.ARGA:
+                        s[sp++] = bp + x;
+                        break;
+                    case Opcodes.GLOBA:
+                        s[sp++] = x;
+                        break;
+                    case Opcodes.LOAD_64:
+                        s[sp - 1] = s[(int) s[sp - 1]];
+                        break;
+                    case Opcodes.STORE_64:
+                        s[(int) s[sp - 2]] = s[sp - 1];
+                        sp -= 2;
+                        break;
+                    case Opcodes.STACKALLOC: {
+                        Arrays.fill(s, sp, sp + x, 0L);
+                        sp += x;
+                        break;
+                    }
+                    case Opcodes.ADD_I:
+                        sp--;
+                        s[sp - 1] += s[sp];
+                        break;
+                    case Opcodes.SUB_I:
+                        sp--;
+                        s[sp - 1] -= s[sp];
+                        break;
+                    case Opcodes.MUL_I:
+                        sp--;
+                        s[sp - 1] *= s[sp];
+                        break;
+                    case Opcodes.DIV_I:
+                        sp--;
+                        s[sp - 1] /= s[sp];
+                        break;
+                    case Opcodes.DIV_U:
+                        sp--;
+                        s[sp - 1] = Long.divideUnsigned(s[sp - 1], s[sp]);
+                        break;
+                    case Opcodes.ADD_F:
+                        sp--;
+                        s[sp - 1] = f(d(s[sp - 1]) + d(s[sp]));
+                        break;
+                    case Opcodes.SUB_F:
+                        sp--;
+                        s[sp - 1] = f(d(s[sp - 1]) - d(s[sp]));
+                        break;
+                    case Opcodes.MUL_F:
+                        sp--;
+                        s[sp - 1] = f(d(s[sp - 1]) * d(s[sp]));
+                        break;
+                    case Opcodes.DIV_F:
+                        sp--;
+                        s[sp - 1] = f(d(s[sp - 1]) / d(s[sp]));
+                        break;
+                    case Opcodes.SHL:
+                        sp--;
+                        s[sp - 1] <<= s[sp];
+                        break;
+                    case Opcodes.SHR:
+                        sp--;
+                        s[sp - 1] >>= s[sp];
+                        break;
+                    case Opcodes.SHRL:
+                        sp--;
+                        s[sp - 1] >>>= s[sp];
+                        break;
+                    case Opcodes.AND:
+                        sp--;
+                        s[sp - 1] &= s[sp];
+                        break;
+                    case Opcodes.OR:
+                        sp--;
+                        s[sp - 1] |= s[sp];
+                        break;
+                    case Opcodes.XOR:
+                        sp--;
+                        s[sp - 1] ^= s[sp];
+                        break;
+                    case Opcodes.NOT:
+                        s[sp - 1] = s[sp - 1] == 0 ? 1 : 0;
+                        break;
+                    case Opcodes.CMP_I:
+                        sp--;
+                        s[sp - 1] = Long.compare(s[sp - 1], s[sp]);
+                        break;
+                    case Opcodes.CMP_U:
+                        sp--;
+                        s[sp - 1] = Long.compareUnsigned(s[sp - 1], s[sp]);
+                        break;
+                    case Opcodes.CMP_F: {
+                        sp--;
+                        double l = d(s[sp - 1]);
+                        double r = d(s[sp]);
+                        s[sp - 1] = l < r ? -1 : l > r ? 1 : 0;
+                        break;
+                    }
+                    case Opcodes.NEG_I:
+                        s[sp - 1] = -s[sp - 1];
+                        break;
+                    case Opcodes.NEG_F:
+                        s[sp - 1] = f(-d(s[sp - 1]));
+                        break;
+                    case Opcodes.ITOF:
+                        s[sp - 1] = f((double) s[sp - 1]);
+                        break;
+                    case Opcodes.FTOI:
+                        s[sp - 1] = (long) d(s[sp - 1]);
+                        break;
+                    case Opcodes.SET_LT:
+                        s[sp - 1] = s[sp - 1] < 0 ? 1 : 0;
+                        break;
+                    case Opcodes.SET_GT:
+                        s[sp - 1] = s[sp - 1] > 0 ? 1 : 0;
+                        break;
+                    case Opcodes.BR:
+                        pc = x < pc && jit != null ? backEdge(fn, x, bp, lp, sp, depth) : x;
+                        break;
+                    case Opcodes.BR_FALSE:
+                        if (s[--sp] == 0) {
+                            pc = x < pc && jit != null ? backEdge(fn, x, bp, lp, sp, depth) : x;
+                        }
+                        break;
+                    case Opcodes.BR_TRUE:
+                        if (s[--sp] != 0) {
+                            pc = x < pc && jit != null ? backEdge(fn, x, bp, lp, sp, depth) : x;
+                        }
+                        break;
+                    case Opcodes.CALL: {
+                        int callee = x;
+                        if (jit != null && nesting < MAX_NESTING && jit.enter(callee)) {
+                            int calleeBp = sp - code.paramSlots[callee] - code.retSlots[callee];
+                            long result = callCompiled(callee, calleeBp, sp, depth, null, -1);
+                            sp = calleeBp + code.retSlots[callee];
+                            if (code.retSlots[callee] > 0) {
+                                s[calleeBp] = result;
+                            }
+                            break;
+                        }
+                        savedPc[depth] = pc;
+                        savedBp[depth] = bp;
+                        savedLp[depth] = lp;
+                        savedFn[depth] = fn;
+                        depth++;
+                        fn = callee;
+                        bp = sp - code.paramSlots[callee] - code.retSlots[callee];
+                        lp = sp;
+                        int locals = code.locSlots[callee];
+                        Arrays.fill(s, sp, sp + locals, 0L);
+                        sp += locals;
+                        pc = fused.funcStart[callee];
+                        break;
+                    }
+                    case Opcodes.RET:
+                        // 参数和局部变量出栈，只留下返回值
+                        sp = bp + code.retSlots[fn];
+                        if (depth == baseDepth) {
+                            return code.retSlots[fn] > 0 ? s[bp] : 0;
+                        }
+                        depth--;
+                        pc = savedPc[depth];
+                        bp = savedBp[depth];
+                        lp = savedLp[depth];
+                        fn = savedFn[depth];
+                        break;
+                    case Opcodes.CALLNAME:
+                        sp = builtins.call(x, s, sp);
+                        break;
+                    case Opcodes.SCAN_I:
+                        s[sp++] = builtins.readInt();
+                        break;
+                    case Opcodes.SCAN_C:
+                        s[sp++] = builtins.readChar();
+                        break;
+                    case Opcodes.SCAN_F:
+                        s[sp++] = f(builtins.readDouble());
+                        break;
+                    case Opcodes.PRINT_I:
+                        out.print(s[--sp]);
+                        break;
+                    case Opcodes.PRINT_C:
+                        out.print((char) s[--sp]);
+                        break;
+                    case Opcodes.PRINT_F:
+                        out.print(d(s[--sp]));
+                        break;
+                    case Opcodes.PRINT_S:
+                        out.print(builtins.stringAt(s[--sp]));
+                        break;
+                    case Opcodes.PRINTLN:
+                        out.print('\n');
+                        break;
+                    case Opcodes.PANIC:
+                        throw new VmError("panic at " + describe(pc - 2));
+                    default:
+                        throw new VmError("unsupported instruction 0x" + Integer.toHexString(op) + " at " + describe(pc - 2));
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new VmError("stack overflow or invalid address at " + describe(pc - 2), e);
+        } catch (ArithmeticException e) {
+            throw new VmError("division by zero at " + describe(pc - 2), e);
+        } finally {
+            this.steps += steps;
+            out.flush();
+        }
+    }
+
+    /**
+     * 解释执行时向后跳转到 target，如果这个函数已经编译并且 target 是 OSR 入口，
+     * 就带着当前的参数和局部变量进入编译后的代码，执行完后转到函数末尾的 RET，否则返回 target
+     */
+    private int backEdge(int fn, int target, int bp, int lp, int sp, int depth) {
+        int header = fused.origin[target / 2] - code.funcStart[fn];
+        if (nesting >= MAX_NESTING || !jit.backEdge(fn, header)) {
+            return target;
+        }
+        long[] locals = Arrays.copyOfRange(stack, lp, lp + code.locSlots[fn]);
+        long result = callCompiled(fn, bp, sp, depth, locals, header);
+        if (code.retSlots[fn] > 0) {
+            stack[bp] = result;
+        }
+        return fused.retPc(fn);
+    }
+
+    private long callCompiled(int fn, int bp, int sp, int depth, long[] locals, int entry) {
+        long[] args = Arrays.copyOfRange(stack, bp, bp + code.retSlots[fn] + code.paramSlots[fn]);
+        int savedTop = top;
+        int savedDepth = callDepth;
+        top = sp;
+        callDepth = depth + 1;
+        nesting++;
+        try {
+            return jit.function(fn).run(runtime, stack, args, locals, entry);
+        } catch (ArithmeticException e) {
+            throw new VmError("division by zero at " + describeCompiled(e, fn), e);
+        } catch (StackOverflowError e) {
+            throw new VmError("stack overflow at " + describeCompiled(e, fn), e);
+        } finally {
+            top = savedTop;
+            callDepth = savedDepth;
+            nesting--;
+        }
+    }
+
+    /**
+     * 编译后的代码调用函数 fn：已经编译并且嵌套不深的直接执行，否则在 top 之上解释执行
+     */
+    long callFromCompiled(int fn, long[] args) {
+        if (callDepth >= savedPc.length) {
+            throw new VmError("stack overflow at function " + fn);
+        }
+        if (nesting < MAX_NESTING && jit.enter(fn)) {
+            callDepth++;
+            nesting++;
+            try {
+                return jit.function(fn).run(runtime, stack, args, null, -1);
+            } finally {
+                callDepth--;
+                nesting--;
+            }
+        }
+        int bp = top;
+        System.arraycopy(args, 0, stack, bp, args.length);
+        return execute(fn, bp, bp + args.length, callDepth);
+    }
+
+    /**
+     * 编译后的代码里出的错：取调用栈里最内层的编译后的函数，行号减一就是指令在函数内的偏移，
+     * 找不到时只报进入编译后的代码的函数 fn
+     */
+    private static String describeCompiled(Throwable e, int fn) {
+        for (var frame : e.getStackTrace()) {
+            String name = frame.getClassName();
+            if (name.startsWith("C0Function$") && frame.getLineNumber() > 0) {
+                return "function " + name.substring("C0Function$".length()) + " +" + (frame.getLineNumber() - 1);
+            }
+        }
+        return "function " + fn;
+    }
+
+    private String describe(int pc) {
+        int origin = fused.origin[Math.max(0, Math.min(pc / 2, fused.origin.length - 1))];
+        int fn = code.functionAt(origin);
+        return "function " + fn + " +" + (origin - code.funcStart[fn]);
+    }
+}
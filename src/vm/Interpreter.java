@@ -0,0 +1,300 @@
+package vm;
+
+import error.VmError;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import static vm.Builtins.d;
+import static vm.Builtins.f;
+
+/**
+ * 栈式虚拟机的解释器，直接执行 Code 中的平坦指令数组
+ * 内存只有一个 long[]：最前面是全局变量，后面是运算栈和各个函数的栈帧，
+ * loca/arga/globa 压入的地址就是这个数组的下标，load_64/store_64 按下标读写
+ * 栈帧：参数基址 bp 处依次是返回值和参数，局部变量从 lp 开始，返回地址等放在单独的调用栈里
+ * 浮点数以 Double.doubleToRawLongBits 的形式存放
+ */
+public class Interpreter implements Engine {
+    public static final int DEFAULT_STACK_SLOTS = 1 << 20;
+    public static final int DEFAULT_MAX_DEPTH = 1 << 16;
+
+    private final Code code;
+    private final Builtins builtins;
+    private final PrintStream out;
+
+    private final long[] stack;
+
+    // 调用栈：调用者的 pc、bp、lp 和函数编号
+    private final int[] savedPc;
+    private final int[] savedBp;
+    private final int[] savedLp;
+    private final int[] savedFn;
+
+    /** 执行过的指令条数 */
+    private long steps = 0;
+
+    public Interpreter(Code code, InputStream in, PrintStream out) {
+        this(code, in, out, DEFAULT_STACK_SLOTS, DEFAULT_MAX_DEPTH);
+    }
+
+    public Interpreter(Code code, InputStream in, PrintStream out, int stackSlots, int maxDepth) {
+        this.code = code;
+        this.builtins = new Builtins(code, in, out);
+        this.out = out;
+        this.stack = new long[code.globalCount + stackSlots];
+        this.savedPc = new int[maxDepth];
+        this.savedBp = new int[maxDepth];
+        this.savedLp = new int[maxDepth];
+        this.savedFn = new int[maxDepth];
+    }
+
+    @Override
+    public long getSteps() {
+        return steps;
+    }
+
+    @Override
+    public void run() {
+        final int[] ops = code.ops;
+        final long[] args = code.args;
+        final long[] s = stack;
+
+        int fn = 0;
+        int pc = code.funcStart[fn];
+        int sp = code.globalCount;
+        int bp = sp;
+        int lp = sp;
+        sp += code.locSlots[fn];
+        int depth = 0;
+        long steps = 0;
+        try {
+            while (true) {
+                int op = ops[pc];
+                long x = args[pc];
+                pc++;
+                steps++;
+                switch (op) {
+                    case Opcodes.NOP:
+                        break;
+                    case Opcodes.PUSH:
+                        s[sp++] = x;
+                        break;
+                    case Opcodes.POP:
+                        sp--;
+                        break;
+                    case Opcodes.POPN:
+                        sp -= (int) x;
+                        break;
+                    case Opcodes.DUP:
+                        s[sp] = s[sp - 1];
+                        sp++;
+                        break;
+                    case Opcodes.LOCA:
+                        s[sp++] = lp + x;
+                        break;
+                    case Opcodes.ARGA:
+                        s[sp++] = bp + x;
+                        break;
+                    case Opcodes.GLOBA:
+                        s[sp++] = x;
+                        break;
+                    case Opcodes.LOAD_64:
+                        s[sp - 1] = s[(int) s[sp - 1]];
+                        break;
+                    case Opcodes.STORE_64:
+                        s[(int) s[sp - 2]] = s[sp - 1];
+                        sp -= 2;
+                        break;
+                    case Opcodes.STACKALLOC: {
+                        int n = (int) x;
+                        Arrays.fill(s, sp, sp + n, 0L);
+                        sp += n;
+                        break;
+                    }
+                    case Opcodes.ADD_I:
+                        sp--;
+                        s[sp - 1] += s[sp];
+                        break;
+                    case Opcodes.SUB_I:
+                        sp--;
+                        s[sp - 1] -= s[sp];
+                        break;
+                    case Opcodes.MUL_I:
+                        sp--;
+                        s[sp - 1] *= s[sp];
+                        break;
+                    case Opcodes.DIV_I:
+                        sp--;
+                        s[sp - 1] /= s[sp];
+                        break;
+                    case Opcodes.DIV_U:
+                        sp--;
+                        s[sp - 1] = Long.divideUnsigned(s[sp - 1], s[sp]);
+                        break;
+                    case Opcodes.ADD_F:
+                        sp--;
+                        s[sp - 1] = f(d(s[sp - 1]) + d(s[sp]));
+                        break;
+                    case Opcodes.SUB_F:
+                        sp--;
+                        s[sp - 1] = f(d(s[sp - 1]) - d(s[sp]));
+                        break;
+                    case Opcodes.MUL_F:
+                        sp--;
+                        s[sp - 1] = f(d(s[sp - 1]) * d(s[sp]));
+                        break;
+                    case Opcodes.DIV_F:
+                        sp--;
+                        s[sp - 1] = f(d(s[sp - 1]) / d(s[sp]));
+                        break;
+                    case Opcodes.SHL:
+                        sp--;
+                        s[sp - 1] <<= s[sp];
+                        break;
+                    case Opcodes.SHR:
+                        sp--;
+                        s[sp - 1] >>= s[sp];
+                        break;
+                    case Opcodes.SHRL:
+                        sp--;
+                        s[sp - 1] >>>= s[sp];
+                        break;
+                    case Opcodes.AND:
+                        sp--;
+                        s[sp - 1] &= s[sp];
+                        break;
+                    case Opcodes.OR:
+                        sp--;
+                        s[sp - 1] |= s[sp];
+                        break;
+                    case Opcodes.XOR:
+                        sp--;
+                        s[sp - 1] ^= s[sp];
+                        break;
+                    case Opcodes.NOT:
+                        s[sp - 1] = s[sp - 1] == 0 ? 1 : 0;
+                        break;
+                    case Opcodes.CMP_I:
+                        sp--;
+                        s[sp - 1] = Long.compare(s[sp - 1], s[sp]);
+                        break;
+                    case Opcodes.CMP_U:
+                        sp--;
+                        s[sp - 1] = Long.compareUnsigned(s[sp - 1], s[sp]);
+                        break;
+                    case Opcodes.CMP_F: {
+                        sp--;
+                        double l = d(s[sp - 1]);
+                        double r = d(s[sp]);
+                        s[sp - 1] = l < r ? -1 : l > r ? 1 : 0;
+                        break;
+                    }
+                    case Opcodes.NEG_I:
+                        s[sp - 1] = -s[sp - 1];
+                        break;
+                    case Opcodes.NEG_F:
+                        s[sp - 1] = f(-d(s[sp - 1]));
+                        break;
+                    case Opcodes.ITOF:
+                        s[sp - 1] = f((double) s[sp - 1]);
+                        break;
+                    case Opcodes.FTOI:
+                        s[sp - 1] = (long) d(s[sp - 1]);
+                        break;
+                    case Opcodes.SET_LT:
+                        s[sp - 1] = s[sp - 1] < 0 ? 1 : 0;
+                        break;
+                    case Opcodes.SET_GT:
+                        s[sp - 1] = s[sp - 1] > 0 ? 1 : 0;
+                        break;
+                    case Opcodes.BR:
+                        pc += (int) x;
+                        break;
+                    case Opcodes.BR_FALSE:
+                        if (s[--sp] == 0) {
+                            pc += (int) x;
+                        }
+                        break;
+                    case Opcodes.BR_TRUE:
+                        if (s[--sp] != 0) {
+                            pc += (int) x;
+                        }
+                        break;
+                    case Opcodes.CALL: {
+                        int callee = (int) x;
+                        savedPc[depth] = pc;
+                        savedBp[depth] = bp;
+                        savedLp[depth] = lp;
+                        savedFn[depth] = fn;
+                        depth++;
+                        fn = callee;
+                        bp = sp - code.paramSlots[callee] - code.retSlots[callee];
+                        lp = sp;
+                        int locals = code.locSlots[callee];
+                        Arrays.fill(s, sp, sp + locals, 0L);
+                        sp += locals;
+                        pc = code.funcStart[callee];
+                        break;
+                    }
+                    case Opcodes.RET:
+                        // 参数和局部变量出栈，只留下返回值
+                        sp = bp + code.retSlots[fn];
+                        if (depth == 0) {
+                            return;
+                        }
+                        depth--;
+                        pc = savedPc[depth];
+                        bp = savedBp[depth];
+                        lp = savedLp[depth];
+                        fn = savedFn[depth];
+                        break;
+                    case Opcodes.CALLNAME:
+                        sp = builtins.call((int) x, s, sp);
+                        break;
+                    case Opcodes.SCAN_I:
+                        s[sp++] = builtins.readInt();
+                        break;
+                    case Opcodes.SCAN_C:
+                        s[sp++] = builtins.readChar();
+                        break;
+                    case Opcodes.SCAN_F:
+                        s[sp++] = f(builtins.readDouble());
+                        break;
+                    case Opcodes.PRINT_I:
+                        out.print(s[--sp]);
+                        break;
+                    case Opcodes.PRINT_C:
+                        out.print((char) s[--sp]);
+                        break;
+                    case Opcodes.PRINT_F:
+                        out.print(d(s[--sp]));
+                        break;
+                    case Opcodes.PRINT_S:
+                        out.print(builtins.stringAt(s[--sp]));
+                        break;
+                    case Opcodes.PRINTLN:
+                        out.print('\n');
+                        break;
+                    case Opcodes.PANIC:
+                        throw new VmError("panic at " + describe(pc - 1));
+                    default:
+                        throw new VmError("unsupported instruction 0x" + Integer.toHexString(op) + " at " + describe(pc - 1));
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new VmError("stack overflow or invalid address at " + describe(pc - 1), e);
+        } catch (ArithmeticException e) {
+            throw new VmError("division by zero at " + describe(pc - 1), e);
+        } finally {
+            this.steps += steps;
+            out.flush();
+        }
+    }
+
+    private String describe(int pc) {
+        int fn = code.functionAt(pc);
+        return "function " + fn + " +" + (pc - code.funcStart[fn]);
+    }
+}
@@ -0,0 +1,71 @@
+package vm;
+
+/**
+ * JIT 层：统计每个函数的调用次数和向后跳转次数，超过阈值就把函数编译成 JVM 字节码
+ * 编译失败的函数以后不再尝试，一直解释执行
+ */
+final class Jit {
+    static final int CALL_THRESHOLD = 1000;
+    static final int BACK_EDGE_THRESHOLD = 10000;
+
+    private final Code code;
+    private final JitCompiler.Loader loader = new JitCompiler.Loader();
+    private final JitCompiler.Result[] compiled;
+    private final boolean[] failed;
+    private final int[] calls;
+    private final int[] backEdges;
+    private int compiledCount = 0;
+
+    Jit(Code code) {
+        this.code = code;
+        int count = code.functionCount();
+        this.compiled = new JitCompiler.Result[count];
+        this.failed = new boolean[count];
+        this.calls = new int[count];
+        this.backEdges = new int[count];
+    }
+
+    /**
+     * 调用函数 fn 之前调用，返回 true 表示应当执行编译后的代码
+     */
+    boolean enter(int fn) {
+        if (compiled[fn] != null) {
+            return true;
+        }
+        if (failed[fn] || ++calls[fn] < CALL_THRESHOLD) {
+            return false;
+        }
+        return compile(fn);
+    }
+
+    /**
+     * 解释执行时跳回到循环头 header（函数内的位置）时调用，返回 true 表示应当从这里进入编译后的代码
+     */
+    boolean backEdge(int fn, int header) {
+        if (compiled[fn] == null) {
+            if (failed[fn] || ++backEdges[fn] < BACK_EDGE_THRESHOLD || !compile(fn)) {
+                return false;
+            }
+        }
+        return compiled[fn].entries[header];
+    }
+
+    JitFunction function(int fn) {
+        return compiled[fn].function;
+    }
+
+    int getCompiledCount() {
+        return compiledCount;
+    }
+
+    private boolean compile(int fn) {
+        var result = JitCompiler.compile(code, fn, loader);
+        if (result == null) {
+            failed[fn] = true;
+            return false;
+        }
+        compiled[fn] = result;
+        compiledCount++;
+        return true;
+    }
+}
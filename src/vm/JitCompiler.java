@@ -0,0 +1,789 @@
+package vm;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * 把一个函数的栈式指令翻译成 JVM 字节码，交给 HotSpot 编译
+ * C0 的运算栈直接对应 JVM 的运算栈，返回值、参数和局部变量对应 JVM 的 long 局部变量，全局变量读写 mem 数组
+ * 翻译前先做一遍抽象解释，算出每条指令前栈上每一项是普通值还是 loca/arga/globa 压入的地址：
+ * 地址不放到 JVM 栈上，由消耗它的 load_64/store_64 直接访问对应的变量
+ * 地址被当成普通值使用、各路径汇合时栈的形状不一致、或者遇到不支持的指令时放弃编译
+ */
+final class JitCompiler {
+    /** 抽象栈中的普通值，地址编码为 kind << 28 | index */
+    private static final int VALUE = -1;
+    private static final int LOCAL = 1;
+    private static final int ARG = 2;
+    private static final int GLOBAL = 3;
+
+    private static final String RUNTIME = "vm/JitRuntime";
+    private static final String FUNCTION = "vm/JitFunction";
+    private static final String RUN_DESCRIPTOR = "(Lvm/JitRuntime;[J[J[JI)J";
+
+    // JVM 局部变量：0 this，1 runtime，2 mem，3 args，4 locals，5 entry，之后是 long
+    private static final int RUNTIME_SLOT = 1;
+    private static final int MEM_SLOT = 2;
+    private static final int ARGS_SLOT = 3;
+    private static final int LOCALS_SLOT = 4;
+    private static final int ENTRY_SLOT = 5;
+    private static final int FIRST_LONG_SLOT = 6;
+
+    /** 编译结果：生成的函数和允许 OSR 进入的位置 */
+    static final class Result {
+        final JitFunction function;
+        final boolean[] entries;
+
+        Result(JitFunction function, boolean[] entries) {
+            this.function = function;
+            this.entries = entries;
+        }
+    }
+
+    /** 不能编译，不需要栈信息 */
+    private static final class Unsupported extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /** 定义生成的类 */
+    static final class Loader extends ClassLoader {
+        Loader() {
+            super(JitFunction.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private final Code code;
+    private final int fn;
+    private final int start;
+    private final int length;
+    private final int retSlots;
+    private final int argSlots;
+    private final int locSlots;
+
+    /** 每条指令执行前的抽象栈，null 表示不可达 */
+    private int[][] states;
+    private int maxDepth = 0;
+    private int maxCallArgs = 0;
+
+    private final ClassWriter cw = new ClassWriter();
+    private byte[] out = new byte[256];
+    private int size = 0;
+    /** 每条指令对应的字节码位置 */
+    private int[] labels;
+    /** 待回填的跳转：跳转指令的位置和目标指令 */
+    private int[] fixAt = new int[16];
+    private int[] fixTarget = new int[16];
+    private int fixCount = 0;
+
+    private JitCompiler(Code code, int fn) {
+        this.code = code;
+        this.fn = fn;
+        this.start = code.funcStart[fn];
+        int end = fn + 1 < code.functionCount() ? code.funcStart[fn + 1] : code.size();
+        this.length = end - start;
+        this.retSlots = code.retSlots[fn];
+        this.argSlots = code.retSlots[fn] + code.paramSlots[fn];
+        this.locSlots = code.locSlots[fn];
+    }
+
+    /**
+     * 编译函数 fn，不能编译时返回 null
+     */
+    static Result compile(Code code, int fn, Loader loader) {
+        var compiler = new JitCompiler(code, fn);
+        try {
+            compiler.analyse();
+            boolean[] entries = compiler.osrEntries();
+            byte[] bytes = compiler.generate(entries);
+            String name = "C0Function$" + fn;
+            var function = (JitFunction) loader.define(name, bytes).getDeclaredConstructor().newInstance();
+            return new Result(function, entries);
+        } catch (Unsupported e) {
+            return null;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // 生成的类没能通过校验，当作不能编译，继续解释执行
+            return null;
+        }
+    }
+
+    // 抽象解释
+
+    private void analyse() throws Unsupported {
+        if (retSlots > 1) {
+            throw new Unsupported("multiple return slots");
+        }
+        states = new int[length][];
+        var work = new ArrayDeque<Integer>();
+        states[0] = new int[0];
+        work.push(0);
+        while (!work.isEmpty()) {
+            int pc = work.pop();
+            int[] stack = states[pc];
+            int op = code.ops[start + pc];
+            long x = code.args[start + pc];
+            int[] after = transfer(op, x, stack);
+            maxDepth = Math.max(maxDepth, after.length);
+            switch (op) {
+                case Opcodes.RET:
+                    break;
+                case Opcodes.BR:
+                    merge(target(pc, x), after, work);
+                    break;
+                case Opcodes.BR_TRUE:
+                case Opcodes.BR_FALSE:
+                    merge(target(pc, x), after, work);
+                    merge(pc + 1, after, work);
+                    break;
+                default:
+                    merge(pc + 1, after, work);
+                    break;
+            }
+        }
+    }
+
+    private int target(int pc, long x) throws Unsupported {
+        long target = pc + 1 + x;
+        if (target < 0 || target >= length) {
+            throw new Unsupported("branch out of function");
+        }
+        return (int) target;
+    }
+
+    private void merge(int pc, int[] stack, ArrayDeque<Integer> work) throws Unsupported {
+        if (pc >= length) {
+            throw new Unsupported("falls off the end");
+        }
+        if (states[pc] == null) {
+            states[pc] = stack;
+            work.push(pc);
+        } else if (!Arrays.equals(states[pc], stack)) {
+            throw new Unsupported("inconsistent stack at " + pc);
+        }
+    }
+
+    private int[] transfer(int op, long x, int[] stack) throws Unsupported {
+        int depth = stack.length;
+        switch (op) {
+            case Opcodes.NOP:
+            case Opcodes.BR:
+            case Opcodes.RET:
+            case Opcodes.PRINTLN:
+                return stack;
+            case Opcodes.PUSH:
+            case Opcodes.SCAN_I:
+            case Opcodes.SCAN_C:
+            case Opcodes.SCAN_F:
+                return push(stack, VALUE);
+            case Opcodes.POP:
+                return pop(stack, 1);
+            case Opcodes.POPN:
+                return pop(stack, (int) x);
+            case Opcodes.DUP:
+                requireValues(stack, 1);
+                return push(stack, VALUE);
+            case Opcodes.LOCA:
+                return push(stack, address(LOCAL, x, locSlots));
+            case Opcodes.ARGA:
+                return push(stack, address(ARG, x, argSlots));
+            case Opcodes.GLOBA:
+                return push(stack, address(GLOBAL, x, code.globalCount));
+            case Opcodes.LOAD_64:
+                if (depth < 1 || stack[depth - 1] == VALUE) {
+                    throw new Unsupported("load from a computed address");
+                }
+                return push(pop(stack, 1), VALUE);
+            case Opcodes.STORE_64:
+                if (depth < 2 || stack[depth - 1] != VALUE || stack[depth - 2] == VALUE) {
+                    throw new Unsupported("store to a computed address");
+                }
+                return pop(stack, 2);
+            case Opcodes.STACKALLOC: {
+                int[] result = stack;
+                for (int i = 0; i < x; i++) {
+                    result = push(result, VALUE);
+                }
+                return result;
+            }
+            case Opcodes.ADD_I:
+            case Opcodes.SUB_I:
+            case Opcodes.MUL_I:
+            case Opcodes.DIV_I:
+            case Opcodes.DIV_U:
+            case Opcodes.ADD_F:
+            case Opcodes.SUB_F:
+            case Opcodes.MUL_F:
+            case Opcodes.DIV_F:
+            case Opcodes.SHL:
+            case Opcodes.SHR:
+            case Opcodes.SHRL:
+            case Opcodes.AND:
+            case Opcodes.OR:
+            case Opcodes.XOR:
+            case Opcodes.CMP_I:
+            case Opcodes.CMP_U:
+            case Opcodes.CMP_F:
+                requireValues(stack, 2);
+                return pop(stack, 1);
+            case Opcodes.NOT:
+            case Opcodes.NEG_I:
+            case Opcodes.NEG_F:
+            case Opcodes.ITOF:
+            case Opcodes.FTOI:
+            case Opcodes.SET_LT:
+            case Opcodes.SET_GT:
+                requireValues(stack, 1);
+                return stack;
+            case Opcodes.BR_TRUE:
+            case Opcodes.BR_FALSE:
+            case Opcodes.PRINT_I:
+            case Opcodes.PRINT_C:
+            case Opcodes.PRINT_F:
+            case Opcodes.PRINT_S:
+                requireValues(stack, 1);
+                return pop(stack, 1);
+            case Opcodes.CALL: {
+                if (x < 0 || x >= code.functionCount()) {
+                    throw new Unsupported("bad call target");
+                }
+                int callee = (int) x;
+                int ret = code.retSlots[callee];
+                int slots = ret + code.paramSlots[callee];
+                if (ret > 1) {
+                    throw new Unsupported("multiple return slots");
+                }
+                requireValues(stack, slots);
+                maxCallArgs = Math.max(maxCallArgs, slots);
+                int[] result = pop(stack, slots);
+                return ret == 1 ? push(result, VALUE) : result;
+            }
+            case Opcodes.CALLNAME:
+                switch ((int) x) {
+                    case Opcodes.GETINT:
+                    case Opcodes.GETCHAR:
+                    case Opcodes.GETDOUBLE:
+                        // 返回值的位置已经分配好，调用后还是一个值
+                        requireValues(stack, 1);
+                        return stack;
+                    case Opcodes.PUTINT:
+                    case Opcodes.PUTCHAR:
+                    case Opcodes.PUTDOUBLE:
+                    case Opcodes.PUTSTR:
+                        requireValues(stack, 1);
+                        return pop(stack, 1);
+                    case Opcodes.PUTLN:
+                        return stack;
+                    default:
+                        throw new Unsupported("unknown library function");
+                }
+            default:
+                throw new Unsupported("unsupported instruction " + op);
+        }
+    }
+
+    private static int address(int kind, long index, int limit) throws Unsupported {
+        if (index < 0 || index >= limit) {
+            throw new Unsupported("address out of range");
+        }
+        return kind << 28 | (int) index;
+    }
+
+    private static void requireValues(int[] stack, int count) throws Unsupported {
+        if (stack.length < count) {
+            throw new Unsupported("stack underflow");
+        }
+        for (int i = stack.length - count; i < stack.length; i++) {
+            if (stack[i] != VALUE) {
+                throw new Unsupported("address used as a value");
+            }
+        }
+    }
+
+    private static int[] push(int[] stack, int item) {
+        int[] result = Arrays.copyOf(stack, stack.length + 1);
+        result[stack.length] = item;
+        return result;
+    }
+
+    private static int[] pop(int[] stack, int count) throws Unsupported {
+        if (stack.length < count) {
+            throw new Unsupported("stack underflow");
+        }
+        return Arrays.copyOf(stack, stack.length - count);
+    }
+
+    /**
+     * OSR 的入口：向后跳转的目标，并且那里的栈是空的
+     */
+    private boolean[] osrEntries() {
+        boolean[] entries = new boolean[length];
+        for (int pc = 0; pc < length; pc++) {
+            int op = code.ops[start + pc];
+            if (states[pc] != null && (op == Opcodes.BR || op == Opcodes.BR_TRUE || op == Opcodes.BR_FALSE)) {
+                int target = pc + 1 + (int) code.args[start + pc];
+                if (target <= pc && states[target].length == 0) {
+                    entries[target] = true;
+                }
+            }
+        }
+        return entries;
+    }
+
+    // 生成字节码
+
+    private int argSlot(int index) {
+        return FIRST_LONG_SLOT + 2 * index;
+    }
+
+    private int localSlot(int index) {
+        return FIRST_LONG_SLOT + 2 * (argSlots + index);
+    }
+
+    /** 临时变量，调用时暂存参数，写全局变量时暂存值 */
+    private int tempSlot(int index) {
+        return FIRST_LONG_SLOT + 2 * (argSlots + locSlots + index);
+    }
+
+    private byte[] generate(boolean[] entries) throws Unsupported {
+        String name = "C0Function$" + fn;
+        labels = new int[length];
+
+        // 构造函数
+        int objectInit = cw.methodRef("java/lang/Object", "<init>", "()V");
+        emit(0x2a); // aload_0
+        emit(0xb7); // invokespecial
+        emitShort(objectInit);
+        emit(0xb1); // return
+        cw.method(ClassWriter.ACC_PUBLIC, "<init>", "()V", 1, 1, Arrays.copyOf(out, size));
+        size = 0;
+
+        prologue(entries);
+        // 行号记成 C0 指令在函数内的偏移加一，出错时按调用栈找回是哪条指令
+        int[] lines = new int[2 * length];
+        int lineCount = 0;
+        for (int pc = 0; pc < length; pc++) {
+            labels[pc] = size;
+            if (states[pc] != null) {
+                lines[2 * lineCount] = size;
+                lines[2 * lineCount + 1] = pc + 1;
+                lineCount++;
+                instruction(pc, code.ops[start + pc], code.args[start + pc], states[pc]);
+            }
+        }
+        for (int i = 0; i < fixCount; i++) {
+            int at = fixAt[i];
+            int offset = labels[fixTarget[i]] - at;
+            if (offset != (short) offset) {
+                throw new Unsupported("method too large");
+            }
+            out[at + 1] = (byte) (offset >> 8);
+            out[at + 2] = (byte) offset;
+        }
+        if (size > 0xffff || length >= 0xffff) {
+            throw new Unsupported("method too large");
+        }
+        int maxStack = maxDepth * 2 + 8;
+        int maxLocals = tempSlot(Math.max(maxCallArgs, 1));
+        if (maxLocals > 0xff) {
+            throw new Unsupported("too many locals");
+        }
+        cw.method(ClassWriter.ACC_PUBLIC, "run", RUN_DESCRIPTOR, maxStack, maxLocals, Arrays.copyOf(out, size),
+                lines, lineCount);
+        return cw.toByteArray(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_FINAL | ClassWriter.ACC_SUPER,
+                name, "java/lang/Object", FUNCTION);
+    }
+
+    /**
+     * 从 args 和 locals 数组装入 JVM 局部变量，再根据 entry 跳到函数开头或者某个循环头
+     */
+    private void prologue(boolean[] entries) {
+        // locals 为 null 时分配一个全 0 的数组
+        aload(LOCALS_SLOT);
+        int skip = size;
+        emit(0xc7); // ifnonnull
+        emitShort(0);
+        pushInt(locSlots);
+        emit(0xbc); // newarray
+        emit(11);   // T_LONG
+        emit(0x3a); // astore
+        emit(LOCALS_SLOT);
+        int offset = size - skip;
+        out[skip + 1] = (byte) (offset >> 8);
+        out[skip + 2] = (byte) offset;
+
+        for (int i = 0; i < argSlots; i++) {
+            aload(ARGS_SLOT);
+            pushInt(i);
+            emit(0x2f); // laload
+            lstore(argSlot(i));
+        }
+        for (int i = 0; i < locSlots; i++) {
+            aload(LOCALS_SLOT);
+            pushInt(i);
+            emit(0x2f); // laload
+            lstore(localSlot(i));
+        }
+        for (int pc = 0; pc < length; pc++) {
+            if (entries[pc]) {
+                emit(0x15); // iload
+                emit(ENTRY_SLOT);
+                pushInt(pc);
+                jump(0x9f, pc); // if_icmpeq
+            }
+        }
+    }
+
+    private void instruction(int pc, int op, long x, int[] stack) throws Unsupported {
+        int depth = stack.length;
+        switch (op) {
+            case Opcodes.NOP:
+            case Opcodes.LOCA:
+            case Opcodes.ARGA:
+            case Opcodes.GLOBA:
+                // 地址不入栈
+                break;
+            case Opcodes.PUSH:
+                pushLong(x);
+                break;
+            case Opcodes.POP:
+                popItems(stack, 1);
+                break;
+            case Opcodes.POPN:
+                popItems(stack, (int) x);
+                break;
+            case Opcodes.DUP:
+                emit(0x5c); // dup2
+                break;
+            case Opcodes.LOAD_64:
+                load(stack[depth - 1]);
+                break;
+            case Opcodes.STORE_64:
+                store(stack[depth - 2]);
+                break;
+            case Opcodes.STACKALLOC:
+                for (int i = 0; i < x; i++) {
+                    emit(0x09); // lconst_0
+                }
+                break;
+            case Opcodes.ADD_I:
+                emit(0x61); // ladd
+                break;
+            case Opcodes.SUB_I:
+                emit(0x65); // lsub
+                break;
+            case Opcodes.MUL_I:
+                emit(0x69); // lmul
+                break;
+            case Opcodes.DIV_I:
+                emit(0x6d); // ldiv
+                break;
+            case Opcodes.AND:
+                emit(0x7f); // land
+                break;
+            case Opcodes.OR:
+                emit(0x81); // lor
+                break;
+            case Opcodes.XOR:
+                emit(0x83); // lxor
+                break;
+            case Opcodes.SHL:
+                emit(0x88); // l2i
+                emit(0x79); // lshl
+                break;
+            case Opcodes.SHR:
+                emit(0x88); // l2i
+                emit(0x7b); // lshr
+                break;
+            case Opcodes.SHRL:
+                emit(0x88); // l2i
+                emit(0x7d); // lushr
+                break;
+            case Opcodes.NEG_I:
+                emit(0x75); // lneg
+                break;
+            case Opcodes.CMP_I:
+                emit(0x94); // lcmp
+                emit(0x85); // i2l
+                break;
+            case Opcodes.CMP_U:
+                helper("cmpU", "(JJ)J");
+                break;
+            case Opcodes.CMP_F:
+                helper("cmpF", "(JJ)J");
+                break;
+            case Opcodes.DIV_U:
+                helper("divU", "(JJ)J");
+                break;
+            case Opcodes.ADD_F:
+                helper("addF", "(JJ)J");
+                break;
+            case Opcodes.SUB_F:
+                helper("subF", "(JJ)J");
+                break;
+            case Opcodes.MUL_F:
+                helper("mulF", "(JJ)J");
+                break;
+            case Opcodes.DIV_F:
+                helper("divF", "(JJ)J");
+                break;
+            case Opcodes.NEG_F:
+                helper("negF", "(J)J");
+                break;
+            case Opcodes.ITOF:
+                helper("itof", "(J)J");
+                break;
+            case Opcodes.FTOI:
+                helper("ftoi", "(J)J");
+                break;
+            case Opcodes.NOT:
+                helper("not", "(J)J");
+                break;
+            case Opcodes.SET_LT:
+                helper("setLt", "(J)J");
+                break;
+            case Opcodes.SET_GT:
+                helper("setGt", "(J)J");
+                break;
+            case Opcodes.BR:
+                jump(0xa7, (int) (pc + 1 + x)); // goto
+                break;
+            case Opcodes.BR_TRUE:
+                emit(0x09); // lconst_0
+                emit(0x94); // lcmp
+                jump(0x9a, (int) (pc + 1 + x)); // ifne
+                break;
+            case Opcodes.BR_FALSE:
+                emit(0x09); // lconst_0
+                emit(0x94); // lcmp
+                jump(0x99, (int) (pc + 1 + x)); // ifeq
+                break;
+            case Opcodes.CALL:
+                call((int) x);
+                break;
+            case Opcodes.CALLNAME:
+                builtin((int) x);
+                break;
+            case Opcodes.SCAN_I:
+                callBuiltin(Opcodes.GETINT, false, true);
+                break;
+            case Opcodes.SCAN_C:
+                callBuiltin(Opcodes.GETCHAR, false, true);
+                break;
+            case Opcodes.SCAN_F:
+                callBuiltin(Opcodes.GETDOUBLE, false, true);
+                break;
+            case Opcodes.PRINT_I:
+                callBuiltin(Opcodes.PUTINT, true, false);
+                break;
+            case Opcodes.PRINT_C:
+                callBuiltin(Opcodes.PUTCHAR, true, false);
+                break;
+            case Opcodes.PRINT_F:
+                callBuiltin(Opcodes.PUTDOUBLE, true, false);
+                break;
+            case Opcodes.PRINT_S:
+                callBuiltin(Opcodes.PUTSTR, true, false);
+                break;
+            case Opcodes.PRINTLN:
+                callBuiltin(Opcodes.PUTLN, false, false);
+                break;
+            case Opcodes.RET:
+                if (retSlots > 0) {
+                    lload(argSlot(0));
+                } else {
+                    emit(0x09); // lconst_0
+                }
+                emit(0xad); // lreturn
+                break;
+            default:
+                throw new Unsupported("unsupported instruction " + op);
+        }
+    }
+
+    private void popItems(int[] stack, int count) {
+        for (int i = stack.length - 1; i >= stack.length - count; i--) {
+            if (stack[i] == VALUE) {
+                emit(0x58); // pop2
+            }
+        }
+    }
+
+    private void load(int address) {
+        int index = address & 0x0fffffff;
+        switch (address >>> 28) {
+            case LOCAL:
+                lload(localSlot(index));
+                break;
+            case ARG:
+                lload(argSlot(index));
+                break;
+            default:
+                aload(MEM_SLOT);
+                pushInt(index);
+                emit(0x2f); // laload
+                break;
+        }
+    }
+
+    private void store(int address) {
+        int index = address & 0x0fffffff;
+        switch (address >>> 28) {
+            case LOCAL:
+                lstore(localSlot(index));
+                break;
+            case ARG:
+                lstore(argSlot(index));
+                break;
+            default:
+                lstore(tempSlot(0));
+                aload(MEM_SLOT);
+                pushInt(index);
+                lload(tempSlot(0));
+                emit(0x50); // lastore
+                break;
+        }
+    }
+
+    /**
+     * 调用 C0 函数：参数暂存到临时变量，弹出返回值的占位，再把它们装进数组交给 JitRuntime.call
+     */
+    private void call(int callee) {
+        int ret = code.retSlots[callee];
+        int params = code.paramSlots[callee];
+        for (int i = params - 1; i >= 0; i--) {
+            lstore(tempSlot(i));
+        }
+        for (int i = 0; i < ret; i++) {
+            emit(0x58); // pop2
+        }
+        aload(RUNTIME_SLOT);
+        pushInt(callee);
+        pushInt(ret + params);
+        emit(0xbc); // newarray
+        emit(11);   // T_LONG
+        for (int i = 0; i < params; i++) {
+            emit(0x59); // dup
+            pushInt(ret + i);
+            lload(tempSlot(i));
+            emit(0x50); // lastore
+        }
+        emit(0xb6); // invokevirtual
+        emitShort(cw.methodRef(RUNTIME, "call", "(I[J)J"));
+        if (ret == 0) {
+            emit(0x58); // pop2
+        }
+    }
+
+    private void builtin(int id) {
+        switch (id) {
+            case Opcodes.GETINT:
+            case Opcodes.GETCHAR:
+            case Opcodes.GETDOUBLE:
+                emit(0x58); // pop2，返回值的占位
+                callBuiltin(id, false, true);
+                break;
+            case Opcodes.PUTLN:
+                callBuiltin(id, false, false);
+                break;
+            default:
+                callBuiltin(id, true, false);
+                break;
+        }
+    }
+
+    private void callBuiltin(int id, boolean hasArg, boolean hasResult) {
+        if (hasArg) {
+            lstore(tempSlot(0));
+        }
+        aload(RUNTIME_SLOT);
+        pushInt(id);
+        if (hasArg) {
+            lload(tempSlot(0));
+        } else {
+            emit(0x09); // lconst_0
+        }
+        emit(0xb6); // invokevirtual
+        emitShort(cw.methodRef(RUNTIME, "builtin", "(IJ)J"));
+        if (!hasResult) {
+            emit(0x58); // pop2
+        }
+    }
+
+    private void helper(String name, String descriptor) {
+        emit(0xb8); // invokestatic
+        emitShort(cw.methodRef(RUNTIME, name, descriptor));
+    }
+
+    private void jump(int opcode, int target) {
+        if (fixCount == fixAt.length) {
+            fixAt = Arrays.copyOf(fixAt, fixCount * 2);
+            fixTarget = Arrays.copyOf(fixTarget, fixCount * 2);
+        }
+        fixAt[fixCount] = size;
+        fixTarget[fixCount] = target;
+        fixCount++;
+        emit(opcode);
+        emitShort(0);
+    }
+
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            emit(0x03 + value); // iconst_<n>
+        } else if (value == (byte) value) {
+            emit(0x10); // bipush
+            emit(value);
+        } else if (value == (short) value) {
+            emit(0x11); // sipush
+            emitShort(value);
+        } else {
+            emit(0x13); // ldc_w
+            emitShort(cw.intConst(value));
+        }
+    }
+
+    private void pushLong(long value) {
+        if (value == 0 || value == 1) {
+            emit(0x09 + (int) value); // lconst_<n>
+        } else if (value == (int) value) {
+            pushInt((int) value);
+            emit(0x85); // i2l
+        } else {
+            emit(0x14); // ldc2_w
+            emitShort(cw.longConst(value));
+        }
+    }
+
+    private void lload(int slot) {
+        emit(0x16);
+        emit(slot);
+    }
+
+    private void lstore(int slot) {
+        emit(0x37);
+        emit(slot);
+    }
+
+    private void aload(int slot) {
+        emit(0x19);
+        emit(slot);
+    }
+
+    private void emit(int b) {
+        if (size == out.length) {
+            out = Arrays.copyOf(out, size * 2);
+        }
+        out[size++] = (byte) b;
+    }
+
+    private void emitShort(int value) {
+        emit(value >> 8);
+        emit(value);
+    }
+}
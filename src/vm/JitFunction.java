@@ -0,0 +1,19 @@
+package vm;
+
+/**
+ * JIT 生成的类实现的接口，每个类对应一个 C0 函数
+ * 生成的类由单独的类加载器定义，所以这个接口必须是 public 的
+ */
+public interface JitFunction {
+    /**
+     * 执行函数
+     *
+     * @param runtime 调用其他函数和标准库函数的入口
+     * @param mem     虚拟机的内存，全局变量在最前面
+     * @param args    返回值和参数的当前值
+     * @param locals  局部变量的当前值，正常调用时为 null，表示全部为 0
+     * @param entry   -1 表示从头执行，否则是 OSR 的入口，即循环头在函数中的位置
+     * @return 返回值，没有返回值时为 0
+     */
+    long run(JitRuntime runtime, long[] mem, long[] args, long[] locals, int entry);
+}
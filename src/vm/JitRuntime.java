@@ -0,0 +1,99 @@
+package vm;
+
+/**
+ * JIT 生成的代码调用的运行时方法
+ * 调用其他 C0 函数和标准库函数时回到执行引擎，不常见的运算也放在这里，由 HotSpot 内联
+ */
+public final class JitRuntime {
+    private final FusedInterpreter engine;
+    private final Builtins builtins;
+    /** 调用标准库函数时用的小栈，返回值的位置加一个参数 */
+    private final long[] scratch = new long[2];
+
+    JitRuntime(FusedInterpreter engine, Builtins builtins) {
+        this.engine = engine;
+        this.builtins = builtins;
+    }
+
+    /**
+     * 调用函数 fn，args 中是返回值的位置和参数
+     */
+    public long call(int fn, long[] args) {
+        return engine.callFromCompiled(fn, args);
+    }
+
+    /**
+     * 调用标准库函数；get 系列函数忽略 arg 并返回读到的值，put 系列函数输出 arg
+     */
+    public long builtin(int id, long arg) {
+        switch (id) {
+            case Opcodes.GETINT:
+            case Opcodes.GETCHAR:
+            case Opcodes.GETDOUBLE:
+                scratch[0] = 0;
+                builtins.call(id, scratch, 1);
+                return scratch[0];
+            case Opcodes.PUTLN:
+                builtins.call(id, scratch, 0);
+                return 0;
+            default:
+                scratch[0] = arg;
+                builtins.call(id, scratch, 1);
+                return 0;
+        }
+    }
+
+    public static long not(long x) {
+        return x == 0 ? 1 : 0;
+    }
+
+    public static long setLt(long x) {
+        return x < 0 ? 1 : 0;
+    }
+
+    public static long setGt(long x) {
+        return x > 0 ? 1 : 0;
+    }
+
+    public static long cmpU(long l, long r) {
+        return Long.compareUnsigned(l, r);
+    }
+
+    public static long divU(long l, long r) {
+        return Long.divideUnsigned(l, r);
+    }
+
+    public static long cmpF(long l, long r) {
+        double a = Builtins.d(l);
+        double b = Builtins.d(r);
+        return a < b ? -1 : a > b ? 1 : 0;
+    }
+
+    public static long addF(long l, long r) {
+        return Builtins.f(Builtins.d(l) + Builtins.d(r));
+    }
+
+    public static long subF(long l, long r) {
+        return Builtins.f(Builtins.d(l) - Builtins.d(r));
+    }
+
+    public static long mulF(long l, long r) {
+        return Builtins.f(Builtins.d(l) * Builtins.d(r));
+    }
+
+    public static long divF(long l, long r) {
+        return Builtins.f(Builtins.d(l) / Builtins.d(r));
+    }
+
+    public static long negF(long x) {
+        return Builtins.f(-Builtins.d(x));
+    }
+
+    public static long itof(long x) {
+        return Builtins.f((double) x);
+    }
+
+    public static long ftoi(long x) {
+        return (long) Builtins.d(x);
+    }
+}
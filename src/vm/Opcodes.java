@@ -0,0 +1,106 @@
+package vm;
+
+/**
+ * 指令的编号，和 Operation.getNum() 以及 o0 文件中的 opcode 一致
+ * 写成常量是为了能在 switch 里直接使用
+ */
+final class Opcodes {
+    static final int NOP = 0x00;
+    static final int PUSH = 0x01;
+    static final int POP = 0x02;
+    static final int POPN = 0x03;
+    static final int DUP = 0x04;
+    static final int LOCA = 0x0a;
+    static final int ARGA = 0x0b;
+    static final int GLOBA = 0x0c;
+    static final int LOAD_8 = 0x10;
+    static final int LOAD_16 = 0x11;
+    static final int LOAD_32 = 0x12;
+    static final int LOAD_64 = 0x13;
+    static final int STORE_8 = 0x14;
+    static final int STORE_16 = 0x15;
+    static final int STORE_32 = 0x16;
+    static final int STORE_64 = 0x17;
+    static final int ALLOC = 0x18;
+    static final int FREE = 0x19;
+    static final int STACKALLOC = 0x1a;
+    static final int ADD_I = 0x20;
+    static final int SUB_I = 0x21;
+    static final int MUL_I = 0x22;
+    static final int DIV_I = 0x23;
+    static final int ADD_F = 0x24;
+    static final int SUB_F = 0x25;
+    static final int MUL_F = 0x26;
+    static final int DIV_F = 0x27;
+    static final int DIV_U = 0x28;
+    static final int SHL = 0x29;
+    static final int SHR = 0x2a;
+    static final int AND = 0x2b;
+    static final int OR = 0x2c;
+    static final int XOR = 0x2d;
+    static final int NOT = 0x2e;
+    static final int CMP_I = 0x30;
+    static final int CMP_U = 0x31;
+    static final int CMP_F = 0x32;
+    static final int NEG_I = 0x34;
+    static final int NEG_F = 0x35;
+    static final int ITOF = 0x36;
+    static final int FTOI = 0x37;
+    static final int SHRL = 0x38;
+    static final int SET_LT = 0x39;
+    static final int SET_GT = 0x3a;
+    static final int BR = 0x41;
+    static final int BR_FALSE = 0x42;
+    static final int BR_TRUE = 0x43;
+    static final int CALL = 0x48;
+    static final int RET = 0x49;
+    static final int CALLNAME = 0x4a;
+    static final int SCAN_I = 0x50;
+    static final int SCAN_C = 0x51;
+    static final int SCAN_F = 0x52;
+    static final int PRINT_I = 0x54;
+    static final int PRINT_C = 0x55;
+    static final int PRINT_F = 0x56;
+    static final int PRINT_S = 0x57;
+    static final int PRINTLN = 0x58;
+    static final int PANIC = 0xfe;
+
+    // callname 在装载时换算成下面的标准库函数编号
+    static final int GETINT = 0;
+    static final int GETCHAR = 1;
+    static final int GETDOUBLE = 2;
+    static final int PUTINT = 3;
+    static final int PUTCHAR = 4;
+    static final int PUTDOUBLE = 5;
+    static final int PUTSTR = 6;
+    static final int PUTLN = 7;
+
+    private Opcodes() {
+    }
+
+    /**
+     * 标准库函数名对应的编号，不是标准库函数返回 -1
+     */
+    static int builtinOf(String name) {
+        switch (name) {
+            case "getint":
+                return GETINT;
+            case "getchar":
+                return GETCHAR;
+            case "getdouble":
+                return GETDOUBLE;
+            case "putint":
+                return PUTINT;
+            case "putchar":
+                return PUTCHAR;
+            case "putdouble":
+                return PUTDOUBLE;
+            case "putstr":
+                return PUTSTR;
+            case "putln":
+                return PUTLN;
+            default:
+                return -1;
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package workload;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 生成合成的 C0 程序，用来测 Tokenizer 和 Analyser 在大输入上的表现
+ * 用法：ProgramGenerator [--functions=N] [--statements=N] ... [输出文件]，不给输出文件时写到 stdout
+ * 同样的参数和 seed 总是得到完全相同的程序；边生成边写出，内存占用和函数个数无关，可以生成几个 GB 的文件
+ *
+ * 生成的程序只用 Analyser 接受的语法，并且一定能运行结束：
+ * 偶数号的函数不调用其他函数，奇数号的函数只调用编号比自己小的偶数号函数，所以调用链最多两层；
+ * 循环的次数是常数，循环变量只在循环末尾加一；除数都是非零的字面量
+ */
+public class ProgramGenerator {
+    /** 函数个数，不包括 main */
+    private int functions = 1000;
+    /** 每个函数体最外层的语句条数 */
+    private int statements = 8;
+    /** if / else if / while 最多嵌套的层数 */
+    private int nesting = 3;
+    /** 表达式树最多的层数 */
+    private int exprDepth = 3;
+    /** 标识符的长度，至少能放下编号 */
+    private int identLength = 8;
+    /** 每个函数里 putstr 的字符串个数 */
+    private int strings = 1;
+    /** 每个函数前面和函数体里的注释行数 */
+    private int comments = 1;
+    /** 每个字符串和注释的字符数 */
+    private int textLength = 40;
+    /** 全局的 let 和 const 各有多少个 */
+    private int globalLets = 8;
+    private int globalConsts = 8;
+    private long seed = 0;
+
+    private static final int MAX_PARAMS = 3;
+    /** 循环的次数在 1 到 LOOP_BOUND 之间 */
+    private static final int LOOP_BOUND = 4;
+    private static final String LETTERS = "abcdefghijklmnopqrstuvwxyz";
+
+    private Random random;
+    private Writer out;
+    /** 当前能读到的变量名，离开代码块时截掉在里面声明的；编号不重复，不会有同名变量 */
+    private final List<String> readable = new ArrayList<>();
+    /** 可以赋值的变量（不包括 const 和循环变量） */
+    private final List<String> writable = new ArrayList<>();
+    private int localCount;
+    private int loopDepth;
+    private int index;
+
+    public static void main(String[] args) throws IOException {
+        var generator = new ProgramGenerator();
+        String output = null;
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                output = arg;
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("expected --name=value: " + arg);
+            }
+            generator.set(arg.substring(2, eq), Long.parseLong(arg.substring(eq + 1)));
+        }
+        if (output == null) {
+            var writer = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+            generator.generate(writer);
+            writer.flush();
+        } else {
+            try (var writer = Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8)) {
+                generator.generate(writer);
+            }
+        }
+    }
+
+    /**
+     * 按参数名设置，名字和命令行的 --name 相同
+     */
+    public void set(String name, long value) {
+        if (name.equals("seed")) {
+            seed = value;
+            return;
+        }
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(name + " out of range: " + value);
+        }
+        int v = (int) value;
+        switch (name) {
+            case "functions":
+                functions = v;
+                break;
+            case "statements":
+                statements = v;
+                break;
+            case "nesting":
+                nesting = v;
+                break;
+            case "expr-depth":
+                exprDepth = v;
+                break;
+            case "ident-length":
+                identLength = v;
+                break;
+            case "strings":
+                strings = v;
+                break;
+            case "comments":
+                comments = v;
+                break;
+            case "text-length":
+                textLength = v;
+                break;
+            case "globals":
+                globalLets = v;
+                break;
+            case "consts":
+                globalConsts = v;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown option: " + name);
+        }
+    }
+
+    /**
+     * 把整个程序写到 out，不关闭它
+     */
+    public void generate(Writer out) throws IOException {
+        this.out = out;
+        this.random = new Random(seed);
+        for (int i = 0; i < globalConsts; i++) {
+            write("const ", name('k', i), ": int = ", Integer.toString(random.nextInt(1000) + 1), ";\n");
+        }
+        for (int i = 0; i < globalLets; i++) {
+            write("let ", name('g', i), ": int = ", Integer.toString(random.nextInt(1000)), ";\n");
+        }
+        for (index = 0; index < functions; index++) {
+            generateFunction();
+        }
+        generateMain();
+        this.out = null;
+    }
+
+    private void generateFunction() throws IOException {
+        readable.clear();
+        writable.clear();
+        localCount = 0;
+        loopDepth = 0;
+        for (int i = 0; i < comments; i++) {
+            comment(0);
+        }
+        write("fn ", name('f', index), "(");
+        int params = paramsOf(index);
+        for (int i = 0; i < params; i++) {
+            var param = name('p', i);
+            readable.add(param);
+            writable.add(param);
+            write(i > 0 ? ", " : "", param, ": int");
+        }
+        write(") -> int {\n");
+        addGlobals();
+        int textLeft = strings;
+        int commentLeft = comments;
+        for (int i = 0; i < statements; i++) {
+            if (textLeft > 0 && random.nextInt(statements - i) < textLeft) {
+                putstr(1);
+                textLeft--;
+            }
+            if (commentLeft > 0 && random.nextInt(statements - i) < commentLeft) {
+                comment(1);
+                commentLeft--;
+            }
+            statement(1, nesting);
+        }
+        write("    return ", expr(exprDepth), ";\n}\n");
+    }
+
+    private void generateMain() throws IOException {
+        readable.clear();
+        writable.clear();
+        localCount = 0;
+        loopDepth = 0;
+        write("fn main() -> void {\n");
+        addGlobals();
+        var sum = local();
+        write("    let ", sum, ": int = 0;\n");
+        //只调用最后几个函数，运行时间和函数个数无关
+        for (int i = Math.max(0, functions - 16); i < functions; i++) {
+            write("    ", sum, " = ", sum, " + ", call(i), ";\n");
+        }
+        write("    putint(", sum, ");\n    putln();\n}\n");
+    }
+
+    private void addGlobals() {
+        for (int i = 0; i < globalConsts; i++) {
+            readable.add(name('k', i));
+        }
+        for (int i = 0; i < globalLets; i++) {
+            readable.add(name('g', i));
+            writable.add(name('g', i));
+        }
+    }
+
+    private void statement(int indent, int depth) throws IOException {
+        int kind = random.nextInt(depth > 0 ? 10 : 7);
+        switch (kind) {
+            case 0:
+            case 1: {
+                //先生成初值再加入作用域，和 Analyser 的顺序一致
+                String value = expr(exprDepth);
+                var name = local();
+                write(pad(indent), "let ", name, ": int = ", value, ";\n");
+                readable.add(name);
+                writable.add(name);
+                break;
+            }
+            case 2: {
+                String value = expr(exprDepth);
+                var name = local();
+                write(pad(indent), "const ", name, ": int = ", value, ";\n");
+                readable.add(name);
+                break;
+            }
+            case 3:
+            case 4:
+                if (writable.isEmpty()) {
+                    write(pad(indent), "putint(", expr(exprDepth), ");\n");
+                } else {
+                    var target = writable.get(random.nextInt(writable.size()));
+                    write(pad(indent), target, " = ", expr(exprDepth), ";\n");
+                }
+                break;
+            case 5:
+                write(pad(indent), "putint(", expr(exprDepth), ");\n");
+                write(pad(indent), "putln();\n");
+                break;
+            case 6:
+                if (loopDepth > 0 && random.nextInt(3) == 0) {
+                    write(pad(indent), "if ", condition(), " {\n", pad(indent + 1), "break;\n", pad(indent), "}\n");
+                } else {
+                    write(pad(indent), ";\n");
+                }
+                break;
+            case 7:
+            case 8:
+                ifStatement(indent, depth);
+                break;
+            default:
+                whileStatement(indent, depth);
+                break;
+        }
+    }
+
+    private void ifStatement(int indent, int depth) throws IOException {
+        write(pad(indent), "if ", condition(), " ");
+        block(indent, depth - 1);
+        int elseIfs = random.nextInt(3);
+        for (int i = 0; i < elseIfs; i++) {
+            write(" else if ", condition(), " ");
+            block(indent, depth - 1);
+        }
+        if (random.nextBoolean()) {
+            write(" else ");
+            block(indent, depth - 1);
+        }
+        write("\n");
+    }
+
+    /**
+     * 循环变量在循环外声明、最后加一，循环体里不会给它赋值，所以总能结束
+     */
+    private void whileStatement(int indent, int depth) throws IOException {
+        var counter = local();
+        write(pad(indent), "let ", counter, ": int = 0;\n");
+        readable.add(counter);
+        write(pad(indent), "while ", counter, " < ", Integer.toString(random.nextInt(LOOP_BOUND) + 1), " {\n");
+        int readableMark = readable.size();
+        int writableMark = writable.size();
+        loopDepth++;
+        blockBody(indent + 1, depth - 1);
+        loopDepth--;
+        write(pad(indent + 1), counter, " = ", counter, " + 1;\n");
+        truncate(readableMark, writableMark);
+        write(pad(indent), "}\n");
+    }
+
+    private void block(int indent, int depth) throws IOException {
+        write("{\n");
+        int readableMark = readable.size();
+        int writableMark = writable.size();
+        blockBody(indent + 1, depth);
+        truncate(readableMark, writableMark);
+        write(pad(indent), "}");
+    }
+
+    private void blockBody(int indent, int depth) throws IOException {
+        int count = random.nextInt(3) + 1;
+        for (int i = 0; i < count; i++) {
+            statement(indent, depth);
+        }
+    }
+
+    private void truncate(int readableMark, int writableMark) {
+        readable.subList(readableMark, readable.size()).clear();
+        writable.subList(writableMark, writable.size()).clear();
+    }
+
+    private String condition() {
+        String[] ops = {"<", ">", "<=", ">=", "==", "!="};
+        return expr(exprDepth - 1) + " " + ops[random.nextInt(ops.length)] + " " + expr(exprDepth - 1);
+    }
+
+    private String expr(int depth) {
+        if (depth <= 0 || random.nextInt(4) == 0) {
+            return leaf();
+        }
+        switch (random.nextInt(7)) {
+            case 0:
+                return "-" + expr(depth - 1);
+            case 1:
+                return "(" + expr(depth - 1) + ")";
+            case 2:
+                //除数是非零的字面量，运行时不会除以零
+                return expr(depth - 1) + " / " + (random.nextInt(9) + 1);
+            case 3:
+                return expr(depth - 1) + " * " + expr(depth - 1);
+            case 4:
+                return expr(depth - 1) + " - " + expr(depth - 1);
+            default:
+                return expr(depth - 1) + " + " + expr(depth - 1);
+        }
+    }
+
+    private String leaf() {
+        int kind = random.nextInt(8);
+        if (kind == 0 && index % 2 == 1 && index < functions) {
+            return call(random.nextInt(index / 2 + 1) * 2);
+        }
+        if (kind < 4 && !readable.isEmpty()) {
+            return readable.get(random.nextInt(readable.size()));
+        }
+        return Integer.toString(random.nextInt(100));
+    }
+
+    /**
+     * 调用第 target 个函数，实参都是字面量，不会再引出别的调用
+     */
+    private String call(int target) {
+        var sb = new StringBuilder(name('f', target)).append('(');
+        int params = paramsOf(target);
+        for (int i = 0; i < params; i++) {
+            sb.append(i > 0 ? ", " : "").append(random.nextInt(10));
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * 参数个数只由编号决定，调用处不必记住每个函数的签名
+     */
+    private int paramsOf(int function) {
+        int hash = function * 0x9E3779B9;
+        return ((hash ^ (hash >>> 16)) & 0x7fffffff) % (MAX_PARAMS + 1);
+    }
+
+    private void putstr(int indent) throws IOException {
+        write(pad(indent), "putstr(\"", text(), "\\n\");\n");
+    }
+
+    private void comment(int indent) throws IOException {
+        write(pad(indent), "// ", text(), "\n");
+    }
+
+    private String text() {
+        var sb = new StringBuilder(textLength);
+        while (sb.length() < textLength) {
+            if (sb.length() > 0 && random.nextInt(6) == 0) {
+                sb.append(' ');
+            } else {
+                sb.append(LETTERS.charAt(random.nextInt(LETTERS.length())));
+            }
+        }
+        return sb.toString();
+    }
+
+    private String local() {
+        return name('v', localCount++);
+    }
+
+    /**
+     * 首字母区分种类，后面是编号和下划线，不会和关键字或者库函数重名；不够 identLength 时用字母补齐
+     */
+    private String name(char kind, int number) {
+        var sb = new StringBuilder(identLength + 8).append(kind).append(Integer.toString(number, 36)).append('_');
+        //补齐的字母只由名字本身决定，同一个变量每次出现都一样
+        int hash = number * 31 + kind;
+        while (sb.length() < identLength) {
+            hash = hash * 0x9E3779B9 + 7;
+            sb.append(LETTERS.charAt((hash >>> 16) % LETTERS.length()));
+        }
+        return sb.toString();
+    }
+
+    private static String pad(int indent) {
+        return "    ".repeat(indent);
+    }
+
+    private void write(String... parts) throws IOException {
+        for (String part : parts) {
+            out.write(part);
+        }
+    }
+}